@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed thread pool that blocks the submitting thread once twice as many
+ * tasks as threads are in flight, so a stream of blocks or files is never
+ * queued as a whole. Failures of finished tasks are rethrown by a later
+ * {@link #submit} or by {@link #await()}. Tasks must be submitted from a
+ * single thread.
+ *
+ * @author Karl Duderstadt
+ */
+final class BoundedExecutor implements AutoCloseable {
+
+    private final int numThreads;
+    private final Semaphore inFlight;
+    private final ExecutorService exec;
+    private final List<Future<?>> pending = new ArrayList<>();
+
+    BoundedExecutor(final int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+        inFlight = new Semaphore(2 * this.numThreads);
+        exec = Executors.newFixedThreadPool(this.numThreads);
+    }
+
+    /** Waits for a free slot, then runs the task on the pool. */
+    void submit(final Callable<?> task) throws InterruptedException,
+            ExecutionException {
+        inFlight.acquire();
+        pending.add(exec.submit(() -> {
+            try {
+                return task.call();
+            } finally {
+                inFlight.release();
+            }
+        }));
+        // surface failures early and keep the list short
+        if (pending.size() >= 4 * numThreads) {
+            for (Future<?> f : pending)
+                if (f.isDone())
+                    f.get();
+            pending.removeIf(Future::isDone);
+        }
+    }
+
+    /** Waits for all submitted tasks, rethrowing the first failure. */
+    void await() throws InterruptedException, ExecutionException {
+        for (Future<?> f : pending)
+            f.get();
+        pending.clear();
+    }
+
+    /** Stops the pool, interrupting tasks still running after a failure. */
+    @Override
+    public void close() {
+        exec.shutdownNow();
+    }
+}
@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * TLS socket factory for the Apache S3 transport that sets socket send and
+ * receive buffer sizes before connecting, so TCP window scaling can use them.
+ * TLS setup is delegated to the system socket factory. The SDK only takes a
+ * socket factory for https; plain http connections keep the OS defaults.
+ *
+ * @author Karl Duderstadt
+ */
+class BufferedTlsSocketFactory implements LayeredConnectionSocketFactory {
+
+    private final SSLConnectionSocketFactory delegate =
+            SSLConnectionSocketFactory.getSystemSocketFactory();
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+
+    BufferedTlsSocketFactory(final int sendBufferSize,
+                             final int receiveBufferSize)
+    {
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    @Override
+    public Socket createSocket(final HttpContext context) throws IOException {
+        final Socket socket = delegate.createSocket(context);
+        if (sendBufferSize > 0) socket.setSendBufferSize(sendBufferSize);
+        if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+        return socket;
+    }
+
+    @Override
+    public Socket connectSocket(final int connectTimeout, final Socket socket,
+                                final HttpHost host, final InetSocketAddress remoteAddress,
+                                final InetSocketAddress localAddress, final HttpContext context)
+            throws IOException
+    {
+        return delegate.connectSocket(connectTimeout, socket, host, remoteAddress,
+                localAddress, context);
+    }
+
+    @Override
+    public Socket createLayeredSocket(final Socket socket, final String target,
+                                      final int port, final HttpContext context) throws IOException
+    {
+        return delegate.createLayeredSocket(socket, target, port, context);
+    }
+}
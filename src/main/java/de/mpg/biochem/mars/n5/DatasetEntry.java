@@ -97,7 +97,7 @@ public class DatasetEntry {
                 humanReadableBytes(numBytes) + ")";
     }
 
-    private static int bitsPerElement(final DataType type) {
+    static int bitsPerElement(final DataType type) {
         switch (type) {
             case INT8:
             case UINT8:
@@ -118,6 +118,28 @@ public class DatasetEntry {
         }
     }
 
+    static boolean isUnsigned(final DataType type) {
+        return type == DataType.UINT8 || type == DataType.UINT16 || type == DataType.UINT32 ||
+                type == DataType.UINT64;
+    }
+
+    /** Element of a block's data array as a double. */
+    static double value(final Object data, final int index, final boolean unsigned) {
+        if (data instanceof byte[])
+            return unsigned ? ((byte[]) data)[index] & 0xff : ((byte[]) data)[index];
+        if (data instanceof short[])
+            return unsigned ? ((short[]) data)[index] & 0xffff : ((short[]) data)[index];
+        if (data instanceof int[])
+            return unsigned ? ((int[]) data)[index] & 0xffffffffL : ((int[]) data)[index];
+        if (data instanceof long[])
+            return ((long[]) data)[index];
+        if (data instanceof float[])
+            return ((float[]) data)[index];
+        if (data instanceof double[])
+            return ((double[]) data)[index];
+        throw new IllegalArgumentException("Unsupported block data " + data.getClass());
+    }
+
     public static String humanReadableBytes(final long bytes) {
         if (bytes < 1024) return bytes + " B";
         final String[] units = { "KB", "MB", "GB", "TB", "PB" };
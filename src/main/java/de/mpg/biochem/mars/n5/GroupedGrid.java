@@ -0,0 +1,100 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.util.Iterator;
+
+/**
+ * Grid positions group by group, first dimension fastest within and
+ * across groups. Groups are e.g. the source chunks an output block is cut
+ * from, or the chunks of a shard.
+ *
+ * @author Karl Duderstadt
+ */
+final class GroupedGrid implements Iterable<long[]> {
+
+    private final long[] gridSize;
+    private final long[] groupSize;
+
+    GroupedGrid(final long[] gridSize, final long[] groupSize) {
+        this.gridSize = gridSize;
+        this.groupSize = groupSize;
+    }
+
+    @Override
+    public Iterator<long[]> iterator() {
+        final int n = gridSize.length;
+        final long[] numGroups = new long[n];
+        for (int d = 0; d < n; d++)
+            numGroups[d] = (gridSize[d] + groupSize[d] - 1) / groupSize[d];
+
+        return new Iterator<long[]>() {
+
+            final long[] group = new long[n];
+            final long[] offset = new long[n];
+            long[] next = position();
+
+            private long[] position() {
+                final long[] p = new long[n];
+                for (int d = 0; d < n; d++)
+                    p[d] = group[d] * groupSize[d] + offset[d];
+                return p;
+            }
+
+            /** Advances offset within the group, then the group; false at the end. */
+            private boolean advance() {
+                for (int d = 0; d < n; d++) {
+                    final long extent = Math.min(groupSize[d], gridSize[d] - group[d] *
+                            groupSize[d]);
+                    if (++offset[d] < extent)
+                        return true;
+                    offset[d] = 0;
+                }
+                for (int d = 0; d < n; d++) {
+                    if (++group[d] < numGroups[d])
+                        return true;
+                    group[d] = 0;
+                }
+                return false;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public long[] next() {
+                final long[] current = next;
+                next = advance() ? position() : null;
+                return current;
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.util.Collections;
+
+import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Writer;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * {@link N5AmazonS3Writer} that can store datasets in shards through a
+ * {@link MarsShardedS3Client}. Shards still waiting for chunks are written
+ * when {@link #flushShards(String)} is called for their dataset, on {@link
+ * #flushShards()} or when the writer is closed. Until then their chunks are
+ * only held in memory. Sharded datasets are only readable through Mars, see
+ * {@link #setSharding(String, int...)}.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5AmazonS3Writer extends N5AmazonS3Writer {
+
+    private final MarsShardedS3Client s3;
+    private final String bucketName;
+    private final String basePath;
+
+    public MarsN5AmazonS3Writer(final MarsShardedS3Client s3, final String bucketName,
+            final String basePath, final GsonBuilder gsonBuilder, final boolean cacheAttributes) {
+        super(s3, bucketName, basePath, gsonBuilder, cacheAttributes);
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.basePath = basePath;
+    }
+
+    /**
+     * Store the chunks of an existing dataset in shards of chunksPerShard
+     * chunks per dimension. Call before writing blocks; blocks written
+     * earlier stay individual objects and are no longer found.
+     * <p>
+     * <b>The shard layout ({@code marsSharding} attribute, chunks in
+     * {@code shards/}) is specific to Mars. Sharded datasets can only be read
+     * through the S3 readers of {@link MarsN5Factory}, which read chunks with a
+     * {@link MarsShardedS3Client}. Other N5 readers, Fiji and BigDataViewer
+     * without Mars, and local copies made with {@link MarsN5Download} see a
+     * dataset without blocks.</b> Leave datasets unsharded if they are meant
+     * to be read elsewhere.
+     *
+     * @param datasetPath path of the dataset
+     * @param chunksPerShard number of chunks per shard in each dimension
+     */
+    public void setSharding(final String datasetPath, final int... chunksPerShard) {
+        setAttribute(datasetPath, MarsShardedS3Client.SHARDING_KEY, Collections
+                .singletonMap(MarsShardedS3Client.CHUNKS_PER_SHARD_KEY, chunksPerShard));
+    }
+
+    /** Write all shards that are still waiting for chunks. */
+    public void flushShards() {
+        s3.flushShards();
+    }
+
+    /**
+     * Write the shards of a dataset that are still waiting for chunks. Call
+     * once all blocks of the dataset are written.
+     *
+     * @param datasetPath path of the dataset
+     */
+    public void flushShards(final String datasetPath) {
+        final String base = basePath.replaceAll("^/+|/+$", "");
+        final String path = datasetPath.replaceAll("^/+|/+$", "");
+        s3.flushShards(bucketName, base.isEmpty() ? path : base + "/" + path);
+    }
+
+    @Override
+    public void close() {
+        flushShards();
+        super.close();
+    }
+}
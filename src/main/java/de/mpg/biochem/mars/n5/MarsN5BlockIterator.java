@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+/**
+ * Streams the blocks of a dataset in storage order, or in an order chosen by
+ * the caller, for consumers that scan every pixel. Unlike the random access
+ * views of {@link MarsN5SourceLoader#loadN5Source}, there is no cell cache to
+ * thrash: every block is read once and handed over whole.
+ * <p>
+ * Up to {@code prefetch} blocks ahead of the consumer are read in parallel.
+ * A new read starts only when the consumer takes a block, so a slow consumer
+ * never holds more than {@code prefetch} blocks in memory. Blocks that were
+ * never written are returned filled with zeros. The reader threads end once
+ * the last read has been started and has finished; close the iterator to
+ * stop them early when not consuming all blocks.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5BlockIterator implements Iterator<DataBlock<?>>,
+	AutoCloseable
+{
+
+	private final N5Reader reader;
+	private final String dataset;
+	private final DatasetAttributes attributes;
+	private final Iterator<long[]> order;
+	private final ExecutorService exec;
+	private final ArrayDeque<Future<DataBlock<?>>> pending = new ArrayDeque<>();
+
+	/** Blocks in storage order, see {@link #storageOrder}. */
+	public MarsN5BlockIterator(final N5Reader reader, final String dataset,
+		final int numThreads, final int prefetch)
+	{
+		this(reader, dataset, storageOrder(reader, dataset), numThreads,
+			prefetch);
+	}
+
+	/**
+	 * Blocks at the given grid positions, in that order.
+	 *
+	 * @param reader the reader
+	 * @param dataset the dataset
+	 * @param order grid positions of the blocks to read
+	 * @param numThreads number of parallel reads, 0 to read every block on its
+	 *          own virtual thread, bounded by {@code prefetch}
+	 * @param prefetch number of blocks read ahead of the consumer
+	 */
+	public MarsN5BlockIterator(final N5Reader reader, final String dataset,
+		final Iterable<long[]> order, final int numThreads, final int prefetch)
+	{
+		this.reader = reader;
+		this.dataset = dataset;
+		this.attributes = reader.getDatasetAttributes(dataset);
+		if (attributes == null) throw new IllegalArgumentException(dataset +
+			" is not a dataset");
+		this.order = order.iterator();
+		this.exec = numThreads <= 0 ? Executors.newThreadPerTaskExecutor(Thread
+			.ofVirtual().name("mars-block-iterator-", 0).factory()) : Executors
+				.newFixedThreadPool(numThreads, r -> {
+					final Thread thread = new Thread(r, "mars-block-iterator");
+					thread.setDaemon(true);
+					return thread;
+				});
+		for (int i = 0; i < Math.max(1, prefetch) && this.order.hasNext(); i++)
+			submitNext();
+	}
+
+	/**
+	 * Grid positions in the order blocks are stored: shard by shard for
+	 * datasets sharded by {@link MarsShardedS3Client}, so each shard is read
+	 * front to back, and first dimension fastest otherwise, i.e. frame by
+	 * frame for XYZCT datasets.
+	 */
+	public static Iterable<long[]> storageOrder(final N5Reader reader,
+		final String dataset)
+	{
+		final DatasetAttributes attributes = reader.getDatasetAttributes(dataset);
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSize = attributes.getBlockSize();
+		final int n = dimensions.length;
+		final long[] gridSize = new long[n];
+		for (int d = 0; d < n; d++)
+			gridSize[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+
+		final long[] groupSize = new long[n];
+		Arrays.fill(groupSize, 1);
+		final Map<?, ?> sharding = reader.getAttribute(dataset,
+			MarsShardedS3Client.SHARDING_KEY, Map.class);
+		if (sharding != null && sharding.get(
+			MarsShardedS3Client.CHUNKS_PER_SHARD_KEY) instanceof List)
+		{
+			final List<?> chunksPerShard = (List<?>) sharding.get(
+				MarsShardedS3Client.CHUNKS_PER_SHARD_KEY);
+			for (int d = 0; d < n && d < chunksPerShard.size(); d++)
+				groupSize[d] = Math.max(1, ((Number) chunksPerShard.get(d)).longValue());
+		}
+		return new GroupedGrid(gridSize, groupSize);
+	}
+
+	public DatasetAttributes getDatasetAttributes() {
+		return attributes;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * The next block, waiting for its read to finish.
+	 *
+	 * @throws N5Exception if the block could not be read
+	 */
+	@Override
+	public DataBlock<?> next() {
+		final Future<DataBlock<?>> head = pending.poll();
+		if (head == null) throw new NoSuchElementException();
+		if (order.hasNext()) submitNext();
+		try {
+			return head.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new N5Exception("Interrupted while reading " + dataset, e);
+		}
+		catch (final ExecutionException e) {
+			close();
+			throw new N5Exception("Could not read a block of " + dataset, e
+				.getCause());
+		}
+	}
+
+	private void submitNext() {
+		final long[] gridPosition = order.next().clone();
+		pending.add(exec.submit(() -> {
+			final DataBlock<?> block = reader.readBlock(dataset, attributes,
+				gridPosition);
+			return block != null ? block : emptyBlock(gridPosition);
+		}));
+		// the last read is queued, let the threads end once it is done
+		if (!order.hasNext()) exec.shutdown();
+	}
+
+	private DataBlock<?> emptyBlock(final long[] gridPosition) {
+		final long[] dimensions = attributes.getDimensions();
+		final int[] blockSize = attributes.getBlockSize();
+		final int[] size = new int[blockSize.length];
+		int numElements = 1;
+		for (int d = 0; d < size.length; d++) {
+			size[d] = (int) Math.min(blockSize[d], dimensions[d] - gridPosition[d] *
+				blockSize[d]);
+			numElements *= size[d];
+		}
+		return attributes.getDataType().createDataBlock(size, gridPosition,
+			numElements);
+	}
+
+	/** Stops all reads; blocks not yet taken are dropped. */
+	@Override
+	public void close() {
+		exec.shutdownNow();
+		pending.clear();
+	}
+}
@@ -0,0 +1,287 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
+
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Downloads an N5 or Zarr root, or one dataset of it, from MinIO into a local
+ * directory that opens with {@link MarsN5Factory#openFSReader} or
+ * {@link MarsN5Factory#openZarrReader}. Objects are copied byte for byte, in
+ * parallel, with a bounded number in flight.
+ * <p>
+ * Every completed file is recorded in a checkpoint manifest
+ * ({@value #MANIFEST}) in the local root. Running the same download again
+ * after an interruption skips files recorded there whose remote size and
+ * ETag are unchanged. Each file is checked against the size and, for
+ * single-part uploads, the MD5 ETag of its object; when all files are
+ * verified the manifest is removed.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5Download {
+
+    /** Name of the checkpoint manifest in the local root. */
+    public static final String MANIFEST = ".mars-download";
+
+    private final MarsN5Factory factory;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private boolean verify = true;
+    private DoubleConsumer progress = p -> {};
+
+    public MarsN5Download() {
+        this(new MarsN5Factory());
+    }
+
+    /** Download through clients with the transport options of the factory. */
+    public MarsN5Download(final MarsN5Factory factory) {
+        this.factory = factory;
+    }
+
+    /** Number of parallel GETs, at most twice as many files are queued. */
+    public MarsN5Download numThreads(final int numThreads) {
+        this.numThreads = numThreads;
+        return this;
+    }
+
+    /** Check all local files against the listing when done. */
+    public MarsN5Download verify(final boolean verify) {
+        this.verify = verify;
+        return this;
+    }
+
+    /** Receives the fraction of files downloaded or skipped. */
+    public MarsN5Download progress(final DoubleConsumer progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Download a root given as https://bucket.s3.server:9000/path/root.n5, or
+     * only one dataset or group of it together with the metadata of the root
+     * and all groups above it.
+     *
+     * @param url the remote root
+     * @param dataset path of a dataset or group in the root, empty for all
+     * @param localRoot the local root, created if needed
+     * @return the number of files downloaded in this run
+     */
+    public long download(final String url, final String dataset, final Path localRoot)
+            throws IOException {
+        final MarsS3Browser.ParsedPath path = MarsS3Browser.parsePath(url);
+        if (path == null)
+            throw new IllegalArgumentException("Expected a url like " +
+                    "https://bucket.s3.server:9000/path, got " + url);
+        try (MarsS3Browser browser = new MarsS3Browser(path.server, factory)) {
+            return download(browser, path.bucket, path.n5Root, dataset, localRoot);
+        }
+    }
+
+    public long download(final MarsS3Browser browser, final String bucket,
+            final String remoteRoot, final String dataset, final Path localRoot)
+            throws IOException {
+        final String root = strip(remoteRoot);
+        final String group = strip(dataset == null ? "" : dataset);
+        final String prefix = root.isEmpty() ? "" : root + "/";
+
+        // relative path -> object
+        final Map<String, S3Object> objects = new LinkedHashMap<>();
+        if (group.isEmpty()) {
+            objects.putAll(browser.listObjects(bucket, root));
+        } else {
+            String parent = "";
+            for (String name : group.split("/")) {
+                addMetadata(browser, bucket, prefix, parent, objects);
+                parent = parent.isEmpty() ? name : parent + "/" + name;
+            }
+            for (Map.Entry<String, S3Object> entry : browser.listObjects(bucket, prefix +
+                    group).entrySet())
+                objects.put(group + "/" + entry.getKey(), entry.getValue());
+        }
+        objects.keySet().removeIf(relative -> relative.endsWith("/"));
+        for (String relative : objects.keySet())
+            if (relative.contains(MarsShardedS3Client.SHARDS_FOLDER + "/")) {
+                System.out.println(root + " contains sharded datasets, their shards " +
+                        "are downloaded as they are and the local copy of these datasets " +
+                        "can't be read. Open them from MinIO instead.");
+                break;
+            }
+
+        // check all keys before anything is written
+        for (String relative : objects.keySet())
+            localFile(localRoot, relative);
+
+        Files.createDirectories(localRoot);
+        final Path manifestPath = localRoot.resolve(MANIFEST);
+        final Map<String, String> done = readManifest(manifestPath);
+        final long total = objects.size();
+        final AtomicLong finished = new AtomicLong();
+        final AtomicLong downloaded = new AtomicLong();
+        try (BoundedExecutor exec = new BoundedExecutor(numThreads);
+                BufferedWriter manifest = Files.newBufferedWriter(manifestPath,
+                        StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND)) {
+            // metadata last, an interrupted download never looks complete
+            for (boolean metadata : new boolean[] { false, true }) {
+                for (Map.Entry<String, S3Object> entry : objects.entrySet()) {
+                    if (MarsN5Sync.isMetadata(entry.getKey()) != metadata) continue;
+                    final String relative = entry.getKey();
+                    final S3Object object = entry.getValue();
+                    final Path file = localFile(localRoot, relative);
+                    if (manifestEntry(object).equals(done.get(relative)) &&
+                            Files.isRegularFile(file) && Files.size(file) == object.size()) {
+                        report(finished.incrementAndGet(), total);
+                        continue;
+                    }
+                    exec.submit(() -> {
+                        fetch(browser, bucket, prefix + relative, object, file);
+                        synchronized (manifest) {
+                            manifest.write(relative + "\t" + manifestEntry(object));
+                            manifest.newLine();
+                            manifest.flush();
+                        }
+                        downloaded.incrementAndGet();
+                        report(finished.incrementAndGet(), total);
+                        return null;
+                    });
+                }
+                exec.await();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + root, e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException("Could not download " + root, e.getCause());
+        }
+
+        if (verify)
+            for (Map.Entry<String, S3Object> entry : objects.entrySet()) {
+                final Path file = localFile(localRoot, entry.getKey());
+                if (!Files.isRegularFile(file) || Files.size(file) != entry.getValue().size())
+                    throw new IOException("Verification failed, " + file + " does not " +
+                            "match " + prefix + entry.getKey() + ". Run the download " +
+                            "again to resume.");
+            }
+        Files.deleteIfExists(manifestPath);
+        return downloaded.get();
+    }
+
+    /**
+     * The local file of an object, refusing keys like {@code ../x} that would
+     * leave the local root.
+     */
+    static Path localFile(final Path localRoot, final String relative) throws IOException {
+        final Path root = localRoot.toAbsolutePath().normalize();
+        final Path file = root.resolve(relative).normalize();
+        if (!file.startsWith(root) || file.equals(root))
+            throw new IOException("Object " + relative + " would be downloaded outside of " +
+                    localRoot + ", refusing to download it.");
+        return file;
+    }
+
+    /** Download one object, retrying once if the bytes do not match. */
+    private static void fetch(final MarsS3Browser browser, final String bucket,
+            final String key, final S3Object object, final Path file) throws IOException {
+        for (int attempt = 0;; attempt++) {
+            final String md5 = browser.download(bucket, key, file);
+            final String eTag = unquote(object.eTag());
+            final boolean sizeMatches = Files.size(file) == object.size();
+            // multipart ETags are not the MD5 of the object
+            final boolean md5Matches = eTag == null || eTag.contains("-") || eTag
+                    .equalsIgnoreCase(md5);
+            if (sizeMatches && md5Matches) return;
+            if (attempt > 0)
+                throw new IOException("Downloaded " + key + " does not match its size " +
+                        "or ETag, it may have changed during the download.");
+        }
+    }
+
+    private static void addMetadata(final MarsS3Browser browser, final String bucket,
+            final String prefix, final String group, final Map<String, S3Object> objects) {
+        final String folder = group.isEmpty() ? prefix : prefix + group + "/";
+        for (Map.Entry<String, S3Object> entry : browser.listObjects(bucket, folder,
+                false).entrySet())
+            if (MarsN5Sync.isMetadata(entry.getKey()))
+                objects.put(group.isEmpty() ? entry.getKey() : group + "/" + entry.getKey(),
+                        entry.getValue());
+    }
+
+    private static Map<String, String> readManifest(final Path manifest) throws IOException {
+        final Map<String, String> done = new HashMap<>();
+        if (!Files.exists(manifest)) return done;
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            // the last line may be cut off by an interruption
+            final String[] parts = line.split("\t");
+            if (parts.length == 3)
+                done.put(parts[0], parts[1] + "\t" + parts[2]);
+        }
+        return done;
+    }
+
+    private static String manifestEntry(final S3Object object) {
+        return object.size() + "\t" + unquote(object.eTag());
+    }
+
+    private static String unquote(final String eTag) {
+        if (eTag != null && eTag.length() > 1 && eTag.startsWith("\"") && eTag.endsWith("\""))
+            return eTag.substring(1, eTag.length() - 1);
+        return eTag;
+    }
+
+    private static String strip(final String path) {
+        String p = path;
+        while (p.startsWith("/"))
+            p = p.substring(1);
+        while (p.endsWith("/"))
+            p = p.substring(0, p.length() - 1);
+        return p;
+    }
+
+    private void report(final long done, final long total) {
+        if (done % 64 == 0 || done == total)
+            progress.accept((double) done / total);
+    }
+}
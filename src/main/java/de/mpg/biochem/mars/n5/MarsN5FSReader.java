@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.N5Exception;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.RawCompression;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * {@link N5FSReader} that reads chunk files through memory maps instead of a
+ * locked stream per chunk. Repeated access is served by the page cache.
+ * Only chunks of at least {@value #MAP_THRESHOLD} bytes are mapped; smaller
+ * ones are read into a heap buffer with a single read, since every live map
+ * counts against the per-process map limit (vm.max_map_count on Linux) until
+ * it is garbage collected. Uncompressed chunks are decoded straight from the
+ * buffer into the block; compressed chunks are decompressed from a stream
+ * over the buffer. Metadata and writes behave as in {@link N5FSReader}.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5FSReader extends N5FSReader {
+
+    /** Size in bytes from which chunk files are memory mapped. */
+    public static final int MAP_THRESHOLD = 1 << 20;
+
+    private static final short MODE_DEFAULT = 0;
+    private static final short MODE_VARLENGTH = 1;
+
+    private final Path basePath;
+
+    public MarsN5FSReader(final String basePath, final GsonBuilder gsonBuilder,
+            final boolean cacheAttributes) {
+        super(basePath, gsonBuilder, cacheAttributes);
+        this.basePath = Paths.get(basePath);
+    }
+
+    @Override
+    public DataBlock<?> readBlock(final String pathName,
+            final DatasetAttributes datasetAttributes, final long... gridPosition) {
+        final Path path = blockPath(pathName, gridPosition);
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size == 0)
+                return null;
+            buffer = size >= MAP_THRESHOLD
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                    : read(channel, (int) size);
+        } catch (final NoSuchFileException e) {
+            return null;
+        } catch (final IOException e) {
+            throw new N5Exception("Could not read block " + path, e);
+        }
+
+        try {
+            if (datasetAttributes.getCompression() instanceof RawCompression) {
+                final DataBlock<?> block = decodeRaw(buffer, datasetAttributes, gridPosition);
+                if (block != null)
+                    return block;
+                buffer.rewind();
+            }
+            return DefaultBlockReader.readBlock(new ByteBufferInputStream(buffer),
+                    datasetAttributes, gridPosition);
+        } catch (final IOException e) {
+            throw new N5Exception("Could not read block " + path, e);
+        }
+    }
+
+    /** Reads a whole chunk file into a heap buffer. */
+    private static ByteBuffer read(final FileChannel channel, final int size)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                break;
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the chunk header and hands the data behind it to the block
+     * without an intermediate copy. Returns null for modes that need the
+     * default reader.
+     */
+    private static DataBlock<?> decodeRaw(final ByteBuffer buffer,
+            final DatasetAttributes datasetAttributes, final long[] gridPosition) {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        final short mode = buffer.getShort();
+        if (mode != MODE_DEFAULT && mode != MODE_VARLENGTH)
+            return null;
+        final int[] size = new int[buffer.getShort()];
+        int numElements = 1;
+        for (int d = 0; d < size.length; d++) {
+            size[d] = buffer.getInt();
+            numElements *= size[d];
+        }
+        if (mode == MODE_VARLENGTH)
+            numElements = buffer.getInt();
+
+        final DataBlock<?> block = datasetAttributes.getDataType().createDataBlock(size,
+                gridPosition, numElements);
+        block.readData(buffer.slice());
+        return block;
+    }
+
+    private Path blockPath(final String pathName, final long[] gridPosition) {
+        String relative = pathName;
+        while (relative.startsWith("/"))
+            relative = relative.substring(1);
+        Path path = basePath.resolve(relative);
+        for (long p : gridPosition)
+            path = path.resolve(Long.toString(p));
+        return path;
+    }
+
+    /** InputStream reading a buffer from its current position. */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+    }
+}
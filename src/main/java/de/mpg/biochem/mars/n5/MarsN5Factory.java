@@ -36,9 +36,16 @@ import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.janelia.saalfeldlab.googlecloud.GoogleCloudResourceManagerClient;
 import org.janelia.saalfeldlab.googlecloud.GoogleCloudStorageURI;
@@ -51,21 +58,30 @@ import org.janelia.saalfeldlab.n5.googlecloud.N5GoogleCloudStorageReader;
 import org.janelia.saalfeldlab.n5.googlecloud.N5GoogleCloudStorageWriter;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Reader;
 import org.janelia.saalfeldlab.n5.hdf5.N5HDF5Writer;
+import org.janelia.saalfeldlab.n5.s3.AmazonS3KeyValueAccess;
 import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Reader;
-import org.janelia.saalfeldlab.n5.s3.N5AmazonS3Writer;
 import org.janelia.saalfeldlab.n5.zarr.N5ZarrReader;
 import org.janelia.saalfeldlab.n5.zarr.N5ZarrWriter;
+import org.janelia.saalfeldlab.n5.zarr.v3.ZarrV3KeyValueReader;
 
 import software.amazon.awssdk.auth.credentials.AnonymousCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.AwsCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.apache5.Apache5HttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
 import software.amazon.awssdk.services.s3.S3Uri;
 import software.amazon.awssdk.services.s3.S3Utilities;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
 import com.google.cloud.resourcemanager.Project;
 import com.google.cloud.resourcemanager.ResourceManager;
 import com.google.cloud.storage.Storage;
@@ -80,6 +96,16 @@ import com.google.gson.GsonBuilder;
  * defaults are provided.
  *
  * This copy allows for a custom s3 endpoint to be added for AWS paths.
+ * S3 urls given to {@link #openReader(String)} open N5, Zarr v2 and Zarr v3
+ * stores alike, see {@link #openS3Reader(String)}.
+ *
+ * The HTTP transport of the S3 clients can be tuned for fast MinIO clusters
+ * with the s3* options (connection pool size, timeouts, keep-alive, socket
+ * buffers, HTTP implementation and connection warm-up). Clients are closed
+ * together with the readers and writers that own them.
+ *
+ * S3 writers are {@link MarsN5AmazonS3Writer}s and can store datasets in
+ * shards, many chunks per object, see {@link MarsShardedS3Client}.
  * @author Karl Duderstadt
  *
  * @author Stephan Saalfeld
@@ -95,11 +121,43 @@ public class MarsN5Factory implements Serializable {
     private boolean hdf5OverrideBlockSize = false;
     private GsonBuilder gsonBuilder = new GsonBuilder();
     private boolean cacheAttributes = true;
+    private boolean fsMemoryMapped = false;
     private String zarrDimensionSeparator = ".";
     private boolean zarrMapN5DatasetAttributes = true;
     private boolean zarrMergeAttributes = true;
     private String googleCloudProjectId = null;
 
+    /** HTTP implementations available for the S3 clients. */
+    public enum S3HttpClientType {
+        /**
+         * Apache HttpClient 4, the default of the SDK and of this factory.
+         * Supports socket buffer sizes, for https endpoints only.
+         */
+        APACHE,
+        /** Apache HttpClient 5, without socket buffer sizes. */
+        APACHE5
+    }
+
+    private S3HttpClientType s3HttpClientType = S3HttpClientType.APACHE;
+    private int s3MaxConnections = 50;
+    private Duration s3ConnectionTimeToLive = Duration.ZERO;
+    private Duration s3ConnectionMaxIdleTime = Duration.ofSeconds(60);
+    private Duration s3ConnectionTimeout = Duration.ofSeconds(2);
+    private Duration s3SocketTimeout = Duration.ofSeconds(50);
+    private Duration s3ConnectionAcquisitionTimeout = Duration.ofSeconds(10);
+    private boolean s3TcpKeepAlive = true;
+    private int s3SocketSendBufferSize = 0;
+    private int s3SocketReceiveBufferSize = 0;
+    private int s3WarmUpConnections = 0;
+    private int s3ShardReadAhead = 0;
+    private boolean s3PrefetchAttributes = false;
+    private double s3HedgePercentile = 0;
+    private double s3HedgeBudget = 0.05;
+    private boolean s3AdaptiveConcurrency = false;
+    private String s3MetadataSnapshots = null;
+    private transient MarsS3MetadataCache.Store s3MetadataStore;
+    private transient Map<String, MarsS3ConcurrencyLimiter> s3Limiters;
+
     public MarsN5Factory hdf5DefaultBlockSize(final int... blockSize) {
 
         hdf5DefaultBlockSize = blockSize;
@@ -118,6 +176,29 @@ public class MarsN5Factory implements Serializable {
         return this;
     }
 
+    /**
+     * Cache attributes. For S3 the cache is shared by all readers and
+     * writers opened with this factory, so the dataset selector, listDatasets
+     * and N5Utils.open don't fetch the same attributes again. Changes made
+     * by other processes aren't seen until {@link #clearS3AttributeCache()}.
+     */
+    public MarsN5Factory cacheAttributes(final boolean cacheAttributes) {
+
+        this.cacheAttributes = cacheAttributes;
+        return this;
+    }
+
+    /**
+     * Read chunks of local N5 roots of 1 MB and more through memory maps, see
+     * {@link MarsN5FSReader}. Pays off for repeated access to roots on fast
+     * local disks.
+     */
+    public MarsN5Factory fsMemoryMapped(final boolean memoryMapped) {
+
+        fsMemoryMapped = memoryMapped;
+        return this;
+    }
+
     public MarsN5Factory zarrDimensionSeparator(final String separator) {
 
         zarrDimensionSeparator = separator;
@@ -136,6 +217,155 @@ public class MarsN5Factory implements Serializable {
         return this;
     }
 
+    public MarsN5Factory s3HttpClientType(final S3HttpClientType type) {
+
+        s3HttpClientType = type;
+        return this;
+    }
+
+    /**
+     * Size of the connection pool of each S3 client. Should be at least the
+     * number of threads reading in parallel (fetcher threads, LoopBuilder
+     * tasks), otherwise requests wait for a free connection.
+     */
+    public MarsN5Factory s3MaxConnections(final int maxConnections) {
+
+        s3MaxConnections = maxConnections;
+        return this;
+    }
+
+    /** Maximum lifetime of a pooled connection, {@link Duration#ZERO} for unlimited. */
+    public MarsN5Factory s3ConnectionTimeToLive(final Duration timeToLive) {
+
+        s3ConnectionTimeToLive = timeToLive;
+        return this;
+    }
+
+    public MarsN5Factory s3ConnectionMaxIdleTime(final Duration maxIdleTime) {
+
+        s3ConnectionMaxIdleTime = maxIdleTime;
+        return this;
+    }
+
+    public MarsN5Factory s3ConnectionTimeout(final Duration timeout) {
+
+        s3ConnectionTimeout = timeout;
+        return this;
+    }
+
+    public MarsN5Factory s3SocketTimeout(final Duration timeout) {
+
+        s3SocketTimeout = timeout;
+        return this;
+    }
+
+    public MarsN5Factory s3ConnectionAcquisitionTimeout(final Duration timeout) {
+
+        s3ConnectionAcquisitionTimeout = timeout;
+        return this;
+    }
+
+    public MarsN5Factory s3TcpKeepAlive(final boolean keepAlive) {
+
+        s3TcpKeepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * Socket send and receive buffer sizes in bytes, 0 for the OS default.
+     * Large buffers are needed to fill high bandwidth-delay links. Applied to
+     * https connections of the {@link S3HttpClientType#APACHE} transport only:
+     * the SDK opens plain http connections with its own socket factory, so
+     * http endpoints keep the OS defaults.
+     */
+    public MarsN5Factory s3SocketBufferSizes(final int sendBufferSize,
+            final int receiveBufferSize) {
+
+        s3SocketSendBufferSize = sendBufferSize;
+        s3SocketReceiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    /**
+     * Number of connections to open in parallel when a reader or writer is
+     * created, so the first burst of chunk reads doesn't pay for TCP and TLS
+     * handshakes. 0 disables warm-up.
+     */
+    public MarsN5Factory s3WarmUpConnections(final int numConnections) {
+
+        s3WarmUpConnections = numConnections;
+        return this;
+    }
+
+    /**
+     * Maximum size in bytes of a coalesced range request when reading chunks
+     * of sharded datasets. Chunks stored directly after the requested one
+     * are fetched with it and kept for later reads. 0 reads each chunk with
+     * its own request.
+     */
+    public MarsN5Factory s3ShardReadAhead(final int bytes) {
+
+        s3ShardReadAhead = bytes;
+        return this;
+    }
+
+    /**
+     * Read all attribute files below the root in one parallel sweep when an
+     * S3 reader is opened, so later metadata lookups are memory hits. Pays
+     * off for roots with many groups and datasets.
+     */
+    public MarsN5Factory s3PrefetchAttributes(final boolean prefetch) {
+
+        s3PrefetchAttributes = prefetch;
+        return this;
+    }
+
+    /**
+     * Hedge slow GETs: a GET still waiting for its response after the given
+     * latency percentile (e.g. 0.95) of recent GETs is sent again and the
+     * first response wins, see {@link MarsS3HedgingClient}. The budget caps
+     * the extra GETs as a fraction of all GETs (e.g. 0.05). A percentile of
+     * 0 disables hedging.
+     */
+    public MarsN5Factory s3HedgeRequests(final double percentile, final double budget) {
+
+        s3HedgePercentile = percentile;
+        s3HedgeBudget = budget;
+        return this;
+    }
+
+    /**
+     * Limit the concurrent requests to each S3 server adaptively, between 1
+     * and {@link #s3MaxConnections}, from request latency and 503 SlowDown
+     * responses, see {@link MarsS3ConcurrencyLimiter}. All readers, writers
+     * and browsers of this factory for the same server share one limit.
+     */
+    public MarsN5Factory s3AdaptiveConcurrency(final boolean adaptive) {
+
+        s3AdaptiveConcurrency = adaptive;
+        return this;
+    }
+
+    /**
+     * Keep a snapshot of the attributes and group listings of each S3 root
+     * opened in the given local directory, e.g. ~/.mars/metadata. A root with
+     * a snapshot opens from it without waiting for the server, and the
+     * snapshot is checked with conditional GETs and updated in the
+     * background. A root without one is prefetched as with {@link
+     * #s3PrefetchAttributes}. null turns snapshots off.
+     */
+    public MarsN5Factory s3MetadataSnapshots(final String directory) {
+
+        s3MetadataSnapshots = directory;
+        return this;
+    }
+
+    /** Forget the S3 attributes cached by readers and writers of this factory. */
+    public void clearS3AttributeCache() {
+
+        s3MetadataStore().clear();
+    }
+
     public static boolean isHDF5Writer(final String path) {
 
         if (path.contains(".h5") || path.contains(".hdf5"))
@@ -167,7 +397,7 @@ public class MarsN5Factory implements Serializable {
      * @param url
      * @return
      */
-    private static S3Client createS3(final String url) {
+    private MarsShardedS3Client createS3(final String url) {
 
         final AwsCredentialsProvider credentialsProvider = resolveCredentialsProvider();
         final S3Uri uri = parseS3Uri(url);
@@ -176,25 +406,173 @@ public class MarsN5Factory implements Serializable {
                 .credentialsProvider(credentialsProvider);
         uri.region().ifPresent(builder::region);
 
-        return builder.build();
+        return wrap(builder, "s3:" + uri.region().map(Region::id).orElse(""));
     }
 
     /**
-     * Helper method.
+     * Build a path-style S3 client for a custom endpoint (e.g. MinIO) using the
+     * transport options of this factory. Also used by {@link MarsS3Browser}.
      *
-     * @param endpoint
-     * @return
+     * @param endpoint scheme://host:port of the server
+     * @return the S3Client
      */
-    private static S3Client createS3WithEndpoint(final String endpoint) {
+    public MarsShardedS3Client createS3WithEndpoint(final String endpoint) {
         final AwsCredentialsProvider credentialsProvider = resolveCredentialsProvider();
+        if ((s3SocketSendBufferSize > 0 || s3SocketReceiveBufferSize > 0) &&
+                endpoint.startsWith("http:"))
+            System.out.println("Socket buffer sizes are only applied to https, not to " +
+                    endpoint);
 
         //US_EAST_2 is used as a dummy region.
-        return S3Client.builder()
+        return wrap(S3Client.builder()
                 .forcePathStyle(true)
                 .endpointOverride(URI.create(endpoint))
                 .region(Region.US_EAST_2)
-                .credentialsProvider(credentialsProvider)
-                .build();
+                .credentialsProvider(credentialsProvider), endpoint);
+    }
+
+    /**
+     * Builds the client and adds shard and metadata cache handling, and
+     * optionally hedging and adaptive concurrency.
+     *
+     * @param server key of the server, clients for the same one share a limiter
+     */
+    private MarsShardedS3Client wrap(final S3ClientBuilder builder, final String server) {
+        final MarsS3ConcurrencyLimiter limiter = s3AdaptiveConcurrency
+                ? s3Limiter(server)
+                : null;
+        final S3Client raw = configure(builder, limiter).build();
+        final S3Client client = limiter != null ? limiter.wrap(raw) : raw;
+        final S3Client s3 = s3HedgePercentile > 0
+                ? new MarsS3HedgingClient(client, s3HedgePercentile, s3HedgeBudget)
+                : client;
+        final MarsS3MetadataCache metadataCache = cacheAttributes
+                ? new MarsS3MetadataCache(s3, s3MetadataStore(), true)
+                : new MarsS3MetadataCache(s3);
+        return new MarsShardedS3Client(metadataCache, s3ShardReadAhead);
+    }
+
+    private synchronized MarsS3ConcurrencyLimiter s3Limiter(final String server) {
+        if (s3Limiters == null)
+            s3Limiters = new HashMap<>();
+        return s3Limiters.computeIfAbsent(server,
+                k -> new MarsS3ConcurrencyLimiter(s3MaxConnections));
+    }
+
+    private synchronized MarsS3MetadataCache.Store s3MetadataStore() {
+        if (s3MetadataStore == null)
+            s3MetadataStore = new MarsS3MetadataCache.Store();
+        return s3MetadataStore;
+    }
+
+    /**
+     * Reads all attribute files below the root if {@link #s3PrefetchAttributes}
+     * is set, or restores them from the snapshot if {@link
+     * #s3MetadataSnapshots} is set and one exists, refreshing it in the
+     * background. Failures are reported and leave the reader fetching
+     * attributes on demand.
+     */
+    private void prefetchAttributes(final MarsShardedS3Client s3, final String bucket,
+            final String key) {
+        if (!(s3.delegate() instanceof MarsS3MetadataCache)) return;
+        final MarsS3MetadataCache cache = (MarsS3MetadataCache) s3.delegate();
+        final int numThreads = Math.max(1, Math.min(s3MaxConnections, 32));
+        if (s3MetadataSnapshots != null) {
+            // already restored or swept by another reader of this factory
+            if (cache.isComplete(bucket, key)) return;
+            final Path directory = Paths.get(s3MetadataSnapshots);
+            if (cache.loadSnapshot(bucket, key, directory)) {
+                Thread.ofVirtual().name("mars-s3-snapshot-refresh").start(() ->
+                        refreshSnapshot(cache, bucket, key, numThreads, directory));
+                return;
+            }
+        } else if (!s3PrefetchAttributes) return;
+        try {
+            cache.prefetch(bucket, key, numThreads);
+            if (s3MetadataSnapshots != null)
+                cache.saveSnapshot(bucket, key, Paths.get(s3MetadataSnapshots));
+        } catch (final RuntimeException | IOException e) {
+            System.out.println("Could not prefetch attributes of " + bucket + "/" + key +
+                    ": " + e.getMessage());
+        }
+    }
+
+    private static void refreshSnapshot(final MarsS3MetadataCache cache, final String bucket,
+            final String key, final int numThreads, final Path directory) {
+        try {
+            final int changed = cache.refresh(bucket, key, numThreads);
+            if (changed > 0)
+                System.out.println(changed + " attribute files of " + bucket + "/" + key +
+                        " changed since the last snapshot.");
+            // listings may have changed too
+            cache.saveSnapshot(bucket, key, directory);
+        } catch (final RuntimeException | IOException e) {
+            System.out.println("Could not refresh attributes of " + bucket + "/" + key +
+                    ": " + e.getMessage());
+        }
+    }
+
+    private S3ClientBuilder configure(final S3ClientBuilder builder,
+            final MarsS3ConcurrencyLimiter limiter) {
+        return builder
+                .httpClientBuilder(httpClientBuilder())
+                .overrideConfiguration(c -> {
+                    c.addExecutionInterceptor(MarsS3Metrics.getInstance());
+                    if (limiter != null) c.addExecutionInterceptor(limiter);
+                });
+    }
+
+    private SdkHttpClient.Builder<?> httpClientBuilder() {
+        switch (s3HttpClientType) {
+            case APACHE5:
+                return Apache5HttpClient.builder()
+                        .maxConnections(s3MaxConnections)
+                        .connectionTimeToLive(s3ConnectionTimeToLive)
+                        .connectionMaxIdleTime(s3ConnectionMaxIdleTime)
+                        .connectionTimeout(s3ConnectionTimeout)
+                        .socketTimeout(s3SocketTimeout)
+                        .connectionAcquisitionTimeout(s3ConnectionAcquisitionTimeout)
+                        .tcpKeepAlive(s3TcpKeepAlive);
+            case APACHE:
+            default:
+                final ApacheHttpClient.Builder apache = ApacheHttpClient.builder()
+                        .maxConnections(s3MaxConnections)
+                        .connectionTimeToLive(s3ConnectionTimeToLive)
+                        .connectionMaxIdleTime(s3ConnectionMaxIdleTime)
+                        .connectionTimeout(s3ConnectionTimeout)
+                        .socketTimeout(s3SocketTimeout)
+                        .connectionAcquisitionTimeout(s3ConnectionAcquisitionTimeout)
+                        .tcpKeepAlive(s3TcpKeepAlive);
+                if (s3SocketSendBufferSize > 0 || s3SocketReceiveBufferSize > 0)
+                    apache.socketFactory(new BufferedTlsSocketFactory(
+                            s3SocketSendBufferSize, s3SocketReceiveBufferSize));
+                return apache;
+        }
+    }
+
+    /**
+     * Open {@link #s3WarmUpConnections} pooled connections in parallel with
+     * cheap HEAD bucket requests. Failures are ignored; the reader reports
+     * real errors on first use.
+     */
+    private void warmUp(final S3Client s3, final String bucket) {
+        if (s3WarmUpConnections <= 0) return;
+        final ExecutorService exec = Executors.newFixedThreadPool(s3WarmUpConnections);
+        for (int i = 0; i < s3WarmUpConnections; i++)
+            exec.submit(() -> {
+                try {
+                    s3.headBucket(HeadBucketRequest.builder().bucket(bucket).build());
+                } catch (final Exception e) {
+                    // ignore
+                }
+            });
+        exec.shutdown();
+        try {
+            exec.awaitTermination(s3ConnectionTimeout.toMillis() + s3SocketTimeout.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private static AwsCredentialsProvider resolveCredentialsProvider() {
@@ -226,6 +604,8 @@ public class MarsN5Factory implements Serializable {
      */
     public N5FSReader openFSReader(final String path) {
 
+        if (fsMemoryMapped)
+            return new MarsN5FSReader(path, gsonBuilder, cacheAttributes);
         return new N5FSReader(path, gsonBuilder);
     }
 
@@ -250,6 +630,10 @@ public class MarsN5Factory implements Serializable {
      * For more options of the HDF5 backend study the {@link N5HDF5Reader}
      * constructors.
      *
+     * Block reads through the returned reader are serialized. JHDF5 runs
+     * every native call behind one global lock, so opening more handles on
+     * the same file would not make them parallel.
+     *
      * @param path path to the hdf5 file
      * @return the N5HDF5Reader
      */
@@ -283,13 +667,17 @@ public class MarsN5Factory implements Serializable {
      * @return the N5AmazonS3Reader
      */
     public N5AmazonS3Reader openAWSS3Reader(final String url) {
-        S3Uri s3uri = parseS3Uri(url);
+        final S3Uri s3uri = parseS3Uri(url);
+        final MarsShardedS3Client s3 = createS3(url);
+        warmUp(s3, bucketOf(s3uri, url));
+        prefetchAttributes(s3, bucketOf(s3uri, url), s3uri.key().orElse(""));
 
         return new N5AmazonS3Reader(
-                createS3(url),
+                s3,
                 bucketOf(s3uri, url),
                 s3uri.key().orElse(""),
-                gsonBuilder);
+                gsonBuilder,
+                cacheAttributes);
     }
 
     /**
@@ -300,14 +688,120 @@ public class MarsN5Factory implements Serializable {
      * @return the N5AmazonS3Reader
      */
     public N5AmazonS3Reader openAWSS3ReaderWithEndpoint(final String s3Url, final String endpointUrl) {
-        final S3Client s3 = createS3WithEndpoint(endpointUrl);
+        final MarsShardedS3Client s3 = createS3WithEndpoint(endpointUrl);
         final S3Uri s3uri = s3.utilities().parseUri(URI.create(s3Url));
+        warmUp(s3, bucketOf(s3uri, s3Url));
+        prefetchAttributes(s3, bucketOf(s3uri, s3Url), s3uri.key().orElse(""));
 
         return new N5AmazonS3Reader(
                 s3,
                 bucketOf(s3uri, s3Url),
                 s3uri.key().orElse(""),
-                gsonBuilder);
+                gsonBuilder,
+                cacheAttributes);
+    }
+
+    /**
+     * Open an {@link N5Reader} for an S3 store, picking the implementation
+     * from the metadata at the root: {@link N5ZarrReader} for Zarr v2,
+     * {@link ZarrV3KeyValueReader} for Zarr v3 and {@link N5AmazonS3Reader}
+     * otherwise. OME-NGFF roots are Zarr stores and open the same way.
+     * Consolidated metadata (.zmetadata or consolidated_metadata in the root
+     * zarr.json) is read once and answers all later metadata lookups.
+     *
+     * @param url url to the s3 object
+     * @return the N5Reader
+     */
+    public N5Reader openS3Reader(final String url) {
+        final S3Uri s3uri = parseS3Uri(url);
+        final MarsShardedS3Client s3 = createS3(url);
+        warmUp(s3, bucketOf(s3uri, url));
+        prefetchAttributes(s3, bucketOf(s3uri, url), s3uri.key().orElse(""));
+
+        return openS3Reader(s3, bucketOf(s3uri, url), s3uri.key().orElse(""));
+    }
+
+    /**
+     * Open an {@link N5Reader} for an S3 store on a custom endpoint, see
+     * {@link #openS3Reader(String)}.
+     *
+     * @param s3Url url to the s3 object
+     * @param endpointUrl endpoint url for the server
+     * @return the N5Reader
+     */
+    public N5Reader openS3ReaderWithEndpoint(final String s3Url, final String endpointUrl) {
+        final MarsShardedS3Client s3 = createS3WithEndpoint(endpointUrl);
+        final S3Uri s3uri = s3.utilities().parseUri(URI.create(s3Url));
+        warmUp(s3, bucketOf(s3uri, s3Url));
+        prefetchAttributes(s3, bucketOf(s3uri, s3Url), s3uri.key().orElse(""));
+
+        return openS3Reader(s3, bucketOf(s3uri, s3Url), s3uri.key().orElse(""));
+    }
+
+    private N5Reader openS3Reader(final S3Client s3, final String bucket, final String key) {
+        switch (detectS3Format(s3, bucket, key)) {
+            case ZARR3:
+                return new ZarrV3KeyValueReader(
+                        new AmazonS3KeyValueAccess(s3, bucket, false),
+                        key,
+                        gsonBuilder,
+                        cacheAttributes);
+            case ZARR:
+                return new N5ZarrReader(
+                        new AmazonS3KeyValueAccess(s3, bucket, false),
+                        key,
+                        gsonBuilder,
+                        zarrMapN5DatasetAttributes,
+                        zarrMergeAttributes,
+                        cacheAttributes);
+            case N5:
+            default:
+                return new N5AmazonS3Reader(s3, bucket, key, gsonBuilder, cacheAttributes);
+        }
+    }
+
+    private enum S3StorageFormat { N5, ZARR, ZARR3 }
+
+    /**
+     * Looks for the metadata objects of each format at the root, N5 first
+     * unless the path names a Zarr store. Reading zarr.json and .zmetadata
+     * (rather than HEAD) loads consolidated metadata on the way.
+     */
+    private static S3StorageFormat detectS3Format(final S3Client s3, final String bucket,
+            final String key) {
+        String prefix = key;
+        while (prefix.startsWith("/"))
+            prefix = prefix.substring(1);
+        if (!prefix.isEmpty() && !prefix.endsWith("/"))
+            prefix += "/";
+
+        final boolean zarrPath = key.matches("(?i).*\\.zarr(/.*)?");
+        if (!zarrPath && objectExists(s3, bucket, prefix + "attributes.json", false))
+            return S3StorageFormat.N5;
+        if (objectExists(s3, bucket, prefix + MarsS3MetadataCache.ZARR_V3_METADATA, true))
+            return S3StorageFormat.ZARR3;
+        if (objectExists(s3, bucket, prefix + MarsS3MetadataCache.ZARR_V2_CONSOLIDATED, true) ||
+                objectExists(s3, bucket, prefix + ".zgroup", false) ||
+                objectExists(s3, bucket, prefix + ".zarray", false))
+            return S3StorageFormat.ZARR;
+        return S3StorageFormat.N5;
+    }
+
+    private static boolean objectExists(final S3Client s3, final String bucket,
+            final String key, final boolean read) {
+        try {
+            if (read)
+                s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(key).build());
+            else
+                s3.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+            return true;
+        } catch (final NoSuchKeyException e) {
+            return false;
+        } catch (final S3Exception e) {
+            if (e.statusCode() == 404)
+                return false;
+            throw e;
+        }
     }
 
     /**
@@ -378,16 +872,19 @@ public class MarsN5Factory implements Serializable {
      * Open an {@link N5Writer} for AWS S3.
      *
      * @param url url to the s3 object
-     * @return the N5AmazonS3Writer
+     * @return the MarsN5AmazonS3Writer
      */
-    public N5AmazonS3Writer openAWSS3Writer(final String url) {
-        S3Uri s3uri = parseS3Uri(url);
+    public MarsN5AmazonS3Writer openAWSS3Writer(final String url) {
+        final S3Uri s3uri = parseS3Uri(url);
+        final MarsShardedS3Client s3 = createS3(url);
+        warmUp(s3, bucketOf(s3uri, url));
 
-        return new N5AmazonS3Writer(
-                createS3(url),
+        return new MarsN5AmazonS3Writer(
+                s3,
                 bucketOf(s3uri, url),
                 s3uri.key().orElse(""),
-                gsonBuilder);
+                gsonBuilder,
+                cacheAttributes);
     }
 
     /**
@@ -395,17 +892,19 @@ public class MarsN5Factory implements Serializable {
      *
      * @param s3Url url to the s3 object
      * @param endpointUrl endpoint url to the server
-     * @return the N5AmazonS3Writer
+     * @return the MarsN5AmazonS3Writer
      */
-    public N5AmazonS3Writer openAWSS3WriterWithEndpoint(final String s3Url, final String endpointUrl) {
-        final S3Client s3 = createS3WithEndpoint(endpointUrl);
+    public MarsN5AmazonS3Writer openAWSS3WriterWithEndpoint(final String s3Url, final String endpointUrl) {
+        final MarsShardedS3Client s3 = createS3WithEndpoint(endpointUrl);
         final S3Uri s3uri = s3.utilities().parseUri(URI.create(s3Url));
+        warmUp(s3, bucketOf(s3uri, s3Url));
 
-        return new N5AmazonS3Writer(
+        return new MarsN5AmazonS3Writer(
                 s3,
                 bucketOf(s3uri, s3Url),
                 s3uri.key().orElse(""),
-                gsonBuilder);
+                gsonBuilder,
+                cacheAttributes);
     }
 
     /**
@@ -421,12 +920,12 @@ public class MarsN5Factory implements Serializable {
             final String scheme = uri.getScheme();
             if (scheme == null);
             else if (scheme.equals("s3")) {
-                return openAWSS3Reader(url);
+                return openS3Reader(url);
             } else if (scheme.equals("gs"))
                 return openGoogleCloudReader(url);
             else if (uri.getHost()!= null && scheme.equals("https") || scheme.equals("http")) {
                 if (uri.getHost().matches(".*s3\\.amazonaws\\.com"))
-                    return openAWSS3Reader(url);
+                    return openS3Reader(url);
                 else if (uri.getHost().matches(".*cloud\\.google\\.com") || uri.getHost().matches(".*storage\\.googleapis\\.com"))
                     return openGoogleCloudReader(url);
                 else if (uri.getHost().matches(".*s3\\..*")) {
@@ -438,7 +937,7 @@ public class MarsN5Factory implements Serializable {
                     String path = "///" + uri.getPath();
                     String s3Url = "s3://" + bucket + path;
                     String endpointUrl = uri.getScheme() + "://" + parts[2] + ":" + uri.getPort();
-                    return openAWSS3ReaderWithEndpoint(s3Url, endpointUrl);
+                    return openS3ReaderWithEndpoint(s3Url, endpointUrl);
                 }
             }
         } catch (final URISyntaxException e) {}
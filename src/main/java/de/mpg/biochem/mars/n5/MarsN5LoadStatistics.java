@@ -0,0 +1,320 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.type.NativeType;
+
+/**
+ * Render-pipeline statistics for the sources built by a {@link
+ * MarsN5SourceLoader}. Separates the three places a slow viewer spends time:
+ * <ul>
+ * <li>network: see {@link MarsS3Metrics} for request latency,</li>
+ * <li>load: fetch plus decode time of each block on a fetcher thread,</li>
+ * <li>time-to-valid: from the moment the viewer switched to a timepoint until
+ * each of its blocks became valid, i.e. queue wait plus load.</li>
+ * </ul>
+ * A time-to-valid much larger than the load time means blocks are waiting in
+ * the {@code SharedQueue}; busy fetchers close to the fetcher count mean more
+ * fetcher threads would help. Blocks loaded more than once were evicted from
+ * the cache and refetched, so a high refetch ratio means the cache is too
+ * small for the access pattern. Only the last {@value #MAX_SEEN_BLOCKS}
+ * blocks of each source are remembered, so refetches of blocks loaded longer
+ * ago are not counted.
+ * <p>
+ * Sources are told apart by the UID of their metadata and their name, like
+ * the dimensions kept by {@link MarsN5SourceLoader}.
+ * <p>
+ * Read with {@link #summary()} or show live with {@link
+ * MarsN5LoadStatisticsOverlay}.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5LoadStatistics {
+
+	/** Blocks remembered per source to detect refetches. */
+	public static final int MAX_SEEN_BLOCKS = 65536;
+
+	private final Map<String, Map<String, SourceStatistics>> sources =
+		new ConcurrentHashMap<>();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicInteger peakInFlight = new AtomicInteger();
+
+	private volatile int numFetcherThreads = 0;
+
+	/** Statistics for a single source, created on first use. */
+	public SourceStatistics forSource(final String metaUID,
+		final String sourceName)
+	{
+		return sources.computeIfAbsent(metaUID, k -> new ConcurrentHashMap<>())
+			.computeIfAbsent(sourceName, name -> new SourceStatistics(metaUID,
+				name));
+	}
+
+	/** Statistics of a source, or null if nothing was recorded for it. */
+	public SourceStatistics getSource(final String metaUID,
+		final String sourceName)
+	{
+		final Map<String, SourceStatistics> m = sources.get(metaUID);
+		return (m == null) ? null : m.get(sourceName);
+	}
+
+	/** Statistics of all sources, ordered by name. */
+	public List<SourceStatistics> getSources() {
+		final List<SourceStatistics> list = new ArrayList<>();
+		for (Map<String, SourceStatistics> m : sources.values())
+			list.addAll(m.values());
+		list.sort(Comparator.comparing(SourceStatistics::getName).thenComparing(
+			SourceStatistics::getMetaUID));
+		return list;
+	}
+
+	/** Fetcher threads of the queue used for volatile loading. */
+	public void setNumFetcherThreads(final int numFetcherThreads) {
+		this.numFetcherThreads = numFetcherThreads;
+	}
+
+	/** Blocks currently being fetched and decoded. */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public int getPeakInFlight() {
+		return peakInFlight.get();
+	}
+
+	/**
+	 * Marks the timepoint a volatile source is being asked to render. Repeated
+	 * calls for the same timepoint are cheap and keep the original request
+	 * time.
+	 */
+	public void timePointRequested(final String metaUID,
+		final String sourceName, final int t)
+	{
+		forSource(metaUID, sourceName).timePointRequested(t);
+	}
+
+	/**
+	 * Wraps a cell loader so every block it loads is recorded against the named
+	 * source. The time axis is assumed to be the last dimension.
+	 */
+	public <T extends NativeType<T>> CellLoader<T> instrument(
+		final String metaUID, final String sourceName,
+		final DatasetAttributes attributes, final CellLoader<T> loader)
+	{
+		final SourceStatistics stats = forSource(metaUID, sourceName);
+		final long bytesPerElement = Math.max(1, DatasetEntry.bitsPerElement(
+			attributes.getDataType()) / 8);
+		return cell -> {
+			final int current = inFlight.incrementAndGet();
+			peakInFlight.accumulateAndGet(current, Math::max);
+			final long start = System.nanoTime();
+			try {
+				loader.load(cell);
+			}
+			catch (final Exception e) {
+				stats.failures.incrementAndGet();
+				throw e;
+			}
+			finally {
+				inFlight.decrementAndGet();
+			}
+			stats.blockLoaded(cell, start, System.nanoTime(), bytesPerElement);
+		};
+	}
+
+	public void reset() {
+		sources.clear();
+		peakInFlight.set(inFlight.get());
+	}
+
+	/** Multi-line, human-readable summary of all sources. */
+	public String summary() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("fetchers busy %d/%d (peak %d)", inFlight.get(),
+			numFetcherThreads, peakInFlight.get()));
+		sb.append(System.lineSeparator());
+		for (SourceStatistics s : getSources())
+			sb.append(s).append(System.lineSeparator());
+		sb.append("network: ").append(MarsS3Metrics.getInstance().snapshot());
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return summary();
+	}
+
+	/** Counters for one source. */
+	public static class SourceStatistics {
+
+		private final String metaUID;
+
+		private final String name;
+
+		private final AtomicLong blocksLoaded = new AtomicLong();
+
+		private final AtomicLong blocksRefetched = new AtomicLong();
+
+		private final AtomicLong bytesDecoded = new AtomicLong();
+
+		private final AtomicLong loadNanos = new AtomicLong();
+
+		private final AtomicLong timeToValidNanos = new AtomicLong();
+
+		private final AtomicLong maxTimeToValidNanos = new AtomicLong();
+
+		private final AtomicLong timedBlocks = new AtomicLong();
+
+		private final AtomicLong failures = new AtomicLong();
+
+		// Hashes of the positions of the blocks loaded last.
+		private final Map<Long, Boolean> seenBlocks = Collections.synchronizedMap(
+			new LinkedHashMap<Long, Boolean>(16, 0.75f, true)
+			{
+
+				@Override
+				protected boolean removeEldestEntry(
+					final Map.Entry<Long, Boolean> eldest)
+				{
+					return size() > MAX_SEEN_BLOCKS;
+				}
+			});
+
+		// Timepoint currently requested by the viewer and when it was requested.
+		private volatile int requestedT = -1;
+
+		private volatile long requestedAtNanos;
+
+		SourceStatistics(final String metaUID, final String name) {
+			this.metaUID = metaUID;
+			this.name = name;
+		}
+
+		void timePointRequested(final int t) {
+			if (t == requestedT) return;
+			requestedAtNanos = System.nanoTime();
+			requestedT = t;
+		}
+
+		void blockLoaded(final SingleCellArrayImg<?, ?> cell, final long start,
+			final long end, final long bytesPerElement)
+		{
+			final int n = cell.numDimensions();
+			long key = 1;
+			long elements = 1;
+			for (int d = 0; d < n; d++) {
+				key = key * 0x9E3779B97F4A7C15L + cell.min(d);
+				elements *= cell.dimension(d);
+			}
+			blocksLoaded.incrementAndGet();
+			if (seenBlocks.put(key, Boolean.TRUE) != null) blocksRefetched
+				.incrementAndGet();
+			bytesDecoded.addAndGet(elements * bytesPerElement);
+			loadNanos.addAndGet(end - start);
+
+			// Only blocks of the timepoint on screen have a meaningful time-to-valid.
+			final int t = requestedT;
+			if (t >= 0 && cell.min(n - 1) <= t && t <= cell.max(n - 1)) {
+				final long ttv = end - requestedAtNanos;
+				timedBlocks.incrementAndGet();
+				timeToValidNanos.addAndGet(ttv);
+				maxTimeToValidNanos.accumulateAndGet(ttv, Math::max);
+			}
+		}
+
+		public String getMetaUID() {
+			return metaUID;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getBlocksLoaded() {
+			return blocksLoaded.get();
+		}
+
+		public long getBlocksRefetched() {
+			return blocksRefetched.get();
+		}
+
+		/** Fraction of loads that refetched a block already loaded once. */
+		public double getRefetchRatio() {
+			final long loaded = blocksLoaded.get();
+			return loaded == 0 ? 0 : (double) blocksRefetched.get() / loaded;
+		}
+
+		public long getBytesDecoded() {
+			return bytesDecoded.get();
+		}
+
+		public long getFailures() {
+			return failures.get();
+		}
+
+		public double getMeanLoadMillis() {
+			final long loaded = blocksLoaded.get();
+			return loaded == 0 ? 0 : loadNanos.get() / 1e6 / loaded;
+		}
+
+		public double getMeanTimeToValidMillis() {
+			final long timed = timedBlocks.get();
+			return timed == 0 ? 0 : timeToValidNanos.get() / 1e6 / timed;
+		}
+
+		public double getMaxTimeToValidMillis() {
+			return maxTimeToValidNanos.get() / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+				"%s (%s): %d blocks (%.0f%% refetched, %d failed), %s decoded, load %.1f ms, time-to-valid %.1f ms (max %.1f ms)",
+				name, metaUID, getBlocksLoaded(), 100 * getRefetchRatio(), getFailures(),
+				DatasetEntry.humanReadableBytes(getBytesDecoded()), getMeanLoadMillis(),
+				getMeanTimeToValidMillis(), getMaxTimeToValidMillis());
+		}
+	}
+}
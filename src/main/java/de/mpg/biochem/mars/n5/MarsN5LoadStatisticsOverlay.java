@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+
+import bdv.util.BdvOverlay;
+
+/**
+ * Optional BigDataViewer overlay printing the live {@link
+ * MarsN5LoadStatistics} summary in the top left corner. Add it with
+ * {@code BdvFunctions.showOverlay(overlay, "load statistics",
+ * Bdv.options().addTo(bdv))} while tuning fetcher counts and cache sizes.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5LoadStatisticsOverlay extends BdvOverlay {
+
+	private final MarsN5LoadStatistics statistics;
+
+	public MarsN5LoadStatisticsOverlay(final MarsN5LoadStatistics statistics) {
+		this.statistics = statistics;
+	}
+
+	@Override
+	protected void draw(final Graphics2D g) {
+		g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+		final int lineHeight = g.getFontMetrics().getHeight();
+		int y = lineHeight + 4;
+		for (String line : statistics.summary().split(System.lineSeparator())) {
+			g.setColor(Color.BLACK);
+			g.drawString(line, 9, y + 1);
+			g.setColor(Color.WHITE);
+			g.drawString(line, 8, y);
+			y += lineHeight;
+		}
+	}
+}
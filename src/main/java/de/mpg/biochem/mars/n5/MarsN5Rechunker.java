@@ -0,0 +1,237 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+/**
+ * Copies a dataset into a new chunking, e.g. from one frame per chunk to
+ * 64x64x1x1x512 chunks for reading long time series of small windows.
+ * <p>
+ * Output blocks are written in parallel, in an order that keeps all output
+ * blocks cut from the same source chunks together. Source chunks are held in
+ * a cache bounded by {@link #maxMemoryBytes}, so with enough memory for one
+ * group of source chunks every source chunk is read once; with less, groups
+ * are read again and a warning is printed. At most twice the number of
+ * threads output blocks are in flight.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5Rechunker {
+
+    private final MarsN5Factory factory;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private long maxMemoryBytes = 2L * 1024 * 1024 * 1024;
+    private Compression compression = null;
+    private DoubleConsumer progress = p -> {};
+
+    public MarsN5Rechunker() {
+        this(new MarsN5Factory());
+    }
+
+    public MarsN5Rechunker(final MarsN5Factory factory) {
+        this.factory = factory;
+    }
+
+    public MarsN5Rechunker numThreads(final int numThreads) {
+        this.numThreads = numThreads;
+        return this;
+    }
+
+    /** Memory for cached source chunks. */
+    public MarsN5Rechunker maxMemoryBytes(final long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        return this;
+    }
+
+    /** Compression of the new dataset, null to keep that of the source. */
+    public MarsN5Rechunker compression(final Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /** Receives the fraction of output blocks written. */
+    public MarsN5Rechunker progress(final DoubleConsumer progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Rechunk a dataset, opening source and target with the factory. Source
+     * and target can be any root the factory opens, e.g. MinIO or local.
+     */
+    public void rechunk(final String sourceUrl, final String sourceDataset,
+            final String targetUrl, final String targetDataset, final int[] blockSize)
+            throws IOException {
+        final N5Reader reader = factory.openReader(sourceUrl);
+        final N5Writer writer = factory.openWriter(targetUrl);
+        try {
+            rechunk(reader, sourceDataset, writer, targetDataset, blockSize);
+        } finally {
+            writer.close();
+            reader.close();
+        }
+    }
+
+    public <T extends NativeType<T>> void rechunk(final N5Reader reader,
+            final String sourceDataset, final N5Writer writer, final String targetDataset,
+            final int[] blockSize) throws IOException {
+        final DatasetAttributes source = reader.getDatasetAttributes(sourceDataset);
+        final long[] dimensions = source.getDimensions();
+        final int n = dimensions.length;
+        final int[] sourceBlockSize = source.getBlockSize();
+        if (blockSize.length != n)
+            throw new IllegalArgumentException("Expected a block size with " + n +
+                    " dimensions");
+
+        // output blocks cut from the same source chunks form a group
+        final long[] gridSize = new long[n];
+        final long[] groupSize = new long[n];
+        long groupCells = 1;
+        for (int d = 0; d < n; d++) {
+            gridSize[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+            groupSize[d] = Math.min(gridSize[d], Math.max(1, sourceBlockSize[d] /
+                    blockSize[d]));
+            groupCells *= (groupSize[d] * blockSize[d] + sourceBlockSize[d] - 1) /
+                    sourceBlockSize[d] + 1;
+        }
+        long sourceCellBytes = DatasetEntry.bitsPerElement(source.getDataType()) / 8;
+        for (int s : sourceBlockSize)
+            sourceCellBytes *= s;
+        final int maxNumCells = (int) Math.max(numThreads, Math.min(Integer.MAX_VALUE,
+                maxMemoryBytes / Math.max(1, sourceCellBytes)));
+        if (maxNumCells < groupCells)
+            System.out.println("Rechunking " + sourceDataset + " with " +
+                    DatasetEntry.humanReadableBytes(maxMemoryBytes) + " of cache, " +
+                    DatasetEntry.humanReadableBytes(groupCells * sourceCellBytes) +
+                    " would avoid reading source chunks more than once.");
+
+        final RandomAccessibleInterval<T> img = N5Utils.openWithBoundedSoftRefCache(reader,
+                sourceDataset, maxNumCells);
+        writer.createDataset(targetDataset, dimensions, blockSize, source.getDataType(),
+                compression != null ? compression : source.getCompression());
+        writeBlocks(img, writer, targetDataset, groupSize);
+    }
+
+    /**
+     * Write an image into an existing dataset of the same size, group by group
+     * of blocks, e.g. the source chunks output blocks are cut from or the
+     * chunks of one shard. Sharded writers store each shard as soon as its
+     * last chunk is written, so only the shards being written are held in
+     * memory.
+     *
+     * @param groupSize size of a group in blocks
+     */
+    public <T extends NativeType<T>> void writeBlocks(final RandomAccessibleInterval<T> img,
+            final N5Writer writer, final String dataset, final long[] groupSize)
+            throws IOException {
+        final DatasetAttributes target = writer.getDatasetAttributes(dataset);
+        final long[] dimensions = target.getDimensions();
+        final int[] blockSize = target.getBlockSize();
+        final T type = Util.getTypeFromInterval(img);
+
+        final long[] gridSize = new long[dimensions.length];
+        long total = 1;
+        for (int d = 0; d < dimensions.length; d++) {
+            gridSize[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+            total *= gridSize[d];
+        }
+        final long numBlocks = total;
+        final AtomicLong written = new AtomicLong();
+        try (BoundedExecutor exec = new BoundedExecutor(numThreads)) {
+            for (long[] gridPosition : new GroupedGrid(gridSize, groupSize)) {
+                exec.submit(() -> {
+                    writer.writeBlock(dataset, target, readBlock(img, type,
+                            target.getDataType(), blockSize, gridPosition));
+                    final long done = written.incrementAndGet();
+                    if (done % 64 == 0 || done == numBlocks)
+                        progress.accept((double) done / numBlocks);
+                    return null;
+                });
+            }
+            exec.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            throw new IOException("Could not write " + dataset, e.getCause());
+        }
+    }
+
+    /**
+     * Copies the block at a grid position of an image into a DataBlock,
+     * clipped at the image border.
+     */
+    public static <T extends NativeType<T>> DataBlock<?> readBlock(
+            final RandomAccessibleInterval<T> img, final T type, final DataType dataType,
+            final int[] blockSize, final long[] gridPosition) {
+        final int n = img.numDimensions();
+        final long[] min = new long[n];
+        final long[] max = new long[n];
+        final int[] size = new int[n];
+        int numElements = 1;
+        for (int d = 0; d < n; d++) {
+            min[d] = img.min(d) + gridPosition[d] * blockSize[d];
+            max[d] = Math.min(img.max(d), min[d] + blockSize[d] - 1);
+            size[d] = (int) (max[d] - min[d] + 1);
+            numElements *= size[d];
+        }
+
+        final ArrayImg<T, ?> copy = new ArrayImgFactory<>(type).create(size);
+        LoopBuilder.setImages(Views.zeroMin(Views.interval(img, new FinalInterval(min, max))),
+                copy).forEachPixel((s, t) -> t.set(s));
+
+        final Object data = ((ArrayDataAccess<?>) copy.update(null)).getCurrentStorageArray();
+        final DataBlock<?> block = dataType.createDataBlock(size, gridPosition.clone(),
+                numElements);
+        System.arraycopy(data, 0, block.getData(), 0, numElements);
+        return block;
+    }
+}
@@ -0,0 +1,509 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+/**
+ * Computes projections and intensity statistics of a dataset while reading
+ * each block exactly once, e.g. max and mean projections over time and the
+ * histogram of a movie for peak finding and contrast. Blocks are read in
+ * parallel and folded into the projections (guarded per output tile) and
+ * into per-thread statistics, so memory is bound by the projections plus
+ * the blocks in flight, never by the dataset. Blocks that were never
+ * written count as zeros.
+ * <p>
+ * {@link Result#write} stores projections under the "marsProjections" group
+ * (e.g. marsProjections/Pos0/max) and the statistics as the
+ * "marsStatistics" attribute.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5Reducer {
+
+    /** Group of the root that holds the projections of all datasets. */
+    public static final String PROJECTIONS_GROUP = "marsProjections";
+
+    private final MarsN5Factory factory;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int axis = -1;
+    private boolean maxProjection = false;
+    private boolean minProjection = false;
+    private boolean meanProjection = false;
+    private int numBins = 0;
+    private double histogramMin = Double.NaN;
+    private double histogramMax = Double.NaN;
+    private DoubleConsumer progress = p -> {};
+
+    public MarsN5Reducer() {
+        this(new MarsN5Factory());
+    }
+
+    public MarsN5Reducer(final MarsN5Factory factory) {
+        this.factory = factory;
+    }
+
+    public MarsN5Reducer numThreads(final int numThreads) {
+        this.numThreads = numThreads;
+        return this;
+    }
+
+    /** Axis of the projections, default the last (t of XYZCT). */
+    public MarsN5Reducer axis(final int axis) {
+        this.axis = axis;
+        return this;
+    }
+
+    public MarsN5Reducer maxProjection(final boolean maxProjection) {
+        this.maxProjection = maxProjection;
+        return this;
+    }
+
+    public MarsN5Reducer minProjection(final boolean minProjection) {
+        this.minProjection = minProjection;
+        return this;
+    }
+
+    public MarsN5Reducer meanProjection(final boolean meanProjection) {
+        this.meanProjection = meanProjection;
+        return this;
+    }
+
+    /**
+     * Histogram with equal bins over [min, max), values outside are counted
+     * in the first and last bin. Integer types up to 16 bit can use
+     * {@link #histogram(int)} for their full range.
+     */
+    public MarsN5Reducer histogram(final int numBins, final double min, final double max) {
+        this.numBins = numBins;
+        this.histogramMin = min;
+        this.histogramMax = max;
+        return this;
+    }
+
+    /** Histogram over the full range of the data type. */
+    public MarsN5Reducer histogram(final int numBins) {
+        return histogram(numBins, Double.NaN, Double.NaN);
+    }
+
+    /** Receives the fraction of blocks folded in. */
+    public MarsN5Reducer progress(final DoubleConsumer progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /** Reduce a dataset of any root the factory opens. */
+    public Result reduce(final String url, final String dataset) throws IOException {
+        try (N5Reader reader = factory.openReader(url)) {
+            return reduce(reader, dataset);
+        }
+    }
+
+    public Result reduce(final N5Reader reader, final String dataset) throws IOException {
+        final DatasetAttributes attributes = reader.getDatasetAttributes(dataset);
+        if (attributes == null)
+            throw new IllegalArgumentException(dataset + " is not a dataset");
+        final long[] dimensions = attributes.getDimensions();
+        final int[] blockSize = attributes.getBlockSize();
+        final int n = dimensions.length;
+        final int projectionAxis = axis < 0 ? n - 1 : axis;
+        if (projectionAxis >= n)
+            throw new IllegalArgumentException(dataset + " has no axis " + projectionAxis);
+        final boolean unsigned = DatasetEntry.isUnsigned(attributes.getDataType());
+
+        double binMin = histogramMin;
+        double binMax = histogramMax;
+        if (numBins > 0 && (Double.isNaN(binMin) || Double.isNaN(binMax))) {
+            final int bits = DatasetEntry.bitsPerElement(attributes.getDataType());
+            final DataType type = attributes.getDataType();
+            if (bits > 16 || type == DataType.FLOAT32 || type == DataType.FLOAT64)
+                throw new IllegalArgumentException("Set a histogram range for " + type);
+            binMin = unsigned ? 0 : -(1L << (bits - 1));
+            binMax = binMin + (1L << bits);
+        }
+
+        final Result result = new Result(dimensions, blockSize, projectionAxis,
+                maxProjection, minProjection, meanProjection, numBins, binMin, binMax);
+        final Map<String, Object> tileLocks = new ConcurrentHashMap<>();
+        final List<Statistics> statistics = Collections.synchronizedList(new ArrayList<>());
+        final ThreadLocal<Statistics> localStatistics = ThreadLocal.withInitial(() -> {
+            final Statistics s = new Statistics(numBins);
+            statistics.add(s);
+            return s;
+        });
+
+        final long[] gridSize = new long[n];
+        long total = 1;
+        for (int d = 0; d < n; d++) {
+            gridSize[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+            total *= gridSize[d];
+        }
+        final long numBlocks = total;
+        final AtomicLong folded = new AtomicLong();
+        try (BoundedExecutor exec = new BoundedExecutor(numThreads)) {
+            final long[] gridPosition = new long[n];
+            for (long b = 0; b < numBlocks; b++) {
+                final long[] position = gridPosition.clone();
+                exec.submit(() -> {
+                    final DataBlock<?> block = reader.readBlock(dataset, attributes,
+                            position);
+                    final double[] values = toDoubles(block, blockSize, dimensions,
+                            position, unsigned);
+                    final int[] size = blockDimensions(blockSize, dimensions, position);
+                    localStatistics.get().fold(values, result);
+                    if (result.projectionSize > 0) {
+                        final Object lock = tileLocks.computeIfAbsent(tileKey(position,
+                                projectionAxis), k -> new Object());
+                        synchronized (lock) {
+                            result.fold(values, size, position);
+                        }
+                    }
+                    final long done = folded.incrementAndGet();
+                    if (done % 64 == 0 || done == numBlocks)
+                        progress.accept((double) done / numBlocks);
+                    return null;
+                });
+                for (int d = 0; d < n && ++gridPosition[d] == gridSize[d]; d++)
+                    gridPosition[d] = 0;
+            }
+            exec.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            throw new IOException("Could not reduce " + dataset, e.getCause());
+        }
+
+        for (Statistics s : statistics)
+            result.merge(s);
+        return result;
+    }
+
+    private static String tileKey(final long[] gridPosition, final int axis) {
+        final StringBuilder key = new StringBuilder();
+        for (int d = 0; d < gridPosition.length; d++)
+            if (d != axis)
+                key.append(gridPosition[d]).append(',');
+        return key.toString();
+    }
+
+    private static int[] blockDimensions(final int[] blockSize, final long[] dimensions,
+            final long[] gridPosition) {
+        final int[] size = new int[blockSize.length];
+        for (int d = 0; d < size.length; d++)
+            size[d] = (int) Math.min(blockSize[d], dimensions[d] - gridPosition[d] *
+                    blockSize[d]);
+        return size;
+    }
+
+    /**
+     * Values of a block clipped to the dataset, first dimension fastest. Blocks
+     * that were not written are zeros.
+     */
+    private static double[] toDoubles(final DataBlock<?> block, final int[] blockSize,
+            final long[] dimensions, final long[] gridPosition, final boolean unsigned) {
+        final int[] size = blockDimensions(blockSize, dimensions, gridPosition);
+        int numElements = 1;
+        for (int s : size)
+            numElements *= s;
+        final double[] values = new double[numElements];
+        if (block == null) return values;
+
+        // Zarr stores full blocks at the border, N5 clipped ones
+        final int[] stored = block.getSize();
+        final Object data = block.getData();
+        final int n = size.length;
+        final int[] position = new int[n];
+        for (int i = 0; i < numElements; i++) {
+            int index = 0;
+            for (int d = n - 1; d >= 0; d--)
+                index = index * stored[d] + position[d];
+            values[i] = DatasetEntry.value(data, index, unsigned);
+            for (int d = 0; d < n && ++position[d] == size[d]; d++)
+                position[d] = 0;
+        }
+        return values;
+    }
+
+    /**
+     * Group holding the projections of a dataset, e.g. marsProjections/Pos0
+     * for Pos0, so they do not show up next to the datasets of the root.
+     */
+    public static String projectionGroup(final String dataset) {
+        return PROJECTIONS_GROUP + "/" + dataset.replaceAll("^/+|/+$", "");
+    }
+
+    /** Statistics of the blocks folded in by one thread. */
+    private static final class Statistics {
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        long count = 0;
+        final long[] histogram;
+
+        Statistics(final int numBins) {
+            histogram = new long[numBins];
+        }
+
+        void fold(final double[] values, final Result result) {
+            final int bins = histogram.length;
+            final double scale = bins / (result.histogramMax - result.histogramMin);
+            for (double v : values) {
+                if (v < min) min = v;
+                if (v > max) max = v;
+                sum += v;
+                if (bins > 0)
+                    histogram[(int) Math.max(0, Math.min(bins - 1, (v - result.histogramMin) *
+                            scale))]++;
+            }
+            count += values.length;
+        }
+    }
+
+    /**
+     * Projections along one axis, stored with the projection axis removed and
+     * the first remaining dimension fastest, and global statistics.
+     */
+    public static final class Result {
+
+        private final long[] dimensions;
+        private final int[] blockSize;
+        private final int axis;
+        private final long[] projectionDimensions;
+        private final int projectionSize;
+        private final double[] max;
+        private final double[] min;
+        private final double[] sum;
+        private final long[] histogram;
+        private final double histogramMin;
+        private final double histogramMax;
+        private double globalMin = Double.POSITIVE_INFINITY;
+        private double globalMax = Double.NEGATIVE_INFINITY;
+        private double globalSum = 0;
+        private long count = 0;
+
+        private Result(final long[] dimensions, final int[] blockSize, final int axis,
+                final boolean maxProjection, final boolean minProjection,
+                final boolean meanProjection, final int numBins, final double histogramMin,
+                final double histogramMax) {
+            this.dimensions = dimensions;
+            this.blockSize = blockSize;
+            this.axis = axis;
+            this.projectionDimensions = new long[dimensions.length - 1];
+            long size = 1;
+            for (int d = 0, p = 0; d < dimensions.length; d++)
+                if (d != axis) {
+                    projectionDimensions[p++] = dimensions[d];
+                    size *= dimensions[d];
+                }
+            final boolean anyProjection = maxProjection || minProjection || meanProjection;
+            if (anyProjection && size > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Projection with " + size +
+                        " elements is too large");
+            this.projectionSize = anyProjection ? (int) size : 0;
+            this.max = maxProjection ? filled(projectionSize, Double.NEGATIVE_INFINITY) : null;
+            this.min = minProjection ? filled(projectionSize, Double.POSITIVE_INFINITY) : null;
+            this.sum = meanProjection ? new double[projectionSize] : null;
+            this.histogram = numBins > 0 ? new long[numBins] : null;
+            this.histogramMin = histogramMin;
+            this.histogramMax = histogramMax;
+        }
+
+        private static double[] filled(final int size, final double value) {
+            final double[] array = new double[size];
+            Arrays.fill(array, value);
+            return array;
+        }
+
+        /** Fold a block into the projections, called under the tile lock. */
+        private void fold(final double[] values, final int[] size, final long[] gridPosition) {
+            final int n = size.length;
+            final int[] position = new int[n];
+            for (int i = 0; i < values.length; i++) {
+                long index = 0;
+                for (int d = n - 1; d >= 0; d--)
+                    if (d != axis)
+                        index = index * dimensions[d] + gridPosition[d] * blockSize[d] +
+                                position[d];
+                final int p = (int) index;
+                final double v = values[i];
+                if (max != null && v > max[p]) max[p] = v;
+                if (min != null && v < min[p]) min[p] = v;
+                if (sum != null) sum[p] += v;
+                for (int d = 0; d < n && ++position[d] == size[d]; d++)
+                    position[d] = 0;
+            }
+        }
+
+        private void merge(final Statistics s) {
+            globalMin = Math.min(globalMin, s.min);
+            globalMax = Math.max(globalMax, s.max);
+            globalSum += s.sum;
+            count += s.count;
+            if (histogram != null)
+                for (int i = 0; i < histogram.length; i++)
+                    histogram[i] += s.histogram[i];
+        }
+
+        /** Dimensions of the projections, the dataset without the projection axis. */
+        public long[] getProjectionDimensions() {
+            return projectionDimensions;
+        }
+
+        public double[] getMaxProjection() {
+            return max;
+        }
+
+        public double[] getMinProjection() {
+            return min;
+        }
+
+        public double[] getMeanProjection() {
+            if (sum == null) return null;
+            final double[] mean = new double[projectionSize];
+            for (int i = 0; i < projectionSize; i++)
+                mean[i] = sum[i] / dimensions[axis];
+            return mean;
+        }
+
+        public double getMin() {
+            return globalMin;
+        }
+
+        public double getMax() {
+            return globalMax;
+        }
+
+        public double getMean() {
+            return count > 0 ? globalSum / count : Double.NaN;
+        }
+
+        public long[] getHistogram() {
+            return histogram;
+        }
+
+        public double getHistogramMin() {
+            return histogramMin;
+        }
+
+        public double getHistogramMax() {
+            return histogramMax;
+        }
+
+        /**
+         * Store the projections as FLOAT32 datasets max, min and mean in the
+         * {@link MarsN5Reducer#projectionGroup(String) projection group} of the
+         * source, with the block size of the source, and the statistics as the
+         * "marsStatistics" attribute of the source dataset.
+         */
+        public void write(final N5Writer writer, final String dataset) {
+            final DatasetAttributes source = writer.getDatasetAttributes(dataset);
+            final int[] projectionBlockSize = new int[projectionDimensions.length];
+            for (int d = 0, p = 0; d < blockSize.length; d++)
+                if (d != axis)
+                    projectionBlockSize[p++] = blockSize[d];
+            final String group = projectionGroup(dataset);
+            if (max != null)
+                writeProjection(writer, group + "/max", max, projectionBlockSize, source);
+            if (min != null)
+                writeProjection(writer, group + "/min", min, projectionBlockSize, source);
+            if (sum != null)
+                writeProjection(writer, group + "/mean", getMeanProjection(),
+                        projectionBlockSize, source);
+
+            final Map<String, Object> statistics = new LinkedHashMap<>();
+            statistics.put("min", globalMin);
+            statistics.put("max", globalMax);
+            statistics.put("mean", getMean());
+            if (histogram != null) {
+                statistics.put("histogramMin", histogramMin);
+                statistics.put("histogramMax", histogramMax);
+                statistics.put("histogram", histogram);
+            }
+            writer.setAttribute(dataset, "marsStatistics", statistics);
+        }
+
+        private void writeProjection(final N5Writer writer, final String path,
+                final double[] values, final int[] projectionBlockSize,
+                final DatasetAttributes source) {
+            writer.createDataset(path, projectionDimensions, projectionBlockSize,
+                    DataType.FLOAT32, source.getCompression());
+            final DatasetAttributes attributes = writer.getDatasetAttributes(path);
+            final int n = projectionDimensions.length;
+            final long[] gridSize = new long[n];
+            long numBlocks = 1;
+            for (int d = 0; d < n; d++) {
+                gridSize[d] = (projectionDimensions[d] + projectionBlockSize[d] - 1) /
+                        projectionBlockSize[d];
+                numBlocks *= gridSize[d];
+            }
+            final long[] gridPosition = new long[n];
+            for (long b = 0; b < numBlocks; b++) {
+                final int[] size = blockDimensions(projectionBlockSize, projectionDimensions,
+                        gridPosition);
+                int numElements = 1;
+                for (int s : size)
+                    numElements *= s;
+                final DataBlock<?> block = DataType.FLOAT32.createDataBlock(size,
+                        gridPosition.clone(), numElements);
+                final float[] data = (float[]) block.getData();
+                final int[] position = new int[n];
+                for (int i = 0; i < numElements; i++) {
+                    long index = 0;
+                    for (int d = n - 1; d >= 0; d--)
+                        index = index * projectionDimensions[d] + gridPosition[d] *
+                                projectionBlockSize[d] + position[d];
+                    data[i] = (float) values[(int) index];
+                    for (int d = 0; d < n && ++position[d] == size[d]; d++)
+                        position[d] = 0;
+                }
+                writer.writeBlock(path, attributes, block);
+                for (int d = 0; d < n && ++gridPosition[d] == gridSize[d]; d++)
+                    gridPosition[d] = 0;
+            }
+        }
+    }
+}
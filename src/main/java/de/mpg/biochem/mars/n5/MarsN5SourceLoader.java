@@ -29,10 +29,13 @@
 package de.mpg.biochem.mars.n5;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.imglib2.N5CellLoader;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 
 import bdv.util.volatiles.SharedQueue;
@@ -40,9 +43,13 @@ import bdv.viewer.Source;
 import de.mpg.biochem.mars.metadata.MarsBdvSource;
 import de.mpg.biochem.mars.metadata.MarsMetadata;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
@@ -59,6 +66,13 @@ import net.imglib2.view.Views;
  * Reader and dimension caches are instance-level: create one loader per
  * logical scope (a viewer frame, a batch export, a command run) and let it be
  * garbage collected, or call {@link #close()}, to release the N5 readers.
+ * <p>
+ * Volatile loads are instrumented: {@link #getStatistics()} reports block
+ * loads, decoded bytes and time-to-valid per source.
+ * <p>
+ * Sources can be limited to a time window, e.g. the frames an archive
+ * covers in a long movie. Views, drift transforms and reported dimensions
+ * then cover only the window, and timepoints are counted from its start.
  *
  * @author Karl Duderstadt
  */
@@ -70,41 +84,111 @@ public class MarsN5SourceLoader {
 	private final Map<String, Map<String, long[]>> sourceDimensions =
 		new HashMap<>();
 
+	// metaUID -> (sourceName -> first and last frame) of time-bounded sources
+	private final Map<String, Map<String, long[]>> timeRanges = new HashMap<>();
+
 	// Largest time dimension seen across sources loaded by this instance.
 	private int numTimePoints = 1;
 
+	private final MarsN5LoadStatistics statistics = new MarsN5LoadStatistics();
+
+	private final MarsN5Factory factory;
+
+	public MarsN5SourceLoader() {
+		this(new MarsN5Factory());
+	}
+
+	/** Loader whose readers are opened with the given factory settings. */
+	public MarsN5SourceLoader(final MarsN5Factory factory) {
+		this.factory = factory;
+	}
+
 	/** Non-volatile load: all pixels present on read. Use for pixel scanning. */
 	public <T extends NumericType<T> & NativeType<T>> Source<T> loadN5Source(
 		final MarsBdvSource source, final MarsMetadata meta) throws IOException
 	{
-		return build(source, meta, false, null);
+		return build(source, meta, false, null, null);
+	}
+
+	/**
+	 * Non-volatile load of the frames tMin to tMax (inclusive) only. The
+	 * source's timepoint 0 is frame tMin; see {@link #getTimeRange}.
+	 */
+	public <T extends NumericType<T> & NativeType<T>> Source<T> loadN5Source(
+		final MarsBdvSource source, final MarsMetadata meta, final long tMin,
+		final long tMax) throws IOException
+	{
+		return build(source, meta, false, null, new long[] { tMin, tMax });
 	}
 
-	/** Volatile load: progressive on-demand loading. Use for the viewer only. */
+	/**
+	 * Volatile load: progressive on-demand loading. Use for the viewer only.
+	 * Pass a {@link MarsSharedQueue} so requests for frames the user has left
+	 * are demoted behind the frame on screen, or a
+	 * {@link MarsVirtualThreadSharedQueue} to also load many blocks at once
+	 * over high-latency connections.
+	 */
 	public <T extends NumericType<T> & NativeType<T>> Source<T>
 		loadN5VolatileSource(final MarsBdvSource source, final MarsMetadata meta,
 			final SharedQueue sharedQueue) throws IOException
 	{
-		return build(source, meta, true, sharedQueue);
+		return build(source, meta, true, sharedQueue, null);
+	}
+
+	/**
+	 * Volatile load of the frames tMin to tMax (inclusive) only. Views,
+	 * drift transforms and requests are limited to that window, and the
+	 * source's timepoint 0 is frame tMin; see {@link #getTimeRange}.
+	 */
+	public <T extends NumericType<T> & NativeType<T>> Source<T>
+		loadN5VolatileSource(final MarsBdvSource source, final MarsMetadata meta,
+			final SharedQueue sharedQueue, final long tMin, final long tMax)
+			throws IOException
+	{
+		return build(source, meta, true, sharedQueue, new long[] { tMin, tMax });
+	}
+
+	/**
+	 * Block stream for consumers that scan every pixel of a source's dataset:
+	 * each block is read once, in storage order, with {@code prefetch} blocks
+	 * read ahead in parallel. Cheaper than scanning {@link #loadN5Source} in
+	 * display order, which can evict and refetch cells. Close the iterator
+	 * when stopping early.
+	 */
+	public MarsN5BlockIterator iterateBlocks(final MarsBdvSource source,
+		final int numThreads, final int prefetch)
+	{
+		return new MarsN5BlockIterator(getReader(source), source.getN5Dataset(),
+			numThreads, prefetch);
+	}
+
+	/** As {@link #iterateBlocks(MarsBdvSource, int, int)} in the given order. */
+	public MarsN5BlockIterator iterateBlocks(final MarsBdvSource source,
+		final Iterable<long[]> order, final int numThreads, final int prefetch)
+	{
+		return new MarsN5BlockIterator(getReader(source), source.getN5Dataset(),
+			order, numThreads, prefetch);
+	}
+
+	private N5Reader getReader(final MarsBdvSource source) {
+		if (n5Readers.containsKey(source.getPath())) return n5Readers.get(source
+			.getPath());
+		final N5Reader reader = new MarsN5ViewerReaderFun(factory).apply(source
+			.getPath());
+		n5Readers.put(source.getPath(), reader);
+		return reader;
 	}
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	private <T extends NumericType<T> & NativeType<T>> Source<T> build(
 		final MarsBdvSource source, final MarsMetadata meta,
-		final boolean volatileLoad, final SharedQueue sharedQueue)
-		throws IOException
+		final boolean volatileLoad, final SharedQueue sharedQueue,
+		final long[] timeRange) throws IOException
 	{
-		final N5Reader reader;
-		if (n5Readers.containsKey(source.getPath())) {
-			reader = n5Readers.get(source.getPath());
-		}
-		else {
-			reader = new MarsN5ViewerReaderFun().apply(source.getPath());
-			n5Readers.put(source.getPath(), reader);
-		}
+		final N5Reader reader = getReader(source);
 
-		final RandomAccessibleInterval wholeImage = volatileLoad ? N5Utils
-			.openVolatile(reader, source.getN5Dataset()) : N5Utils.open(reader,
+		final RandomAccessibleInterval wholeImage = volatileLoad ? openVolatile(
+			reader, source.getN5Dataset(), meta.getUID(), source.getName()) : N5Utils.open(reader,
 				source.getN5Dataset());
 
 		// wholeImage should be XYT or XYCT. If XYCT, we hyperSlice to get one
@@ -113,13 +197,31 @@ public class MarsN5SourceLoader {
 		final long[] dimensions = new long[dims];
 		wholeImage.dimensions(dimensions);
 
-		sourceDimensions.computeIfAbsent(meta.getUID(), k -> new HashMap<>()).put(
-			source.getName(), dimensions);
-
-		final RandomAccessibleInterval image = (dims > 3) ? Views.hyperSlice(
+		RandomAccessibleInterval image = (dims > 3) ? Views.hyperSlice(
 			wholeImage, wholeImage.numDimensions() - 2, source.getChannel())
 			: wholeImage;
 
+		// Restrict to the time window, its first frame becomes timepoint 0.
+		final long tOffset = timeRange == null ? 0 : timeRange[0];
+		if (timeRange != null) {
+			final int tAxis = image.numDimensions() - 1;
+			if (dims < 3 || timeRange[0] < 0 || timeRange[1] < timeRange[0] ||
+				timeRange[1] >= image.dimension(tAxis)) throw new IllegalArgumentException(
+					"Time range " + timeRange[0] + "-" + timeRange[1] + " is outside of " +
+						source.getName() + " with dimensions " + Arrays.toString(dimensions));
+			final long[] min = Intervals.minAsLongArray(image);
+			final long[] max = Intervals.maxAsLongArray(image);
+			min[tAxis] = timeRange[0];
+			max[tAxis] = timeRange[1];
+			image = Views.zeroMin(Views.interval(image, min, max));
+			dimensions[dims - 1] = timeRange[1] - timeRange[0] + 1;
+			timeRanges.computeIfAbsent(meta.getUID(), k -> new HashMap<>()).put(source
+				.getName(), timeRange.clone());
+		}
+
+		sourceDimensions.computeIfAbsent(meta.getUID(), k -> new HashMap<>()).put(
+			source.getName(), dimensions);
+
 		final int tSize = (int) image.dimension(image.numDimensions() - 1);
 		if (tSize > numTimePoints) numTimePoints = tSize;
 
@@ -133,20 +235,37 @@ public class MarsN5SourceLoader {
 			for (int t = 0; t < tSize; t++)
 				transforms[t] = source.getAffineTransform3D();
 
-			final int singleTimePoint = source.getSingleTimePoint();
+			// Only a time window shifts the time point. Without one it is passed
+			// on as before, 2D overlays have no time axis to check it against.
+			int singleTimePoint = source.getSingleTimePoint();
+			if (timeRange != null) {
+				singleTimePoint -= (int) tOffset;
+				if (singleTimePoint < 0 || singleTimePoint >= tSize)
+					throw new IllegalArgumentException("Time point " + source
+						.getSingleTimePoint() + " of " + source.getName() +
+						" is outside of the time range");
+			}
 			final MarsSingleTimePointN5Source<T> n5Source =
 				new MarsSingleTimePointN5Source<>((T) Util.getTypeFromInterval(image),
 					source.getName(), images, transforms, singleTimePoint);
 
-			return volatileLoad ? (Source<T>) n5Source.asVolatile(sharedQueue)
-				: n5Source;
+			if (!volatileLoad) return n5Source;
+			statistics.setNumFetcherThreads(sharedQueue.getNumFetcherThreads());
+			final MarsSingleTimePointN5VolatileSource volatileSource = n5Source
+				.asVolatile(sharedQueue);
+			volatileSource.setStatistics(statistics, meta.getUID(),
+				(int) tOffset);
+			// Overlays don't follow the cursor; load them after the movie frame.
+			volatileSource.setPriorityOffset(1);
+			return volatileSource;
 		}
 		else {
 			final AffineTransform3D[] transforms = new AffineTransform3D[tSize];
 			for (int t = 0; t < tSize; t++) {
 				if (source.getCorrectDrift()) {
-					final double dX = meta.getPlane(0, 0, 0, t).getXDrift();
-					final double dY = meta.getPlane(0, 0, 0, t).getYDrift();
+					final int frame = (int) (t + tOffset);
+					final double dX = meta.getPlane(0, 0, 0, frame).getXDrift();
+					final double dY = meta.getPlane(0, 0, 0, frame).getYDrift();
 					transforms[t] = source.getAffineTransform3D(dX, dY);
 				}
 				else transforms[t] = source.getAffineTransform3D();
@@ -155,27 +274,67 @@ public class MarsN5SourceLoader {
 			final MarsN5Source<T> n5Source = new MarsN5Source<>((T) Util
 				.getTypeFromInterval(image), source.getName(), images, transforms);
 
-			return volatileLoad ? (Source<T>) n5Source.asVolatile(sharedQueue)
-				: n5Source;
+			if (!volatileLoad) return n5Source;
+			statistics.setNumFetcherThreads(sharedQueue.getNumFetcherThreads());
+			final MarsN5VolatileSource volatileSource = n5Source.asVolatile(
+				sharedQueue);
+			volatileSource.setStatistics(statistics, meta.getUID(),
+				(int) tOffset);
+			return volatileSource;
 		}
 	}
 
+	/**
+	 * Equivalent of {@link N5Utils#openVolatile} with the block loader wrapped
+	 * to record into {@link #getStatistics()}.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private RandomAccessibleInterval openVolatile(final N5Reader reader,
+		final String dataset, final String metaUID, final String sourceName)
+		throws IOException
+	{
+		final DatasetAttributes attributes = reader.getDatasetAttributes(dataset);
+		final int[] blockSize = attributes.getBlockSize();
+		final CellLoader loader = statistics.instrument(metaUID, sourceName,
+			attributes, new N5CellLoader(reader, dataset, blockSize));
+		return new ReadOnlyCachedCellImgFactory(ReadOnlyCachedCellImgOptions
+			.options().cellDimensions(blockSize).volatileAccesses(true)).create(
+				attributes.getDimensions(), N5Utils.type(attributes.getDataType()),
+				loader);
+	}
+
 	/** Dimensions captured for a loaded source, or null if not loaded. */
 	public long[] getDimensions(final String metaUID, final String sourceName) {
 		final Map<String, long[]> m = sourceDimensions.get(metaUID);
 		return (m == null) ? null : m.get(sourceName);
 	}
 
+	/**
+	 * First and last frame of the time window a source was loaded with, or
+	 * null if it covers the full time axis. Timepoint t of the source is frame
+	 * t + getTimeRange(...)[0] of the dataset.
+	 */
+	public long[] getTimeRange(final String metaUID, final String sourceName) {
+		final Map<String, long[]> m = timeRanges.get(metaUID);
+		return (m == null) ? null : m.get(sourceName);
+	}
+
 	/** Largest time dimension across all sources loaded by this instance. */
 	public int getNumTimePoints() {
 		return numTimePoints;
 	}
 
+	/** Block load statistics of the volatile sources built by this loader. */
+	public MarsN5LoadStatistics getStatistics() {
+		return statistics;
+	}
+
 	/** Closes all cached N5 readers and clears caches. */
 	public void close() {
 		for (N5Reader reader : n5Readers.values())
 			reader.close();
 		n5Readers.clear();
 		sourceDimensions.clear();
+		timeRanges.clear();
 	}
 }
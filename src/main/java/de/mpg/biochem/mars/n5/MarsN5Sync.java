@@ -0,0 +1,332 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Incrementally uploads a local N5 (or Zarr) root to MinIO. One listing of
+ * the remote root provides size and ETag of every object; local files are
+ * compared by size and then by MD5, and only new or changed files are
+ * uploaded, in parallel. Remote objects without a local file are deleted
+ * with {@link #deleteOrphans}. Files are uploaded byte for byte, not
+ * re-encoded, so a repeated sync costs one listing plus the changes.
+ * <p>
+ * Metadata files (attributes.json, .zarray, ...) are uploaded after all
+ * chunks, so readers never see dataset attributes before their chunks.
+ * <p>
+ * The ETag of every file hashed or uploaded is kept with its size and
+ * modification time in a manifest ({@value #MANIFEST}) in the local root. A
+ * file whose size and modification time match its manifest entry is not
+ * read again, so a repeated sync only hashes files that were touched since.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5Sync {
+
+    /** Name of the manifest of local MD5s in the local root. */
+    public static final String MANIFEST = ".mars-sync";
+
+    private final MarsN5Factory factory;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private boolean deleteOrphans = false;
+    private boolean dryRun = false;
+    private DoubleConsumer progress = p -> {};
+
+    public MarsN5Sync() {
+        this(new MarsN5Factory());
+    }
+
+    /** Sync through clients with the transport options of the factory. */
+    public MarsN5Sync(final MarsN5Factory factory) {
+        this.factory = factory;
+    }
+
+    public MarsN5Sync numThreads(final int numThreads) {
+        this.numThreads = numThreads;
+        return this;
+    }
+
+    /**
+     * Delete remote objects under the root that have no local file. Refused
+     * for a root at the top of a bucket.
+     */
+    public MarsN5Sync deleteOrphans(final boolean deleteOrphans) {
+        this.deleteOrphans = deleteOrphans;
+        return this;
+    }
+
+    /** Only compare and count, without uploading or deleting. */
+    public MarsN5Sync dryRun(final boolean dryRun) {
+        this.dryRun = dryRun;
+        return this;
+    }
+
+    /** Receives the fraction of local files compared or uploaded. */
+    public MarsN5Sync progress(final DoubleConsumer progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Sync a local root to a url of the form
+     * https://bucket.s3.server:9000/path/root.n5 (see
+     * {@link MarsS3Browser#buildPath}).
+     */
+    public Result sync(final Path localRoot, final String url) throws IOException {
+        final MarsS3Browser.ParsedPath path = MarsS3Browser.parsePath(url);
+        if (path == null)
+            throw new IllegalArgumentException("Expected a url like " +
+                    "https://bucket.s3.server:9000/path, got " + url);
+        try (MarsS3Browser browser = new MarsS3Browser(path.server, factory)) {
+            return sync(localRoot, browser, path.bucket, path.n5Root);
+        }
+    }
+
+    public Result sync(final Path localRoot, final MarsS3Browser browser,
+            final String bucket, final String remoteRoot) throws IOException {
+        if (!Files.isDirectory(localRoot))
+            throw new IOException(localRoot + " is not a directory");
+        String root = remoteRoot;
+        while (root.endsWith("/"))
+            root = root.substring(0, root.length() - 1);
+        if (deleteOrphans && root.isEmpty())
+            throw new IllegalArgumentException("Refusing to delete orphans in the " +
+                    "whole bucket " + bucket + ", sync to a folder instead");
+        final String prefix = root.isEmpty() ? "" : root + "/";
+
+        final List<String> chunks = new ArrayList<>();
+        final List<String> metadata = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(localRoot)) {
+            for (Path file : files.filter(Files::isRegularFile).collect(Collectors
+                    .toList())) {
+                final String relative = localRoot.relativize(file).toString().replace(
+                        file.getFileSystem().getSeparator(), "/");
+                if (relative.startsWith(MANIFEST) || relative.equals(MarsN5Download.MANIFEST))
+                    continue;
+                (isMetadata(relative) ? metadata : chunks).add(relative);
+            }
+        }
+        Collections.sort(chunks);
+        Collections.sort(metadata);
+
+        final Map<String, S3Object> remote = browser.listObjects(bucket, root);
+        final Result result = new Result();
+        final long total = chunks.size() + metadata.size();
+        final Path manifestPath = localRoot.resolve(MANIFEST);
+        final Map<String, String> hashes = readManifest(manifestPath);
+        final ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            syncFiles(chunks, localRoot, browser, bucket, prefix, remote, hashes, result,
+                    total, exec);
+            syncFiles(metadata, localRoot, browser, bucket, prefix, remote, hashes,
+                    result, total, exec);
+        } finally {
+            exec.shutdownNow();
+            // keep the hashes of files compared so far, also after a failure
+            final Set<String> local = new HashSet<>(chunks);
+            local.addAll(metadata);
+            hashes.keySet().retainAll(local);
+            writeManifest(manifestPath, hashes);
+        }
+
+        final List<String> orphans = new ArrayList<>();
+        for (String relative : remote.keySet())
+            // keys ending in "/" are folder markers of S3 browsers
+            if (!relative.endsWith("/") && !Files.isRegularFile(localRoot.resolve(relative)))
+                orphans.add(prefix + relative);
+        if (deleteOrphans) {
+            if (!dryRun) browser.deleteKeys(bucket, orphans);
+            result.deleted = orphans.size();
+        } else if (!orphans.isEmpty()) {
+            System.out.println(orphans.size() + " objects under " + root +
+                    " have no local file and were kept.");
+        }
+        return result;
+    }
+
+    private void syncFiles(final List<String> files, final Path localRoot,
+            final MarsS3Browser browser, final String bucket, final String prefix,
+            final Map<String, S3Object> remote, final Map<String, String> hashes,
+            final Result result, final long total, final ExecutorService exec)
+            throws IOException {
+        final List<Future<?>> futures = new ArrayList<>(files.size());
+        for (String relative : files)
+            futures.add(exec.submit(() -> {
+                final Path file = localRoot.resolve(relative);
+                try {
+                    if (isUnchanged(file, relative, remote.get(relative), hashes)) {
+                        result.unchanged.incrementAndGet();
+                    } else {
+                        if (!dryRun) {
+                            final String key = manifestKey(file);
+                            final String eTag = browser.upload(bucket, prefix + relative,
+                                    file);
+                            if (eTag != null) hashes.put(relative, key + "\t" + eTag);
+                        }
+                        result.uploaded.incrementAndGet();
+                        result.bytesUploaded.addAndGet(Files.size(file));
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                final long done = result.unchanged.get() + result.uploaded.get();
+                if (done % 64 == 0 || done == total)
+                    progress.accept((double) done / total);
+                return null;
+            }));
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while syncing " + localRoot, e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException("Could not sync " + localRoot, e.getCause());
+        }
+    }
+
+    private static boolean isUnchanged(final Path file, final String relative,
+            final S3Object object, final Map<String, String> hashes) throws IOException {
+        final long size = Files.size(file);
+        if (object == null || object.size() == null || object.size() != size)
+            return false;
+        final String eTag = MarsS3Browser.unquote(object.eTag());
+        return eTag != null && eTag.equalsIgnoreCase(localETag(file, relative, hashes));
+    }
+
+    /** The ETag of a local file, hashed only if it changed since the manifest. */
+    private static String localETag(final Path file, final String relative,
+            final Map<String, String> hashes) throws IOException {
+        final String key = manifestKey(file);
+        final String entry = hashes.get(relative);
+        if (entry != null && entry.startsWith(key + "\t"))
+            return entry.substring(key.length() + 1);
+        final String eTag = MarsS3Browser.eTag(file);
+        hashes.put(relative, key + "\t" + eTag);
+        return eTag;
+    }
+
+    /** Size and modification time of a file, as recorded in the manifest. */
+    private static String manifestKey(final Path file) throws IOException {
+        return Files.size(file) + "\t" + Files.getLastModifiedTime(file).toMillis();
+    }
+
+    private static Map<String, String> readManifest(final Path manifest)
+            throws IOException {
+        final Map<String, String> hashes = new ConcurrentHashMap<>();
+        if (!Files.exists(manifest)) return hashes;
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            final String[] parts = line.split("\t");
+            if (parts.length == 4)
+                hashes.put(parts[0], parts[1] + "\t" + parts[2] + "\t" + parts[3]);
+        }
+        return hashes;
+    }
+
+    /** Replaces the manifest, through a temporary file renamed into place. */
+    private static void writeManifest(final Path manifest, final Map<String, String> hashes)
+            throws IOException {
+        final Path tmp = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : new TreeMap<>(hashes).entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue());
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static boolean isMetadata(final String relative) {
+        final String name = relative.substring(relative.lastIndexOf('/') + 1);
+        return name.equals("attributes.json") || name.equals("zarr.json") ||
+                name.startsWith(".z");
+    }
+
+    /** Counts of a sync, uploads and deletes are counted in dry runs too. */
+    public static final class Result {
+
+        private final AtomicLong uploaded = new AtomicLong();
+        private final AtomicLong unchanged = new AtomicLong();
+        private final AtomicLong bytesUploaded = new AtomicLong();
+        private long deleted;
+
+        public long getUploaded() {
+            return uploaded.get();
+        }
+
+        public long getUnchanged() {
+            return unchanged.get();
+        }
+
+        public long getBytesUploaded() {
+            return bytesUploaded.get();
+        }
+
+        public long getDeleted() {
+            return deleted;
+        }
+
+        @Override
+        public String toString() {
+            return uploaded.get() + " files uploaded (" + DatasetEntry.humanReadableBytes(
+                    bytesUploaded.get()) + "), " + unchanged.get() + " unchanged, " +
+                    deleted + " deleted";
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * Small previews of datasets for the browser, shown next to
+ * {@link DatasetEntry#getRowLabel}. A thumbnail is the middle frame (middle
+ * z and t, first channel of XYZCT datasets) subsampled to at most
+ * {@link #maxSize} pixels per side and contrast stretched to 8 bit. Only the
+ * blocks holding sampled pixels of that frame are read.
+ * <p>
+ * Thumbnails are cached as PNG in a local directory. For MinIO roots, a
+ * thumbnail is also looked up as the sidecar object {@value #SIDECAR} in the
+ * dataset folder, which costs one small GET, and written there after it was
+ * computed if {@link #writeSidecar} is set.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5ThumbnailService {
+
+    /** Name of the sidecar object next to the dataset attributes. */
+    public static final String SIDECAR = "thumbnail.png";
+
+    private final MarsN5Factory factory;
+    private Path cacheDirectory = Paths.get(System.getProperty("user.home"), ".mars",
+            "thumbnails");
+    private int maxSize = 128;
+    private boolean writeSidecar = false;
+
+    public MarsN5ThumbnailService() {
+        this(new MarsN5Factory());
+    }
+
+    public MarsN5ThumbnailService(final MarsN5Factory factory) {
+        this.factory = factory;
+    }
+
+    /** Directory of the local PNG cache, default ~/.mars/thumbnails. */
+    public MarsN5ThumbnailService cacheDirectory(final Path cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        return this;
+    }
+
+    /** Largest width or height of thumbnails in pixels. */
+    public MarsN5ThumbnailService maxSize(final int maxSize) {
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    /** Upload computed thumbnails of MinIO datasets as sidecar objects. */
+    public MarsN5ThumbnailService writeSidecar(final boolean writeSidecar) {
+        this.writeSidecar = writeSidecar;
+        return this;
+    }
+
+    /**
+     * The thumbnail of a dataset from the local cache, the sidecar object or,
+     * if neither exists, computed from the dataset.
+     *
+     * @param url root url as given to {@link MarsN5Factory#openReader}
+     * @param dataset path of the dataset in the root
+     */
+    public BufferedImage getThumbnail(final String url, final String dataset)
+            throws IOException {
+        final Path cached = cacheFile(url, dataset);
+        if (Files.isRegularFile(cached)) {
+            final BufferedImage image = ImageIO.read(cached.toFile());
+            if (image != null) return image;
+        }
+        Files.createDirectories(cacheDirectory);
+
+        final MarsS3Browser.ParsedPath path = MarsS3Browser.parsePath(url);
+        if (path == null) {
+            final BufferedImage image;
+            try (N5Reader reader = factory.openReader(url)) {
+                image = render(reader, dataset, maxSize);
+            }
+            write(image, cached);
+            return image;
+        }
+
+        final String key = sidecarKey(path.n5Root, dataset);
+        try (MarsS3Browser browser = new MarsS3Browser(path.server, factory)) {
+            try {
+                browser.download(path.bucket, key, cached);
+                final BufferedImage image = ImageIO.read(cached.toFile());
+                if (image != null && Math.max(image.getWidth(), image.getHeight()) <= maxSize)
+                    return image;
+            } catch (final NoSuchKeyException e) {
+                // not computed yet
+            }
+            final BufferedImage image;
+            try (N5Reader reader = factory.openReader(url)) {
+                image = render(reader, dataset, maxSize);
+            }
+            write(image, cached);
+            if (writeSidecar)
+                browser.upload(path.bucket, key, cached);
+            return image;
+        }
+    }
+
+    /** Remove the cached thumbnail, e.g. after the dataset was rewritten. */
+    public void invalidate(final String url, final String dataset) throws IOException {
+        Files.deleteIfExists(cacheFile(url, dataset));
+    }
+
+    /**
+     * Compute the thumbnail of a dataset, reading only the blocks that hold
+     * sampled pixels of the middle frame.
+     */
+    public static BufferedImage render(final N5Reader reader, final String dataset,
+            final int maxSize) {
+        final DatasetAttributes attributes = reader.getDatasetAttributes(dataset);
+        if (attributes == null)
+            throw new IllegalArgumentException(dataset + " is not a dataset");
+        final long[] dimensions = attributes.getDimensions();
+        final int[] blockSize = attributes.getBlockSize();
+        final int n = dimensions.length;
+        final boolean unsigned = DatasetEntry.isUnsigned(attributes.getDataType());
+
+        // middle of every dimension beyond XY, first channel for XYZCT
+        final long[] position = new long[n];
+        for (int d = 2; d < n; d++)
+            position[d] = n == 5 && d == 3 ? 0 : dimensions[d] / 2;
+        final long width = dimensions[0];
+        final long height = n > 1 ? dimensions[1] : 1;
+        final long step = Math.max(1, (Math.max(width, height) + maxSize - 1) / maxSize);
+        final int w = (int) Math.max(1, width / step);
+        final int h = (int) Math.max(1, height / step);
+
+        final double[] values = new double[w * h];
+        final Map<String, DataBlock<?>> blocks = new HashMap<>();
+        final long[] gridPosition = new long[n];
+        for (int d = 2; d < n; d++)
+            gridPosition[d] = position[d] / blockSize[d];
+        for (int j = 0; j < h; j++) {
+            final long y = j * step + step / 2;
+            if (n > 1) gridPosition[1] = y / blockSize[1];
+            for (int i = 0; i < w; i++) {
+                final long x = i * step + step / 2;
+                gridPosition[0] = x / blockSize[0];
+                final String blockKey = Arrays.toString(gridPosition);
+                if (!blocks.containsKey(blockKey))
+                    blocks.put(blockKey, reader.readBlock(dataset, attributes,
+                            gridPosition.clone()));
+                final DataBlock<?> block = blocks.get(blockKey);
+                if (block == null) continue; // not written, stays 0
+
+                // index of the pixel in the block, first dimension fastest
+                final int[] size = block.getSize();
+                long index = 0;
+                for (int d = n - 1; d >= 0; d--) {
+                    final long p = d == 0 ? x : d == 1 ? y : position[d];
+                    index = index * size[d] + (p - gridPosition[d] * blockSize[d]);
+                }
+                values[j * w + i] = DatasetEntry.value(block.getData(), (int) index,
+                        unsigned);
+            }
+        }
+
+        // stretch between the 0.5th and 99.5th percentile
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        final double min = sorted[(int) (0.005 * (sorted.length - 1))];
+        final double max = sorted[(int) (0.995 * (sorted.length - 1))];
+        final double scale = max > min ? 255.0 / (max - min) : 0;
+        final BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+        final byte[] pixels = new byte[w * h];
+        for (int k = 0; k < pixels.length; k++)
+            pixels[k] = (byte) Math.max(0, Math.min(255, Math.round((values[k] - min) *
+                    scale)));
+        image.getRaster().setDataElements(0, 0, w, h, pixels);
+        return image;
+    }
+
+    private static String sidecarKey(final String root, final String dataset) {
+        String key = root;
+        while (key.endsWith("/"))
+            key = key.substring(0, key.length() - 1);
+        String path = dataset;
+        while (path.startsWith("/"))
+            path = path.substring(1);
+        return (key.isEmpty() ? "" : key + "/") + (path.isEmpty() ? "" : path + "/") +
+                SIDECAR;
+    }
+
+    private Path cacheFile(final String url, final String dataset) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest((url + "\n" +
+                    dataset + "\n" + maxSize).getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder();
+            for (byte b : digest)
+                name.append(String.format("%02x", b));
+            return cacheDirectory.resolve(name + ".png");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void write(final BufferedImage image, final Path file) throws IOException {
+        final Path partial = Files.createTempFile(file.getParent(), file.getFileName()
+                .toString(), ".part");
+        try {
+            ImageIO.write(image, "png", partial.toFile());
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+}
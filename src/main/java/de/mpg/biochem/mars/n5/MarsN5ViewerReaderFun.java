@@ -39,6 +39,17 @@ public class MarsN5ViewerReaderFun implements Function<String, N5Reader> {
 
     public String message;
 
+    private final MarsN5Factory factory;
+
+    public MarsN5ViewerReaderFun() {
+        this(new MarsN5Factory());
+    }
+
+    /** Opens readers with the given factory, e.g. one with tuned S3 transport. */
+    public MarsN5ViewerReaderFun(final MarsN5Factory factory) {
+        this.factory = factory;
+    }
+
     @Override
     public N5Reader apply(final String n5PathIn) {
 
@@ -52,7 +63,6 @@ public class MarsN5ViewerReaderFun implements Function<String, N5Reader> {
         else
             rootPath = n5PathIn;
 
-        MarsN5Factory factory = new MarsN5Factory();
         try {
             n5 = factory.openReader(rootPath);
         } catch (IOException e) {
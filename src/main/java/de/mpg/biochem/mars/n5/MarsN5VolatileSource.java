@@ -37,8 +37,6 @@ import bdv.util.volatiles.VolatileViews;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
-import net.imglib2.cache.volatiles.CacheHints;
-import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.NumericType;
 import net.imglib2.util.ConstantUtils;
@@ -52,6 +50,14 @@ public class MarsN5VolatileSource<T extends NumericType<T>, V extends Volatile<T
 	private RandomAccessibleInterval<V> volatileZerosRAI;
 	private SharedQueue queue;
 
+	private MarsN5LoadStatistics statistics;
+
+	private String metaUID;
+
+	private int timeOffset;
+
+	private int priorityOffset = 0;
+
 	public MarsN5VolatileSource(final MarsN5Source<T> source, final V type,
 		final SharedQueue queue)
 	{
@@ -66,8 +72,40 @@ public class MarsN5VolatileSource<T extends NumericType<T>, V extends Volatile<T
 		this(source, typeSupplier.get(), queue);
 	}
 
+	/**
+	 * Added to the queue priority of every block request of this source. Use a
+	 * positive offset for channels that are shown but not in focus so their
+	 * blocks load after those of the focused channel.
+	 */
+	public void setPriorityOffset(final int priorityOffset) {
+		this.priorityOffset = priorityOffset;
+	}
+
+	public int getPriorityOffset() {
+		return priorityOffset;
+	}
+
+	/**
+	 * Records the requested timepoint for time-to-valid measurements, against
+	 * this source of the metadata with the given UID. The time offset is the
+	 * frame of the dataset shown as timepoint 0, so the recorded timepoint
+	 * matches the frames of the blocks loaded.
+	 */
+	public void setStatistics(final MarsN5LoadStatistics statistics,
+		final String metaUID, final int timeOffset)
+	{
+		this.statistics = statistics;
+		this.metaUID = metaUID;
+		this.timeOffset = timeOffset;
+	}
+
 	@Override
 	public RandomAccessibleInterval<V> getSource(final int t, final int level) {
+		if (statistics != null) statistics.timePointRequested(metaUID, getName(),
+			t + timeOffset);
+		if (queue instanceof MarsSharedQueue) ((MarsSharedQueue) queue)
+			.timePointRequested(t);
+
 		// Get the source from MarsN5Source
 		RandomAccessibleInterval<T> rai = source.getSource(t, level);
 
@@ -86,7 +124,7 @@ public class MarsN5VolatileSource<T extends NumericType<T>, V extends Volatile<T
 
 		// For normal cases, wrap as volatile as before
 		return VolatileViews.wrapAsVolatile(rai, queue,
-				new CacheHints(LoadingStrategy.VOLATILE, level, true));
+				MarsSharedQueue.cacheHints(queue, level, priorityOffset));
 	}
 
 	// Helper method to check if two RAIs have the same dimensions
@@ -0,0 +1,332 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Util;
+
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockReader;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.XzCompression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+
+/**
+ * Picks the codec and block shape for writing a dataset. Sample blocks of
+ * the image are encoded and decoded with every codec for every candidate
+ * block shape, measuring compressed size and encode and decode speed. The
+ * effective read bandwidth of each configuration is then estimated for an
+ * {@link AccessPattern} from the request latency, network bandwidth and
+ * number of parallel readers, see {@link Candidate#effectiveReadBandwidth}.
+ * <p>
+ * The codecs are those of the N5 core library: raw, gzip, lz4, xz and bzip2.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsN5WriteTuner {
+
+    /** Codecs by name, in the order they are tried. */
+    public static final Map<String, Supplier<Compression>> CODECS;
+    static {
+        final Map<String, Supplier<Compression>> codecs = new LinkedHashMap<>();
+        codecs.put("raw", RawCompression::new);
+        codecs.put("gzip", GzipCompression::new);
+        codecs.put("lz4", Lz4Compression::new);
+        codecs.put("xz", XzCompression::new);
+        codecs.put("bzip2", Bzip2Compression::new);
+        CODECS = Collections.unmodifiableMap(codecs);
+    }
+
+    /** How the dataset will be read. */
+    public enum AccessPattern {
+        /** Whole XY frames one at a time, e.g. browsing in BDV. */
+        FRAMES,
+        /** The complete dataset, e.g. opening as an ImagePlus or analysis. */
+        WHOLE_DATASET
+    }
+
+    private List<int[]> blockShapes = Arrays.asList(
+            new int[] {256, 256, 1, 1, 1},
+            new int[] {512, 512, 1, 1, 1},
+            new int[] {1024, 1024, 1, 1, 1},
+            new int[] {512, 512, 1, 1, 4},
+            new int[] {256, 256, 1, 1, 16});
+    private List<String> codecs = new ArrayList<>(CODECS.keySet());
+    private AccessPattern accessPattern = AccessPattern.FRAMES;
+    private double latencySeconds = 0.005;
+    private double bandwidthBytesPerSecond = 100e6;
+    private int numReaders = 8;
+    private int numSamples = 4;
+    private long seed = 42;
+
+    public static Compression compression(final String name) {
+        final Supplier<Compression> codec = CODECS.get(name.toLowerCase());
+        if (codec == null)
+            throw new IllegalArgumentException("Unknown compression " + name);
+        return codec.get();
+    }
+
+    /** Candidate block shapes, clipped to the image size. */
+    public MarsN5WriteTuner blockShapes(final List<int[]> blockShapes) {
+        this.blockShapes = blockShapes;
+        return this;
+    }
+
+    public MarsN5WriteTuner codecs(final String... codecs) {
+        this.codecs = Arrays.asList(codecs);
+        return this;
+    }
+
+    public MarsN5WriteTuner accessPattern(final AccessPattern accessPattern) {
+        this.accessPattern = accessPattern;
+        return this;
+    }
+
+    /**
+     * Latency of a single GET and bandwidth of the link to the server, e.g.
+     * from the mean latency in {@link MarsS3Metrics}.
+     */
+    public MarsN5WriteTuner network(final double latencyMillis,
+            final double bandwidthBytesPerSecond) {
+        this.latencySeconds = latencyMillis / 1000;
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+        return this;
+    }
+
+    /** Number of blocks read in parallel, e.g. fetcher threads. */
+    public MarsN5WriteTuner numReaders(final int numReaders) {
+        this.numReaders = numReaders;
+        return this;
+    }
+
+    /** Number of sample blocks per block shape. */
+    public MarsN5WriteTuner numSamples(final int numSamples) {
+        this.numSamples = numSamples;
+        return this;
+    }
+
+    /**
+     * Measure all candidates on sample blocks of the image.
+     *
+     * @param img the image to write
+     * @return the candidates, best effective read bandwidth first
+     */
+    public <T extends NativeType<T>> List<Candidate> tune(final RandomAccessibleInterval<T> img)
+            throws IOException {
+        final T type = Util.getTypeFromInterval(img);
+        final DataType dataType = N5Utils.dataType(type);
+        final long[] dimensions = img.dimensionsAsLongArray();
+        final Random random = new Random(seed);
+
+        final List<Candidate> candidates = new ArrayList<>();
+        for (int[] shape : blockShapes) {
+            final int[] blockSize = clip(shape, dimensions);
+            if (containsShape(candidates, blockSize))
+                continue;
+            final List<DataBlock<?>> samples = new ArrayList<>();
+            for (int i = 0; i < numSamples; i++)
+                samples.add(sample(img, type, dataType, blockSize, random));
+
+            for (String codec : codecs) {
+                final DatasetAttributes attributes = new DatasetAttributes(dimensions,
+                        blockSize, dataType, compression(codec));
+                candidates.add(measure(codec, attributes, samples));
+            }
+        }
+        candidates.sort(Comparator.comparingDouble(Candidate::effectiveReadBandwidth)
+                .reversed());
+        return candidates;
+    }
+
+    /** The best candidate for the image, see {@link #tune}. */
+    public <T extends NativeType<T>> Candidate recommend(final RandomAccessibleInterval<T> img)
+            throws IOException {
+        return tune(img).get(0);
+    }
+
+    private Candidate measure(final String codec, final DatasetAttributes attributes,
+            final List<DataBlock<?>> samples) throws IOException {
+        long rawBytes = 0;
+        long encodedBytes = 0;
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (DataBlock<?> block : samples) {
+            rawBytes += (long) block.getNumElements() * DatasetEntry.bitsPerElement(
+                    attributes.getDataType()) / 8;
+
+            byte[] encoded = null;
+            long bestEncode = Long.MAX_VALUE;
+            for (int repeat = 0; repeat < 3; repeat++) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final long start = System.nanoTime();
+                DefaultBlockWriter.writeBlock(out, attributes, block);
+                bestEncode = Math.min(bestEncode, System.nanoTime() - start);
+                encoded = out.toByteArray();
+            }
+
+            long bestDecode = Long.MAX_VALUE;
+            for (int repeat = 0; repeat < 3; repeat++) {
+                final long start = System.nanoTime();
+                DefaultBlockReader.readBlock(new ByteArrayInputStream(encoded), attributes,
+                        block.getGridPosition());
+                bestDecode = Math.min(bestDecode, System.nanoTime() - start);
+            }
+            encodedBytes += encoded.length;
+            encodeNanos += bestEncode;
+            decodeNanos += bestDecode;
+        }
+        return new Candidate(codec, attributes.getBlockSize(), rawBytes, encodedBytes,
+                encodeNanos, decodeNanos, samples.size());
+    }
+
+    /** Copies the block at a random grid position into a DataBlock. */
+    private static <T extends NativeType<T>> DataBlock<?> sample(
+            final RandomAccessibleInterval<T> img, final T type, final DataType dataType,
+            final int[] blockSize, final Random random) {
+        final long[] gridPosition = new long[img.numDimensions()];
+        for (int d = 0; d < gridPosition.length; d++)
+            gridPosition[d] = (long) (random.nextDouble() * ((img.dimension(d) +
+                    blockSize[d] - 1) / blockSize[d]));
+        return MarsN5Rechunker.readBlock(img, type, dataType, blockSize, gridPosition);
+    }
+
+    private static int[] clip(final int[] shape, final long[] dimensions) {
+        final int[] blockSize = new int[dimensions.length];
+        for (int d = 0; d < dimensions.length; d++)
+            blockSize[d] = (int) Math.min(d < shape.length ? shape[d] : 1, dimensions[d]);
+        return blockSize;
+    }
+
+    private static boolean containsShape(final List<Candidate> candidates, final int[] blockSize) {
+        for (Candidate c : candidates)
+            if (Arrays.equals(c.blockSize, blockSize))
+                return true;
+        return false;
+    }
+
+    /** Measurements and estimated read bandwidth of one codec and block shape. */
+    public final class Candidate {
+
+        public final String codec;
+        public final int[] blockSize;
+        public final long rawBytes;
+        public final long encodedBytes;
+        public final long encodeNanos;
+        public final long decodeNanos;
+        public final int numSamples;
+
+        Candidate(final String codec, final int[] blockSize, final long rawBytes,
+                final long encodedBytes, final long encodeNanos, final long decodeNanos,
+                final int numSamples) {
+            this.codec = codec;
+            this.blockSize = blockSize;
+            this.rawBytes = rawBytes;
+            this.encodedBytes = encodedBytes;
+            this.encodeNanos = encodeNanos;
+            this.decodeNanos = decodeNanos;
+            this.numSamples = numSamples;
+        }
+
+        public Compression getCompression() {
+            return compression(codec);
+        }
+
+        public double getCompressionRatio() {
+            return (double) rawBytes / Math.max(1, encodedBytes);
+        }
+
+        /** Encode speed in uncompressed bytes per second and thread. */
+        public double getEncodeBandwidth() {
+            return rawBytes / (encodeNanos / 1e9);
+        }
+
+        /** Decode speed in uncompressed bytes per second and thread. */
+        public double getDecodeBandwidth() {
+            return rawBytes / (decodeNanos / 1e9);
+        }
+
+        /**
+         * Estimated bytes of image data per second delivered for the access
+         * pattern. Each reader spends latency, transfer and decode time per
+         * block; the readers together can't exceed the network bandwidth.
+         * For {@link AccessPattern#FRAMES}, only one frame of a block that
+         * spans several Z, C or T planes is useful.
+         */
+        public double effectiveReadBandwidth() {
+            final double blockRaw = (double) rawBytes / numSamples;
+            final double blockEncoded = (double) encodedBytes / numSamples;
+            final double blockSeconds = latencySeconds + blockEncoded / bandwidthBytesPerSecond +
+                    decodeNanos / 1e9 / numSamples;
+            final double blocksPerSecond = Math.min(numReaders / blockSeconds,
+                    bandwidthBytesPerSecond / blockEncoded);
+            double useful = 1;
+            if (accessPattern == AccessPattern.FRAMES)
+                for (int d = 2; d < blockSize.length; d++)
+                    useful /= blockSize[d];
+            return blocksPerSecond * blockRaw * useful;
+        }
+
+        /** Create a dataset with this codec and block size. */
+        public void createDataset(final N5Writer writer, final String datasetPath,
+                final long[] dimensions, final DataType dataType) {
+            writer.createDataset(datasetPath, dimensions, blockSize, dataType, getCompression());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-6s %-24s ratio %5.2f  encode %s/s  decode %s/s  read %s/s",
+                    codec, Arrays.toString(blockSize), getCompressionRatio(),
+                    DatasetEntry.humanReadableBytes((long) getEncodeBandwidth()),
+                    DatasetEntry.humanReadableBytes((long) getDecodeBandwidth()),
+                    DatasetEntry.humanReadableBytes((long) effectiveReadBandwidth()));
+        }
+    }
+}
@@ -28,29 +28,61 @@
  */
 package de.mpg.biochem.mars.n5;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.janelia.saalfeldlab.n5.DatasetAttributes;
 import org.janelia.saalfeldlab.n5.N5Reader;
 
-import software.amazon.awssdk.auth.credentials.AnonymousCredentialsProvider;
-import software.amazon.awssdk.auth.credentials.AwsCredentials;
-import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.Bucket;
 import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
 import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 
 /**
  * Focused S3/MinIO browser for the Mars use case: enumerate buckets, list
@@ -69,8 +101,16 @@ public class MarsS3Browser implements AutoCloseable {
     private final S3Client s3;
 
     public MarsS3Browser(final String serverUrl) {
+        this(serverUrl, new MarsN5Factory());
+    }
+
+    /**
+     * Browser whose client uses the S3 transport options (connection pool,
+     * timeouts, HTTP implementation) configured on the given factory.
+     */
+    public MarsS3Browser(final String serverUrl, final MarsN5Factory factory) {
         this.serverUrl = normalizeServer(serverUrl);
-        this.s3 = buildClient(this.serverUrl);
+        this.s3 = buildClient(this.serverUrl, factory);
     }
 
     /**
@@ -126,8 +166,15 @@ public class MarsS3Browser implements AutoCloseable {
      * local). Each entry carries dimensions, dtype and computed size.
      */
     public static List<DatasetEntry> listDatasets(final String n5RootUrl) {
+        return listDatasets(n5RootUrl, new MarsN5Factory());
+    }
+
+    /** {@link #listDatasets(String)} with a configured factory. */
+    public static List<DatasetEntry> listDatasets(final String n5RootUrl,
+                                                  final MarsN5Factory factory)
+    {
         final List<DatasetEntry> entries = new ArrayList<>();
-        final N5Reader reader = new MarsN5ViewerReaderFun().apply(n5RootUrl);
+        final N5Reader reader = new MarsN5ViewerReaderFun(factory).apply(n5RootUrl);
         if (reader == null) return entries;
 
         final String[] groups = reader.list("/");
@@ -176,6 +223,546 @@ public class MarsS3Browser implements AutoCloseable {
         }
     }
 
+    /**
+     * Receives progress of {@link #copy}, {@link #move} and
+     * {@link #deletePrefix}, from worker threads.
+     */
+    public interface TransferListener {
+
+        /**
+         * @param objectsDone objects copied so far
+         * @param objectsTotal objects found so far, final once listing is done
+         * @param bytesDone bytes copied so far
+         * @param listingDone true once all objects under the prefix are known
+         */
+        void progress(long objectsDone, long objectsTotal, long bytesDone,
+                      boolean listingDone);
+    }
+
+    /** Largest object copied with a single CopyObject request. */
+    public static final long MULTIPART_COPY_THRESHOLD = 256L * 1024 * 1024;
+
+    /** Part size of multipart copies (UploadPartCopy). */
+    public static final long MULTIPART_COPY_PART_SIZE = 128L * 1024 * 1024;
+
+    /**
+     * Copy an object or everything under a prefix (an .n5, .yama.store, ...)
+     * to another location, possibly in another bucket on the same server.
+     * The data never leaves the server: objects are copied with CopyObject,
+     * large objects with multipart UploadPartCopy. Objects are copied in
+     * parallel while the source is still being listed.
+     *
+     * @return the number of objects copied
+     */
+    public long copy(final String sourceBucket, final String sourcePath,
+                     final String targetBucket, final String targetPath,
+                     final int numThreads, final TransferListener listener)
+    {
+        return transfer(sourceBucket, sourcePath, targetBucket, targetPath,
+                numThreads, listener, null);
+    }
+
+    /**
+     * {@link #copy} followed by deleting the copied source objects in
+     * batches of {@value #DELETE_BATCH_SIZE}. Sources are only deleted once
+     * every object was copied.
+     *
+     * @return the number of objects moved
+     */
+    public long move(final String sourceBucket, final String sourcePath,
+                     final String targetBucket, final String targetPath,
+                     final int numThreads, final TransferListener listener)
+    {
+        final List<String> copied = Collections.synchronizedList(
+                new ArrayList<>());
+        final long count = transfer(sourceBucket, sourcePath, targetBucket,
+                targetPath, numThreads, listener, copied);
+        deleteKeys(sourceBucket, copied);
+        return count;
+    }
+
+    private long transfer(final String sourceBucket, final String sourcePath,
+                          final String targetBucket, final String targetPath,
+                          final int numThreads, final TransferListener listener,
+                          final List<String> copied)
+    {
+        final String source = stripSlashes(sourcePath);
+        final String target = stripSlashes(targetPath);
+        final TransferListener progress = listener != null ? listener
+                : (a, b, c, d) -> {};
+
+        // single object, e.g. a .yama file
+        if (!source.isEmpty() && objectExists(sourceBucket, source)) {
+            final long size = s3.headObject(HeadObjectRequest.builder()
+                    .bucket(sourceBucket).key(source).build()).contentLength();
+            copyObject(sourceBucket, source, targetBucket, target, size);
+            if (copied != null) copied.add(source);
+            progress.progress(1, 1, size, true);
+            return 1;
+        }
+
+        final String sourcePrefix = source.isEmpty() ? "" : source + "/";
+        final String targetPrefix = target.isEmpty() ? "" : target + "/";
+        if (sourceBucket.equals(targetBucket) && (targetPrefix.startsWith(
+                sourcePrefix) || sourcePrefix.startsWith(targetPrefix)))
+            throw new IllegalArgumentException("Source and target overlap: " +
+                    sourcePrefix + " and " + targetPrefix);
+
+        final int threads = Math.max(1, numThreads);
+        final ExecutorService exec = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(4 * threads);
+        final AtomicLong objectsDone = new AtomicLong();
+        final AtomicLong bytesDone = new AtomicLong();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        long objectsTotal = 0;
+        try {
+            String continuationToken = null;
+            ListObjectsV2Response result;
+            do {
+                result = s3.listObjectsV2(ListObjectsV2Request.builder()
+                        .bucket(sourceBucket).prefix(sourcePrefix)
+                        .continuationToken(continuationToken).build());
+                for (S3Object object : result.contents()) {
+                    if (failure.get() != null) throw failure.get();
+                    objectsTotal++;
+                    final long total = objectsTotal;
+                    inFlight.acquire();
+                    exec.submit(() -> {
+                        try {
+                            copyObject(sourceBucket, object.key(), targetBucket,
+                                    targetPrefix + object.key().substring(sourcePrefix
+                                            .length()), object.size());
+                            if (copied != null) copied.add(object.key());
+                            progress.progress(objectsDone.incrementAndGet(), total,
+                                    bytesDone.addAndGet(object.size()), false);
+                        }
+                        catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                        finally {
+                            inFlight.release();
+                        }
+                    });
+                }
+                continuationToken = result.nextContinuationToken();
+            }
+            while (result.isTruncated());
+
+            exec.shutdown();
+            exec.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while copying " + sourcePrefix, e);
+        }
+        finally {
+            exec.shutdownNow();
+        }
+        if (failure.get() != null) throw failure.get();
+        progress.progress(objectsDone.get(), objectsTotal, bytesDone.get(), true);
+        return objectsTotal;
+    }
+
+    /**
+     * Server-side copy of one object, multipart with UploadPartCopy above
+     * {@link #MULTIPART_COPY_THRESHOLD}.
+     */
+    public void copyObject(final String sourceBucket, final String sourceKey,
+                           final String targetBucket, final String targetKey,
+                           final long size)
+    {
+        if (size <= MULTIPART_COPY_THRESHOLD) {
+            s3.copyObject(CopyObjectRequest.builder()
+                    .sourceBucket(sourceBucket).sourceKey(sourceKey)
+                    .destinationBucket(targetBucket).destinationKey(targetKey)
+                    .build());
+            return;
+        }
+
+        final String uploadId = s3.createMultipartUpload(
+                CreateMultipartUploadRequest.builder()
+                        .bucket(targetBucket).key(targetKey).build()).uploadId();
+        try {
+            final List<CompletedPart> parts = new ArrayList<>();
+            int partNumber = 1;
+            for (long start = 0; start < size; start += MULTIPART_COPY_PART_SIZE) {
+                final long end = Math.min(size, start + MULTIPART_COPY_PART_SIZE) - 1;
+                final UploadPartCopyResponse part = s3.uploadPartCopy(
+                        UploadPartCopyRequest.builder()
+                                .sourceBucket(sourceBucket).sourceKey(sourceKey)
+                                .destinationBucket(targetBucket).destinationKey(targetKey)
+                                .uploadId(uploadId).partNumber(partNumber)
+                                .copySourceRange("bytes=" + start + "-" + end)
+                                .build());
+                parts.add(CompletedPart.builder().partNumber(partNumber)
+                        .eTag(part.copyPartResult().eTag()).build());
+                partNumber++;
+            }
+            s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(targetBucket).key(targetKey).uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts)
+                            .build())
+                    .build());
+        }
+        catch (RuntimeException e) {
+            try {
+                s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(targetBucket).key(targetKey).uploadId(uploadId).build());
+            }
+            catch (RuntimeException abortFailure) {
+                e.addSuppressed(abortFailure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * List all objects below a folder, recursively, keyed by their path
+     * relative to the folder. Sizes and ETags come with the listing, so no
+     * further requests are needed to compare them with local files.
+     */
+    public Map<String, S3Object> listObjects(final String bucket, final String path) {
+        return listObjects(bucket, path, true);
+    }
+
+    /**
+     * List the objects in a folder keyed by their path relative to the
+     * folder, only those directly in it unless {@code recursive}.
+     */
+    public Map<String, S3Object> listObjects(final String bucket, final String path,
+                                             final boolean recursive)
+    {
+        final String folder = stripSlashes(path);
+        final String prefix = folder.isEmpty() ? "" : folder + "/";
+        final Map<String, S3Object> objects = new LinkedHashMap<>();
+        String continuationToken = null;
+        ListObjectsV2Response result;
+        do {
+            result = s3.listObjectsV2(ListObjectsV2Request.builder()
+                    .bucket(bucket).prefix(prefix).delimiter(recursive ? null : "/")
+                    .continuationToken(continuationToken).build());
+            for (S3Object object : result.contents())
+                if (object.key().length() > prefix.length())
+                    objects.put(object.key().substring(prefix.length()), object);
+            continuationToken = result.nextContinuationToken();
+        }
+        while (result.isTruncated());
+        return objects;
+    }
+
+    /** Files above this size are uploaded in parts by {@link #upload}. */
+    public static final long MULTIPART_UPLOAD_THRESHOLD = 64L * 1024 * 1024;
+
+    /** Part size of multipart uploads. */
+    public static final long MULTIPART_UPLOAD_PART_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * Upload a local file as is. Files above
+     * {@link #MULTIPART_UPLOAD_THRESHOLD} are uploaded in parts of
+     * {@link #MULTIPART_UPLOAD_PART_SIZE}, so the ETag of the object always
+     * equals {@link #eTag(Path)} of the file.
+     *
+     * @return the ETag of the stored object, without quotes
+     */
+    public String upload(final String bucket, final String key, final Path file)
+        throws IOException
+    {
+        final long size = Files.size(file);
+        if (size <= MULTIPART_UPLOAD_THRESHOLD)
+            return unquote(s3.putObject(PutObjectRequest.builder().bucket(bucket).key(
+                    key).build(), RequestBody.fromFile(file)).eTag());
+
+        final String uploadId = s3.createMultipartUpload(
+                CreateMultipartUploadRequest.builder()
+                        .bucket(bucket).key(key).build()).uploadId();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final List<CompletedPart> parts = new ArrayList<>();
+            int partNumber = 1;
+            for (long start = 0; start < size; start += MULTIPART_UPLOAD_PART_SIZE) {
+                final ByteBuffer part = ByteBuffer.allocate((int) Math.min(
+                        MULTIPART_UPLOAD_PART_SIZE, size - start));
+                while (part.hasRemaining())
+                    if (channel.read(part, start + part.position()) < 0)
+                        throw new IOException(file + " changed during upload");
+                part.flip();
+                final String eTag = s3.uploadPart(UploadPartRequest.builder()
+                        .bucket(bucket).key(key).uploadId(uploadId)
+                        .partNumber(partNumber).build(), RequestBody.fromByteBuffer(part))
+                        .eTag();
+                parts.add(CompletedPart.builder().partNumber(partNumber).eTag(eTag)
+                        .build());
+                partNumber++;
+            }
+            return unquote(s3.completeMultipartUpload(CompleteMultipartUploadRequest
+                    .builder().bucket(bucket).key(key).uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts)
+                            .build())
+                    .build()).eTag());
+        }
+        catch (IOException | RuntimeException e) {
+            try {
+                s3.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                        .bucket(bucket).key(key).uploadId(uploadId).build());
+            }
+            catch (RuntimeException abortFailure) {
+                e.addSuppressed(abortFailure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Download an object to a local file, replacing it atomically: the data
+     * is written to a temporary file next to the target first.
+     *
+     * @return the hex MD5 of the downloaded bytes
+     */
+    public String download(final String bucket, final String key, final Path file)
+        throws IOException
+    {
+        final Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        final Path partial = Files.createTempFile(parent, file.getFileName().toString(),
+                ".part");
+        final MessageDigest md5 = md5();
+        try {
+            try (InputStream in = new DigestInputStream(s3.getObject(GetObjectRequest
+                    .builder().bucket(bucket).key(key).build()), md5))
+            {
+                Files.copy(in, partial, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(partial);
+        }
+        return hex(md5.digest());
+    }
+
+    /**
+     * The ETag {@link #upload} produces for a file without server-side
+     * encryption: the hex MD5 of the file, or for multipart uploads the MD5
+     * of the part MD5s followed by "-" and the number of parts.
+     */
+    public static String eTag(final Path file) throws IOException {
+        final long size = Files.size(file);
+        final MessageDigest md5 = md5();
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            if (size <= MULTIPART_UPLOAD_THRESHOLD) {
+                for (int n; (n = in.read(buffer)) >= 0;)
+                    md5.update(buffer, 0, n);
+                return hex(md5.digest());
+            }
+            final MessageDigest partMd5 = md5();
+            int numParts = 0;
+            long remaining = size;
+            while (remaining > 0) {
+                long partRemaining = Math.min(MULTIPART_UPLOAD_PART_SIZE, remaining);
+                remaining -= partRemaining;
+                while (partRemaining > 0) {
+                    final int n = in.read(buffer, 0, (int) Math.min(buffer.length,
+                            partRemaining));
+                    if (n < 0) throw new IOException(file + " changed while hashing");
+                    partMd5.update(buffer, 0, n);
+                    partRemaining -= n;
+                }
+                md5.update(partMd5.digest());
+                numParts++;
+            }
+            return hex(md5.digest()) + "-" + numParts;
+        }
+    }
+
+    /** An ETag as listed by S3, without the surrounding quotes. */
+    static String unquote(final String eTag) {
+        if (eTag != null && eTag.length() > 1 && eTag.startsWith("\"") && eTag.endsWith("\""))
+            return eTag.substring(1, eTag.length() - 1);
+        return eTag;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    /**
+     * Delete the given keys with DeleteObjects requests of up to
+     * {@value #DELETE_BATCH_SIZE} keys.
+     */
+    public void deleteKeys(final String bucket, final List<String> keys) {
+        for (int i = 0; i < keys.size(); i += DELETE_BATCH_SIZE)
+            deleteBatch(bucket, keys.subList(i, Math.min(keys.size(), i +
+                    DELETE_BATCH_SIZE)), true);
+    }
+
+    /** Maximum number of keys in one DeleteObjects request. */
+    public static final int DELETE_BATCH_SIZE = 1000;
+
+    /**
+     * Delete everything under a prefix, e.g. an obsolete .n5 dataset, with
+     * DeleteObjects requests of up to {@value #DELETE_BATCH_SIZE} keys. The
+     * prefix is split into folders that are listed and deleted in parallel,
+     * each listed page is deleted in one request. With {@code dryRun} the
+     * objects are only listed and counted.
+     *
+     * @param bucket the bucket
+     * @param path the folder to delete, must not be the bucket root
+     * @param numThreads number of partitions listed and deleted in parallel
+     * @param dryRun only count the objects that would be deleted
+     * @param listener receives progress, bytesDone is the size deleted
+     * @return the number of objects deleted, or that would be deleted
+     */
+    public long deletePrefix(final String bucket, final String path,
+                             final int numThreads, final boolean dryRun,
+                             final TransferListener listener)
+    {
+        final String folder = stripSlashes(path);
+        if (folder.isEmpty())
+            throw new IllegalArgumentException("Refusing to delete the whole bucket " + bucket);
+        final TransferListener progress = listener != null ? listener
+                : (a, b, c, d) -> {};
+        final int threads = Math.max(1, numThreads);
+        final AtomicLong found = new AtomicLong();
+        final AtomicLong deleted = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        // Split into folders until there is work for every thread, objects
+        // found on the way are deleted right away.
+        List<String> partitions = Collections.singletonList(folder + "/");
+        for (int depth = 0; depth < 3 && partitions.size() < threads; depth++) {
+            final List<String> next = new ArrayList<>();
+            for (String partition : partitions) {
+                String continuationToken = null;
+                ListObjectsV2Response result;
+                do {
+                    result = s3.listObjectsV2(ListObjectsV2Request.builder()
+                            .bucket(bucket).prefix(partition).delimiter("/")
+                            .continuationToken(continuationToken).build());
+                    for (CommonPrefix commonPrefix : result.commonPrefixes())
+                        next.add(commonPrefix.prefix());
+                    deletePage(bucket, result.contents(), dryRun, found, deleted,
+                            bytes, progress);
+                    continuationToken = result.nextContinuationToken();
+                }
+                while (result.isTruncated());
+            }
+            partitions = next;
+            if (partitions.isEmpty()) break;
+        }
+
+        final ExecutorService exec = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (String partition : partitions)
+                futures.add(exec.submit(() -> {
+                    String continuationToken = null;
+                    ListObjectsV2Response result;
+                    do {
+                        // with deletion, keys of this page are gone before the next
+                        // listing, continuation tokens stay valid on S3 and MinIO
+                        result = s3.listObjectsV2(ListObjectsV2Request.builder()
+                                .bucket(bucket).prefix(partition)
+                                .continuationToken(continuationToken).build());
+                        deletePage(bucket, result.contents(), dryRun, found, deleted,
+                                bytes, progress);
+                        continuationToken = result.nextContinuationToken();
+                    }
+                    while (result.isTruncated());
+                }));
+            for (Future<?> future : futures)
+                future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while deleting " + folder, e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Could not delete " + folder, e.getCause());
+        }
+        finally {
+            exec.shutdownNow();
+        }
+
+        // a single object with the same name, e.g. a .yama file
+        if (objectExists(bucket, folder)) {
+            final long size = s3.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket).key(folder).build()).contentLength();
+            deletePage(bucket, Collections.singletonList(S3Object.builder().key(folder)
+                    .size(size).build()), dryRun, found, deleted, bytes, progress);
+        }
+        final long count = dryRun ? found.get() : deleted.get();
+        progress.progress(count, found.get(), bytes.get(), true);
+        return count;
+    }
+
+    private void deletePage(final String bucket, final List<S3Object> objects,
+                            final boolean dryRun, final AtomicLong found,
+                            final AtomicLong deleted, final AtomicLong bytes,
+                            final TransferListener progress)
+    {
+        if (objects.isEmpty()) return;
+        final long total = found.addAndGet(objects.size());
+        long size = 0;
+        for (S3Object object : objects)
+            size += object.size() != null ? object.size() : 0;
+        final List<String> keys = new ArrayList<>(objects.size());
+        for (S3Object object : objects)
+            keys.add(object.key());
+        if (dryRun) {
+            progress.progress(total, total, bytes.addAndGet(size), false);
+            return;
+        }
+        for (int i = 0; i < keys.size(); i += DELETE_BATCH_SIZE)
+            deleteBatch(bucket, keys.subList(i, Math.min(keys.size(), i +
+                    DELETE_BATCH_SIZE)), true);
+        progress.progress(deleted.addAndGet(keys.size()), total, bytes.addAndGet(size),
+                false);
+    }
+
+    /**
+     * Delete up to {@value #DELETE_BATCH_SIZE} keys with one DeleteObjects
+     * request. Throws if the server reports errors for any of the keys.
+     */
+    private void deleteBatch(final String bucket, final List<String> keys,
+                             final boolean quiet)
+    {
+        if (keys.isEmpty()) return;
+        final List<ObjectIdentifier> ids = new ArrayList<>(keys.size());
+        for (String key : keys)
+            ids.add(ObjectIdentifier.builder().key(key).build());
+        final DeleteObjectsResponse response = s3.deleteObjects(DeleteObjectsRequest
+                .builder().bucket(bucket).delete(Delete.builder().objects(ids)
+                        .quiet(quiet).build()).build());
+        if (response.hasErrors() && !response.errors().isEmpty())
+            throw new IllegalStateException("Could not delete " + response.errors()
+                    .size() + " objects, e.g. " + response.errors().get(0).key() + ": " +
+                    response.errors().get(0).message());
+    }
+
+    private static String stripSlashes(final String path) {
+        String p = path == null ? "" : path;
+        while (p.startsWith("/"))
+            p = p.substring(1);
+        while (p.endsWith("/"))
+            p = p.substring(0, p.length() - 1);
+        return p;
+    }
+
     @Override
     public void close() {
         try {
@@ -196,13 +783,13 @@ public class MarsS3Browser implements AutoCloseable {
     }
 
     /**
-     * Build a path-style S3 client pointed at the given server endpoint. Mirrors
-     * MarsN5Factory.createS3WithEndpoint; US_EAST_2 is a dummy region required by
-     * the builder. Falls back to anonymous credentials if none are configured.
+     * Build a path-style S3 client pointed at the given server endpoint with
+     * {@link MarsN5Factory#createS3WithEndpoint}, so browser and readers share
+     * credentials handling, transport options and {@link MarsS3Metrics}.
      */
-    private static S3Client buildClient(final String serverUrl) {
-        final AwsCredentialsProvider credentialsProvider = resolveCredentialsProvider();
-
+    private static S3Client buildClient(final String serverUrl,
+                                        final MarsN5Factory factory)
+    {
         // Endpoint is scheme://host:port (strip any path).
         String endpoint = serverUrl;
         try {
@@ -216,24 +803,7 @@ public class MarsS3Browser implements AutoCloseable {
             // use as-is
         }
 
-        // US_EAST_2 is used as a dummy region.
-        return S3Client.builder().forcePathStyle(true)
-                .endpointOverride(URI.create(endpoint))
-                .region(Region.US_EAST_2)
-                .credentialsProvider(credentialsProvider).build();
-    }
-
-    private static AwsCredentialsProvider resolveCredentialsProvider() {
-        try {
-            final AwsCredentials credentials = DefaultCredentialsProvider.create()
-                    .resolveCredentials();
-            return StaticCredentialsProvider.create(credentials);
-        }
-        catch (final Exception e) {
-            System.out.println(
-                    "Could not load AWS credentials, falling back to anonymous.");
-            return AnonymousCredentialsProvider.create();
-        }
+        return factory.createS3WithEndpoint(endpoint);
     }
 
     /** Parsed components of a canonical Mars N5 URL. */
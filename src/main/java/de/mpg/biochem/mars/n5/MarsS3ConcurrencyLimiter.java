@@ -0,0 +1,274 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.services.s3.DelegatingS3Client;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.S3Request;
+
+/**
+ * Adaptive limit on the number of concurrent requests to one S3 server. When
+ * many clients hit a shared MinIO at once, it answers 503 SlowDown, and
+ * fixed-size thread pools that retry at full concurrency keep it overloaded.
+ * This limiter instead looks for the highest concurrency the server can
+ * sustain and holds it there.
+ * <p>
+ * The limit is adjusted once per round trip, from the mean latency of the
+ * requests that finished in it. Compared with the lowest such mean seen (the
+ * latency of an idle server), the rise in latency tells how many requests
+ * wait in the server's queue: {@code limit * (1 - idle / mean)}. Below
+ * {@value #ALPHA} waiting requests the limit grows by one, above {@value
+ * #BETA} it shrinks by one, so it settles just above what the server can
+ * serve at once. At start it grows by half per round trip until the first
+ * sign of congestion. Every 503 or 429 response, including attempts the SDK
+ * retries, halves the limit, at most once per round trip. The limit stays
+ * between 1 and the maximum given, and only grows while the client actually
+ * uses at least half of it. The idle latency is measured again every
+ * {@value #BASELINE_ROUNDS} round trips, in case it changed.
+ * <p>
+ * {@link #wrap(S3Client)} puts the limiter in front of a client, so each API
+ * call (with its retries) holds one slot; the limiter must also be
+ * registered as an {@link ExecutionInterceptor} of that client to see
+ * throttled attempts. One limiter can be shared by all clients for the same
+ * server. For GETs returning a stream, the slot is released once the
+ * response headers arrive.
+ *
+ * @author Karl Duderstadt
+ */
+public final class MarsS3ConcurrencyLimiter implements ExecutionInterceptor {
+
+    static final int INITIAL_LIMIT = 8;
+    static final double ALPHA = 2;
+    static final double BETA = 4;
+    static final double BACKOFF = 0.5;
+    static final int BASELINE_ROUNDS = 200;
+
+    private static final long MIN_ROUND_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ThreadLocal<Boolean> holding = new ThreadLocal<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final int maxLimit;
+
+    private double limit;
+    private int inFlight = 0;
+    private boolean slowStart = true;
+
+    // current round trip
+    private long roundStart = System.nanoTime();
+    private long roundNanos = MIN_ROUND_NANOS;
+    private long roundRttSum = 0;
+    private int roundSamples = 0;
+    private int roundMaxInFlight = 0;
+    private boolean roundThrottled = false;
+
+    private double idleRtt = -1;
+    private int baselineRounds = 0;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * @param maxLimit highest concurrency allowed, e.g. the size of the
+     *            connection pool
+     */
+    public MarsS3ConcurrencyLimiter(final int maxLimit) {
+        if (maxLimit < 1)
+            throw new IllegalArgumentException("Maximum concurrency must be at least 1");
+        this.maxLimit = maxLimit;
+        this.limit = Math.min(INITIAL_LIMIT, maxLimit);
+    }
+
+    /** Client that runs every request of the given client through this limiter. */
+    public S3Client wrap(final S3Client s3) {
+        return new LimitedS3Client(s3);
+    }
+
+    private final class LimitedS3Client extends DelegatingS3Client {
+
+        LimitedS3Client(final S3Client s3) {
+            super(s3);
+        }
+
+        @Override
+        protected <T extends S3Request, ReturnT> ReturnT invokeOperation(final T request,
+                final Function<T, ReturnT> operation) {
+            // calls made while holding a slot, e.g. paginators, reuse it
+            if (holding.get() != null) return operation.apply(request);
+            acquire();
+            holding.set(Boolean.TRUE);
+            final long start = System.nanoTime();
+            boolean sample = false;
+            try {
+                final ReturnT result = operation.apply(request);
+                sample = true;
+                return result;
+            } catch (final AwsServiceException e) {
+                // a quick 404 is as good a latency sample as a success
+                sample = e.statusCode() < 500 && e.statusCode() != 429;
+                throw e;
+            } finally {
+                holding.remove();
+                release(sample ? System.nanoTime() - start : -1);
+            }
+        }
+    }
+
+    private void acquire() {
+        requests.incrementAndGet();
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                final long start = System.nanoTime();
+                while (inFlight >= (int) limit)
+                    available.await();
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+            inFlight++;
+            roundMaxInFlight = Math.max(roundMaxInFlight, inFlight);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SdkClientException.create("Interrupted while waiting for an S3 request slot", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Frees a slot and records the latency, or -1 for none. */
+    private void release(final long rttNanos) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (rttNanos >= 0) {
+                roundRttSum += rttNanos;
+                roundSamples++;
+            }
+            final long now = System.nanoTime();
+            if (now - roundStart >= roundNanos) endRound(now);
+            for (int i = inFlight; i < (int) limit; i++)
+                available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void endRound(final long now) {
+        if (!roundThrottled && roundSamples > 0) {
+            final double rtt = (double) roundRttSum / roundSamples;
+            if (idleRtt < 0 || rtt < idleRtt || ++baselineRounds >= BASELINE_ROUNDS) {
+                idleRtt = rtt;
+                baselineRounds = 0;
+            }
+            roundNanos = Math.max(MIN_ROUND_NANOS, (long) rtt);
+
+            final double queued = limit * (1 - idleRtt / rtt);
+            if (queued > BETA) {
+                slowStart = false;
+                limit = Math.max(1, limit - 1);
+            } else if (queued < ALPHA && roundMaxInFlight >= limit / 2) {
+                // a client using less than half its limit says nothing about the server
+                limit = Math.min(maxLimit, slowStart ? limit * 1.5 : limit + 1);
+            }
+        }
+        roundStart = now;
+        roundRttSum = 0;
+        roundSamples = 0;
+        roundMaxInFlight = inFlight;
+        roundThrottled = false;
+    }
+
+    // ---- ExecutionInterceptor ----
+
+    @Override
+    public void afterTransmission(final Context.AfterTransmission context,
+                                  final ExecutionAttributes executionAttributes)
+    {
+        final int status = context.httpResponse().statusCode();
+        if (status == 503 || status == 429) backOff();
+    }
+
+    private void backOff() {
+        throttled.incrementAndGet();
+        lock.lock();
+        try {
+            if (roundThrottled) return;
+            // throttled latencies include retry back-off, the round is not used
+            roundThrottled = true;
+            slowStart = false;
+            limit = Math.max(1, limit * BACKOFF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Current concurrency limit. */
+    public double getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /** 503 and 429 responses seen, including retried attempts. */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /** Total time requests spent waiting for a slot. */
+    public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+}
@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.DelegatingS3Client;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+/**
+ * S3 client that hedges slow GETs: if the response headers of a GET have not
+ * arrived after a delay, a duplicate GET is sent and whichever response
+ * arrives first is used, the other is aborted. On shared MinIO clusters, a
+ * few requests wait far longer than the rest in server queues, and a single
+ * slow chunk holds back a whole frame.
+ * <p>
+ * The delay is a percentile (e.g. 0.95) of the time to response headers of
+ * the last {@value #WINDOW} GETs of this client, at least
+ * {@value #MIN_DELAY_MILLIS} ms, and hedging starts after
+ * {@value #MIN_SAMPLES} GETs. A budget caps the extra load: each GET earns
+ * {@code budget} hedges (e.g. 0.05 for at most 5% more GETs), and
+ * unused budget is capped at {@value #MAX_TOKENS} hedges so a burst of slow
+ * requests cannot flood the server.
+ * <p>
+ * Attempts run on virtual threads, only GetObject is hedged.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsS3HedgingClient extends DelegatingS3Client {
+
+    static final int WINDOW = 1024;
+    static final int MIN_SAMPLES = 64;
+    static final long MIN_DELAY_MILLIS = 5;
+    static final double MAX_TOKENS = 10;
+
+    private final double percentile;
+    private final double budget;
+
+    private final long[] latencies = new long[WINDOW];
+    private int numLatencies = 0;
+    private int nextLatency = 0;
+    private long delayNanos = -1;
+    private double tokens = 0;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+
+    /**
+     * @param s3 the client doing the requests
+     * @param percentile latency percentile after which a GET is hedged, e.g. 0.95
+     * @param budget hedges allowed per GET, e.g. 0.05
+     */
+    public MarsS3HedgingClient(final S3Client s3, final double percentile,
+            final double budget) {
+        super(s3);
+        if (percentile <= 0 || percentile >= 1)
+            throw new IllegalArgumentException("Percentile must be between 0 and 1");
+        this.percentile = percentile;
+        this.budget = budget;
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(final GetObjectRequest request,
+            final ResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+        requests.incrementAndGet();
+        final long delay = earnToken();
+        final AtomicInteger winner = new AtomicInteger(-1);
+        final CompletableFuture<ReturnT> result = new CompletableFuture<>();
+
+        final Thread primary = attempt(0, request, transformer, winner, result);
+        Thread hedge = null;
+        try {
+            if (delay < 0) return result.get();
+            try {
+                return result.get(delay, TimeUnit.NANOSECONDS);
+            } catch (final TimeoutException e) {
+                // headers still missing, or the winner is still reading the body
+                if (winner.get() == -1 && spendToken()) {
+                    hedges.incrementAndGet();
+                    hedge = attempt(1, request, transformer, winner, result);
+                }
+                return result.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SdkClientException.create("Interrupted while reading " + request.key(), e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw SdkClientException.create("Could not read " + request.key(), e.getCause());
+        } finally {
+            // stop the loser, its response is aborted if it still arrives
+            if (winner.get() != 0) primary.interrupt();
+            if (hedge != null) {
+                if (winner.get() == 1) hedgesWon.incrementAndGet();
+                else hedge.interrupt();
+            }
+        }
+    }
+
+    private <ReturnT> Thread attempt(final int index, final GetObjectRequest request,
+            final ResponseTransformer<GetObjectResponse, ReturnT> transformer,
+            final AtomicInteger winner, final CompletableFuture<ReturnT> result) {
+        final long start = System.nanoTime();
+        return Thread.ofVirtual().name("mars-s3-get").start(() -> {
+            try {
+                final ReturnT value = delegate().getObject(request, (response, in) -> {
+                    recordLatency(System.nanoTime() - start);
+                    if (!winner.compareAndSet(-1, index)) {
+                        in.abort();
+                        return null;
+                    }
+                    return transformer.transform(response, in);
+                });
+                if (winner.get() == index) result.complete(value);
+            } catch (final Throwable e) {
+                // the first outcome wins, failures of the loser are dropped
+                if (winner.compareAndSet(-1, index) || winner.get() == index)
+                    result.completeExceptionally(e);
+            }
+        });
+    }
+
+    @Override
+    public S3Client delegate() {
+        return (S3Client) super.delegate();
+    }
+
+    /** Earns budget for one GET and returns the hedge delay, or -1 for none yet. */
+    private synchronized long earnToken() {
+        tokens = Math.min(MAX_TOKENS, tokens + budget);
+        return delayNanos;
+    }
+
+    private synchronized boolean spendToken() {
+        if (tokens < 1) return false;
+        tokens -= 1;
+        return true;
+    }
+
+    private synchronized void recordLatency(final long nanos) {
+        latencies[nextLatency] = nanos;
+        nextLatency = (nextLatency + 1) % WINDOW;
+        numLatencies = Math.min(WINDOW, numLatencies + 1);
+        // recompute the percentile every few samples
+        if (numLatencies >= MIN_SAMPLES && nextLatency % 16 == 0) {
+            final long[] sorted = Arrays.copyOf(latencies, numLatencies);
+            Arrays.sort(sorted);
+            delayNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_DELAY_MILLIS),
+                    sorted[(int) Math.min(numLatencies - 1, percentile * numLatencies)]);
+        }
+    }
+
+    /** Current hedge delay in milliseconds, or -1 while still collecting samples. */
+    public synchronized double getDelayMillis() {
+        return delayNanos < 0 ? -1 : delayNanos / 1e6;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /** Duplicate GETs sent. */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /** Duplicate GETs that answered first. */
+    public long getHedgesWonCount() {
+        return hedgesWon.get();
+    }
+}
@@ -0,0 +1,815 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.DelegatingS3Client;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * S3 client that keeps the metadata objects of N5 and Zarr stores
+ * (attributes.json, .zarray, .zattrs, .zgroup and zarr.json) in memory.
+ * <ul>
+ * <li>When a Zarr v2 {@code .zmetadata} object or a Zarr v3 root
+ * {@code zarr.json} with {@code consolidated_metadata} is read, its entries
+ * are kept, so opening a plate or multi-position store costs one GET instead
+ * of one per array and group.</li>
+ * <li>With attribute caching, every metadata object read or written is kept.
+ * The {@link Store} can be shared by several clients, so readers opened one
+ * after the other for the same store don't fetch the same attributes
+ * again.</li>
+ * <li>{@link #prefetch(String, String, int)} walks a root with parallel
+ * delimited listings and reads all its metadata objects in one sweep.
+ * The listings of the sweep are kept too and answer delimited listings of
+ * the same folders.</li>
+ * <li>{@link #saveSnapshot} writes what a sweep found to a local file, and
+ * {@link #loadSnapshot} restores it, so a root opened again later needs no
+ * request before the first pixel. {@link #refresh} then revalidates the
+ * metadata with conditional GETs (If-None-Match with the stored ETag), which
+ * cost a 304 response without body for each unchanged object.</li>
+ * </ul>
+ * Below a consolidated or prefetched root, metadata objects that are not in
+ * memory are reported as missing without a request. Any object written,
+ * copied or deleted through this client drops the kept listings of the
+ * folders above it, and metadata among them updates the cache.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsS3MetadataCache extends DelegatingS3Client {
+
+    public static final String N5_ATTRIBUTES = "attributes.json";
+    public static final String ZARR_V2_CONSOLIDATED = ".zmetadata";
+    public static final String ZARR_V3_METADATA = "zarr.json";
+
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final String[] METADATA_FILES = {N5_ATTRIBUTES, ".zarray", ".zattrs",
+            ".zgroup", ZARR_V3_METADATA};
+
+    private final S3Client s3;
+    private final Store store;
+    private final boolean cacheAttributes;
+    private final String namespace;
+
+    /** Cache that only keeps consolidated metadata. */
+    public MarsS3MetadataCache(final S3Client s3) {
+        this(s3, new Store(), false);
+    }
+
+    /**
+     * @param s3 the client doing the requests
+     * @param store where metadata is kept, may be shared between clients
+     * @param cacheAttributes keep every metadata object read or written, not
+     *            only consolidated metadata
+     */
+    public MarsS3MetadataCache(final S3Client s3, final Store store,
+            final boolean cacheAttributes) {
+        super(s3);
+        this.s3 = s3;
+        this.store = store;
+        this.cacheAttributes = cacheAttributes;
+        this.namespace = namespaceOf(s3);
+    }
+
+    /**
+     * True if metadata below this root is answered from consolidated or
+     * prefetched metadata.
+     */
+    public boolean isComplete(final String bucket, final String rootKey) {
+        return store.roots.contains(cacheKey(bucket, prefix(rootKey)));
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(final GetObjectRequest request,
+            final ResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+        if (request.range() == null && isMetadataKey(request.key())) {
+            final byte[] cached = lookup(request.bucket(), request.key());
+            if (cached != null)
+                return transform(transformer, GetObjectResponse.builder()
+                        .contentLength((long) cached.length).build(), cached);
+        }
+        if (request.range() == null && (isConsolidatedKey(request.key()) ||
+                cacheAttributes && isMetadataKey(request.key()))) {
+            final ResponseBytes<GetObjectResponse> bytes = s3.getObject(request,
+                    ResponseTransformer.toBytes());
+            update(request.bucket(), request.key(), bytes.asByteArrayUnsafe());
+            keepETag(request.bucket(), request.key(), bytes.response().eTag());
+            return transform(transformer, bytes.response(), bytes.asByteArrayUnsafe());
+        }
+        return s3.getObject(request, transformer);
+    }
+
+    @Override
+    public HeadObjectResponse headObject(final HeadObjectRequest request) {
+        if (isMetadataKey(request.key())) {
+            final byte[] cached = lookup(request.bucket(), request.key());
+            if (cached != null)
+                return HeadObjectResponse.builder().contentLength((long) cached.length)
+                        .build();
+        }
+        return s3.headObject(request);
+    }
+
+    @Override
+    public PutObjectResponse putObject(final PutObjectRequest request,
+            final RequestBody requestBody) {
+        forget(request.bucket(), request.key());
+        if (!isMetadataKey(request.key()) && !isConsolidatedKey(request.key()))
+            return s3.putObject(request, requestBody);
+
+        final byte[] bytes = readAll(requestBody);
+        final PutObjectResponse response = s3.putObject(request, RequestBody.fromBytes(bytes));
+        update(request.bucket(), request.key(), bytes);
+        keepETag(request.bucket(), request.key(), response.eTag());
+        return response;
+    }
+
+    @Override
+    public CopyObjectResponse copyObject(final CopyObjectRequest request) {
+        forget(request.destinationBucket(), request.destinationKey());
+        final CopyObjectResponse response = s3.copyObject(request);
+        reread(request.destinationBucket(), request.destinationKey());
+        return response;
+    }
+
+    @Override
+    public CompleteMultipartUploadResponse completeMultipartUpload(
+            final CompleteMultipartUploadRequest request) {
+        forget(request.bucket(), request.key());
+        final CompleteMultipartUploadResponse response = s3.completeMultipartUpload(request);
+        reread(request.bucket(), request.key());
+        return response;
+    }
+
+    @Override
+    public DeleteObjectResponse deleteObject(final DeleteObjectRequest request) {
+        forget(request.bucket(), request.key());
+        return s3.deleteObject(request);
+    }
+
+    @Override
+    public DeleteObjectsResponse deleteObjects(final DeleteObjectsRequest request) {
+        if (request.delete() != null)
+            for (ObjectIdentifier id : request.delete().objects())
+                forget(request.bucket(), id.key());
+        return s3.deleteObjects(request);
+    }
+
+    /** Answers delimited listings of folders listed by a sweep from memory. */
+    @Override
+    public ListObjectsV2Response listObjectsV2(final ListObjectsV2Request request) {
+        if ("/".equals(request.delimiter()) && request.prefix() != null &&
+                request.continuationToken() == null && request.startAfter() == null &&
+                !store.listings.isEmpty()) {
+            final Listing listing = store.listings.get(cacheKey(request.bucket(),
+                    request.prefix()));
+            if (listing != null && (request.maxKeys() == null || request.maxKeys() >= listing
+                    .objects.size() + listing.prefixes.size()))
+                return listing.response(request);
+        }
+        return s3.listObjectsV2(request);
+    }
+
+    /**
+     * Read all metadata objects below a root. Groups and datasets are found
+     * with delimited listings, level by level, skipping chunk folders; the
+     * listings and reads of each level run in parallel. Afterwards metadata
+     * lookups below the root don't cause requests.
+     *
+     * @param bucket the bucket
+     * @param rootKey key of the root, e.g. the .n5 or .zarr folder
+     * @param numThreads number of parallel requests
+     * @return the number of metadata objects read
+     */
+    public int prefetch(final String bucket, final String rootKey, final int numThreads) {
+        return sweep(bucket, rootKey, numThreads, false);
+    }
+
+    /**
+     * Check the metadata below a root against the server, e.g. after {@link
+     * #loadSnapshot}. Like {@link #prefetch}, but objects with a known ETag
+     * are only read again if they changed, and metadata and listings no
+     * longer on the server are dropped.
+     *
+     * @return the number of metadata objects added, changed or removed
+     */
+    public int refresh(final String bucket, final String rootKey, final int numThreads) {
+        return sweep(bucket, rootKey, numThreads, true);
+    }
+
+    private int sweep(final String bucket, final String rootKey, final int numThreads,
+            final boolean conditional) {
+        final String root = prefix(rootKey);
+        final String rootCacheKey = cacheKey(bucket, root);
+        // only what was kept before the sweep can be gone, not what is written meanwhile
+        final List<String> kept = new ArrayList<>();
+        for (String key : store.entries.keySet())
+            if (key.startsWith(rootCacheKey) && isMetadataKey(key))
+                kept.add(key);
+        final ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, numThreads));
+        try {
+            int numMetadata = 0;
+            int changed = 0;
+            final Set<String> found = ConcurrentHashMap.newKeySet();
+            final Map<String, Listing> listed = new LinkedHashMap<>();
+            List<String> level = Collections.singletonList(root);
+            while (!level.isEmpty()) {
+                final List<Future<Listing>> listings = new ArrayList<>();
+                for (String prefix : level)
+                    listings.add(exec.submit(() -> list(bucket, prefix)));
+                final List<Listing> levelListings = new ArrayList<>();
+                final List<Future<Boolean>> reads = new ArrayList<>();
+                for (int i = 0; i < level.size(); i++) {
+                    final Listing listing = listings.get(i).get();
+                    levelListings.add(listing);
+                    for (String key : listing.metadataKeys)
+                        reads.add(exec.submit(() -> read(bucket, key, conditional, found)));
+                    numMetadata += listing.metadataKeys.size();
+                    if (listing.complete)
+                        listed.put(cacheKey(bucket, level.get(i)), listing);
+                }
+                for (Future<Boolean> read : reads)
+                    if (read.get()) changed++;
+
+                // numeric folders are chunks in arrays, but groups may have
+                // numeric children, e.g. the scales of OME-Zarr images
+                final List<String> next = new ArrayList<>();
+                for (Listing listing : levelListings) {
+                    next.addAll(listing.children);
+                    if (!isArray(bucket, listing))
+                        next.addAll(listing.numericChildren);
+                }
+                level = next;
+            }
+
+            // drop what is gone from the server
+            for (String key : kept)
+                if (!found.contains(key)) {
+                    store.entries.remove(key);
+                    store.etags.remove(key);
+                    if (conditional) changed++;
+                }
+            store.listings.keySet().removeIf(key -> key.startsWith(rootCacheKey) &&
+                    !listed.containsKey(key));
+            store.listings.putAll(listed);
+            store.roots.add(rootCacheKey);
+            return conditional ? changed : numMetadata;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SdkClientException.create("Interrupted while prefetching " + root, e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw SdkClientException.create("Could not prefetch " + root, e.getCause());
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    /** True if the folder holds array metadata, as read by the sweep. */
+    private boolean isArray(final String bucket, final Listing listing) {
+        for (String key : listing.metadataKeys) {
+            if (key.endsWith(".zarray"))
+                return true;
+            if (!key.endsWith(ZARR_V3_METADATA) && !key.endsWith(N5_ATTRIBUTES))
+                continue;
+            final byte[] bytes = store.entries.get(cacheKey(bucket, key));
+            if (bytes == null)
+                continue;
+            try {
+                final JsonElement json = JsonParser.parseString(new String(bytes,
+                        StandardCharsets.UTF_8));
+                if (!json.isJsonObject())
+                    continue;
+                final JsonObject attributes = json.getAsJsonObject();
+                if (key.endsWith(ZARR_V3_METADATA) ? attributes.has("node_type") &&
+                        "array".equals(attributes.get("node_type").getAsString())
+                        : attributes.has("dimensions"))
+                    return true;
+            } catch (final RuntimeException e) {
+                // not readable as metadata, decide by the other files
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads one metadata object of a sweep, conditionally if its ETag is
+     * known, and returns true if it was new or changed.
+     */
+    private boolean read(final String bucket, final String key, final boolean conditional,
+            final Set<String> found) {
+        final String cacheKey = cacheKey(bucket, key);
+        final String eTag = conditional && store.entries.containsKey(cacheKey)
+                ? store.etags.get(cacheKey)
+                : null;
+        try {
+            final ResponseBytes<GetObjectResponse> bytes = s3.getObjectAsBytes(
+                    GetObjectRequest.builder().bucket(bucket).key(key).ifNoneMatch(eTag)
+                            .build());
+            found.add(cacheKey);
+            final byte[] old = store.entries.put(cacheKey, bytes.asByteArrayUnsafe());
+            if (bytes.response().eTag() != null)
+                store.etags.put(cacheKey, bytes.response().eTag());
+            else
+                store.etags.remove(cacheKey);
+            return old == null || !Arrays.equals(old, bytes.asByteArrayUnsafe());
+        } catch (final NoSuchKeyException e) {
+            // deleted since listing
+            return false;
+        } catch (final S3Exception e) {
+            if (e.statusCode() != 304)
+                throw e;
+            found.add(cacheKey);
+            return false;
+        }
+    }
+
+    /**
+     * Write the metadata and listings kept for a root, as left by {@link
+     * #prefetch} or {@link #refresh}, to a snapshot file in the directory.
+     * Does nothing if the root was not swept.
+     */
+    public void saveSnapshot(final String bucket, final String rootKey, final Path directory)
+            throws IOException {
+        final String rootCacheKey = cacheKey(bucket, prefix(rootKey));
+        if (!store.roots.contains(rootCacheKey))
+            return;
+
+        final Base64.Encoder base64 = Base64.getEncoder();
+        final JsonObject entries = new JsonObject();
+        for (Map.Entry<String, byte[]> e : store.entries.entrySet())
+            if (e.getKey().startsWith(rootCacheKey)) {
+                final JsonObject entry = new JsonObject();
+                entry.addProperty("data", base64.encodeToString(e.getValue()));
+                final String eTag = store.etags.get(e.getKey());
+                if (eTag != null)
+                    entry.addProperty("etag", eTag);
+                entries.add(e.getKey().substring(rootCacheKey.length()), entry);
+            }
+        final JsonObject listings = new JsonObject();
+        for (Map.Entry<String, Listing> e : store.listings.entrySet())
+            if (e.getKey().startsWith(rootCacheKey))
+                listings.add(e.getKey().substring(rootCacheKey.length()), e.getValue().toJson());
+
+        final JsonObject snapshot = new JsonObject();
+        snapshot.addProperty("version", SNAPSHOT_VERSION);
+        snapshot.addProperty("root", rootCacheKey);
+        snapshot.add("entries", entries);
+        snapshot.add("listings", listings);
+
+        Files.createDirectories(directory);
+        final Path file = snapshotFile(rootCacheKey, directory);
+        final Path part = file.resolveSibling(file.getFileName() + ".part");
+        Files.write(part, snapshot.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restore the metadata and listings of a root from its snapshot file in
+     * the directory. The root is complete afterwards, as after {@link
+     * #prefetch}, but the snapshot may be out of date; call {@link #refresh}
+     * to check it.
+     *
+     * @return false if there is no usable snapshot for the root
+     */
+    public boolean loadSnapshot(final String bucket, final String rootKey,
+            final Path directory) {
+        final String rootCacheKey = cacheKey(bucket, prefix(rootKey));
+        final Path file = snapshotFile(rootCacheKey, directory);
+        try {
+            final JsonObject snapshot = JsonParser.parseString(new String(Files.readAllBytes(
+                    file), StandardCharsets.UTF_8)).getAsJsonObject();
+            if (snapshot.get("version").getAsInt() != SNAPSHOT_VERSION ||
+                    !rootCacheKey.equals(snapshot.get("root").getAsString()))
+                return false;
+
+            final Base64.Decoder base64 = Base64.getDecoder();
+            for (Map.Entry<String, JsonElement> e : snapshot.getAsJsonObject("entries")
+                    .entrySet()) {
+                final JsonObject entry = e.getValue().getAsJsonObject();
+                final String cacheKey = rootCacheKey + e.getKey();
+                store.entries.put(cacheKey, base64.decode(entry.get("data").getAsString()));
+                if (entry.has("etag"))
+                    store.etags.put(cacheKey, entry.get("etag").getAsString());
+            }
+            for (Map.Entry<String, JsonElement> e : snapshot.getAsJsonObject("listings")
+                    .entrySet())
+                store.listings.put(rootCacheKey + e.getKey(), Listing.fromJson(e.getValue()
+                        .getAsJsonObject()));
+            store.roots.add(rootCacheKey);
+            return true;
+        } catch (final NoSuchFileException e) {
+            return false;
+        } catch (final IOException | RuntimeException e) {
+            System.out.println("Could not read metadata snapshot " + file + ": " + e
+                    .getMessage());
+            return false;
+        }
+    }
+
+    private static Path snapshotFile(final String rootCacheKey, final Path directory) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(rootCacheKey
+                    .getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder();
+            for (byte b : digest)
+                name.append(String.format("%02x", b));
+            return directory.resolve(name.append(".json").toString());
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Forget the metadata of all clients sharing the store. */
+    public void clear() {
+        store.clear();
+    }
+
+    /**
+     * One folder of a prefetch: its metadata objects and the sub folders that
+     * may be groups or datasets. Numeric sub folders are kept apart, they are
+     * chunks if the folder turns out to be an array. Listing stops at the first page with only
+     * chunks, which matters for Zarr arrays with "." separated chunk keys;
+     * all metadata names of the folder are read then.
+     */
+    private Listing list(final String bucket, final String prefix) {
+        final Listing listing = new Listing();
+        listing.complete = true;
+        final List<String> folders = new ArrayList<>();
+        boolean array = false;
+        String token = null;
+        do {
+            final ListObjectsV2Response page = s3.listObjectsV2(ListObjectsV2Request.builder()
+                    .bucket(bucket)
+                    .prefix(prefix)
+                    .delimiter("/")
+                    .continuationToken(token)
+                    .build());
+            boolean onlyChunks = true;
+            for (S3Object object : page.contents()) {
+                listing.objects.put(object.key(), object.size());
+                final String name = object.key().substring(prefix.length());
+                if (isMetadataKey(object.key())) {
+                    listing.metadataKeys.add(object.key());
+                    array |= !name.equals(".zgroup");
+                    onlyChunks = false;
+                } else if (!name.matches("[0-9.]+")) {
+                    onlyChunks = false;
+                }
+            }
+            for (CommonPrefix folder : page.commonPrefixes()) {
+                listing.prefixes.add(folder.prefix());
+                final String name = folder.prefix().substring(prefix.length(),
+                        folder.prefix().length() - 1);
+                if (!name.matches("[0-9]+")) {
+                    folders.add(folder.prefix());
+                    onlyChunks = false;
+                } else {
+                    listing.numericChildren.add(folder.prefix());
+                }
+            }
+            if (page.isTruncated() && onlyChunks) {
+                // metadata may be on the pages skipped, try all names
+                for (String file : METADATA_FILES)
+                    if (!listing.metadataKeys.contains(prefix + file))
+                        listing.metadataKeys.add(prefix + file);
+                listing.complete = false;
+                break;
+            }
+            token = page.isTruncated() ? page.nextContinuationToken() : null;
+        } while (token != null);
+
+        // chunk folders of Zarr v3 arrays and sharded N5 datasets
+        for (String folder : folders)
+            if (!(array && (folder.endsWith("/c/") || folder.endsWith("/" +
+                    MarsShardedS3Client.SHARDS_FOLDER + "/"))))
+                listing.children.add(folder);
+        return listing;
+    }
+
+    /**
+     * The cached metadata object, throws {@link NoSuchKeyException} for
+     * metadata missing below a complete root and returns null if the server
+     * has to be asked.
+     */
+    private byte[] lookup(final String bucket, final String key) {
+        final byte[] cached = store.entries.get(cacheKey(bucket, key));
+        if (cached != null)
+            return cached;
+        if (completeRootOf(bucket, key) != null)
+            throw NoSuchKeyException.builder()
+                    .message("Not in cached metadata: " + key)
+                    .statusCode(404)
+                    .build();
+        return null;
+    }
+
+    private String completeRootOf(final String bucket, final String key) {
+        if (store.roots.isEmpty())
+            return null;
+        int slash = key.lastIndexOf('/');
+        while (true) {
+            final String root = cacheKey(bucket, key.substring(0, slash + 1));
+            if (store.roots.contains(root))
+                return root;
+            if (slash < 0)
+                return null;
+            slash = key.lastIndexOf('/', slash - 1);
+        }
+    }
+
+    private void keepETag(final String bucket, final String key, final String eTag) {
+        final String cacheKey = cacheKey(bucket, key);
+        if (eTag != null && store.entries.containsKey(cacheKey))
+            store.etags.put(cacheKey, eTag);
+    }
+
+    /** Drops a changed object and the kept listings of the folders above it. */
+    private void forget(final String bucket, final String key) {
+        final String cacheKey = cacheKey(bucket, key);
+        store.entries.remove(cacheKey);
+        store.etags.remove(cacheKey);
+        if (store.listings.isEmpty())
+            return;
+        for (int slash = key.lastIndexOf('/'); slash >= 0; slash = key.lastIndexOf('/',
+                slash - 1)) {
+            store.listings.remove(cacheKey(bucket, key.substring(0, slash + 1)));
+            if (slash == 0)
+                break;
+        }
+        store.listings.remove(cacheKey(bucket, ""));
+    }
+
+    /**
+     * Reads back a metadata object written on the server without passing
+     * through this client, so a complete root still finds it.
+     */
+    private void reread(final String bucket, final String key) {
+        if (!isConsolidatedKey(key) && !(isMetadataKey(key) && (cacheAttributes ||
+                completeRootOf(bucket, key) != null)))
+            return;
+        final ResponseBytes<GetObjectResponse> bytes = s3.getObject(GetObjectRequest
+                .builder().bucket(bucket).key(key).build(), ResponseTransformer.toBytes());
+        update(bucket, key, bytes.asByteArrayUnsafe());
+        keepETag(bucket, key, bytes.response().eTag());
+    }
+
+    /** Keeps a metadata object that was just read or written. */
+    private void update(final String bucket, final String key, final byte[] bytes) {
+        if (isConsolidatedKey(key))
+            consolidate(bucket, key, bytes);
+        if (isMetadataKey(key) && (cacheAttributes || completeRootOf(bucket, key) != null))
+            store.entries.put(cacheKey(bucket, key), bytes);
+    }
+
+    /** Keeps the entries of consolidated metadata. */
+    private void consolidate(final String bucket, final String key, final byte[] bytes) {
+        final String prefix = key.substring(0, key.lastIndexOf('/') + 1);
+        final JsonObject metadata;
+        try {
+            final JsonElement root = JsonParser.parseString(new String(bytes,
+                    StandardCharsets.UTF_8));
+            if (!root.isJsonObject())
+                return;
+            if (key.endsWith(ZARR_V2_CONSOLIDATED)) {
+                metadata = root.getAsJsonObject().getAsJsonObject("metadata");
+            } else {
+                final JsonObject consolidated = root.getAsJsonObject().getAsJsonObject(
+                        "consolidated_metadata");
+                if (consolidated == null)
+                    return;
+                metadata = new JsonObject();
+                for (Map.Entry<String, JsonElement> e : consolidated.getAsJsonObject(
+                        "metadata").entrySet())
+                    metadata.add(e.getKey() + "/" + ZARR_V3_METADATA, e.getValue());
+                store.entries.put(cacheKey(bucket, key), bytes);
+            }
+        } catch (final RuntimeException e) {
+            System.out.println("Could not read consolidated metadata " + key + ": " +
+                    e.getMessage());
+            return;
+        }
+        if (metadata == null)
+            return;
+
+        for (Map.Entry<String, JsonElement> e : metadata.entrySet())
+            store.entries.put(cacheKey(bucket, prefix + e.getKey()), e.getValue().toString()
+                    .getBytes(StandardCharsets.UTF_8));
+        store.roots.add(cacheKey(bucket, prefix));
+    }
+
+    private static boolean isMetadataKey(final String key) {
+        for (String file : METADATA_FILES)
+            if (key.equals(file) || key.endsWith("/" + file))
+                return true;
+        return false;
+    }
+
+    private static boolean isConsolidatedKey(final String key) {
+        return key.equals(ZARR_V2_CONSOLIDATED) || key.endsWith("/" +
+                ZARR_V2_CONSOLIDATED) || key.equals(ZARR_V3_METADATA) || key.endsWith("/" +
+                ZARR_V3_METADATA);
+    }
+
+    private static String prefix(final String key) {
+        String prefix = key;
+        while (prefix.startsWith("/"))
+            prefix = prefix.substring(1);
+        return prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+    }
+
+    private String cacheKey(final String bucket, final String key) {
+        return namespace + bucket + "/" + key;
+    }
+
+    /** The endpoint (or region) of the client, so a shared store can tell servers apart. */
+    private static String namespaceOf(final S3Client s3) {
+        try {
+            return s3.serviceClientConfiguration().endpointOverride().map(URI::toString)
+                    .orElse(String.valueOf(s3.serviceClientConfiguration().region())) + "|";
+        } catch (final RuntimeException e) {
+            return "|";
+        }
+    }
+
+    static byte[] readAll(final RequestBody requestBody) {
+        try (InputStream in = requestBody.contentStreamProvider().newStream()) {
+            return in.readAllBytes();
+        } catch (final IOException e) {
+            throw SdkClientException.create("Could not read request body", e);
+        }
+    }
+
+    static <ReturnT> ReturnT transform(
+            final ResponseTransformer<GetObjectResponse, ReturnT> transformer,
+            final GetObjectResponse response, final byte[] data) {
+        try {
+            return transformer.transform(response, AbortableInputStream.create(
+                    new ByteArrayInputStream(data)));
+        } catch (final RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw SdkClientException.create("Could not transform response", e);
+        }
+    }
+
+    /** Metadata objects and complete roots, shared by the clients of a factory. */
+    public static final class Store {
+
+        private final Map<String, byte[]> entries = new ConcurrentHashMap<>();
+        private final Map<String, String> etags = new ConcurrentHashMap<>();
+        private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+        private final Set<String> roots = ConcurrentHashMap.newKeySet();
+
+        public int size() {
+            return entries.size();
+        }
+
+        public void clear() {
+            entries.clear();
+            etags.clear();
+            listings.clear();
+            roots.clear();
+        }
+    }
+
+    /**
+     * One folder of a sweep. The folders below and the objects in it are kept
+     * as listed if the listing is complete; metadataKeys and children only
+     * have what the sweep looks into.
+     */
+    private static final class Listing {
+
+        final List<String> metadataKeys = new ArrayList<>();
+        final List<String> children = new ArrayList<>();
+        final List<String> numericChildren = new ArrayList<>();
+        final List<String> prefixes = new ArrayList<>();
+        final Map<String, Long> objects = new LinkedHashMap<>();
+        boolean complete;
+
+        ListObjectsV2Response response(final ListObjectsV2Request request) {
+            final List<S3Object> contents = new ArrayList<>();
+            for (Map.Entry<String, Long> e : objects.entrySet())
+                contents.add(S3Object.builder().key(e.getKey()).size(e.getValue()).build());
+            final List<CommonPrefix> commonPrefixes = new ArrayList<>();
+            for (String prefix : prefixes)
+                commonPrefixes.add(CommonPrefix.builder().prefix(prefix).build());
+            return ListObjectsV2Response.builder()
+                    .name(request.bucket())
+                    .prefix(request.prefix())
+                    .delimiter(request.delimiter())
+                    .maxKeys(request.maxKeys() == null ? 1000 : request.maxKeys())
+                    .keyCount(contents.size() + commonPrefixes.size())
+                    .isTruncated(false)
+                    .contents(contents)
+                    .commonPrefixes(commonPrefixes)
+                    .build();
+        }
+
+        JsonObject toJson() {
+            final JsonArray folders = new JsonArray();
+            for (String prefix : prefixes)
+                folders.add(prefix);
+            final JsonObject files = new JsonObject();
+            for (Map.Entry<String, Long> e : objects.entrySet())
+                files.addProperty(e.getKey(), e.getValue());
+            final JsonObject json = new JsonObject();
+            json.add("prefixes", folders);
+            json.add("objects", files);
+            return json;
+        }
+
+        static Listing fromJson(final JsonObject json) {
+            final Listing listing = new Listing();
+            for (JsonElement prefix : json.getAsJsonArray("prefixes"))
+                listing.prefixes.add(prefix.getAsString());
+            for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("objects").entrySet())
+                listing.objects.put(e.getKey(), e.getValue().getAsLong());
+            listing.complete = true;
+            return listing;
+        }
+    }
+}
@@ -0,0 +1,433 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+import software.amazon.awssdk.http.SdkHttpHeaders;
+
+/**
+ * Network-level metrics for every S3 request made by clients built in {@link
+ * MarsN5Factory} and {@link MarsS3Browser}. Installed as an SDK {@link
+ * ExecutionInterceptor}, so it sees each API call once and each HTTP attempt
+ * (including retries) separately.
+ * <p>
+ * Records request counts by operation, bytes sent (from Content-Length
+ * headers) and received (response body bytes actually read, so HEAD requests
+ * and aborted reads count only what crossed the wire), a latency histogram
+ * over whole API calls including retries, retry counts, the error codes of
+ * failed calls and the HTTP status of every failed attempt (so throttling
+ * that retries hide stays visible). Read the totals programmatically with
+ * {@link #snapshot()} (and {@link Snapshot#since} to cost a single workflow,
+ * e.g. one {@code listDatasets} call) or through JMX under {@value
+ * #OBJECT_NAME}.
+ *
+ * @author Karl Duderstadt
+ */
+public final class MarsS3Metrics implements ExecutionInterceptor,
+        MarsS3MetricsMXBean
+{
+
+    public static final String OBJECT_NAME = "de.mpg.biochem.mars.n5:type=S3Metrics";
+
+    /** Upper bounds of the latency histogram buckets in milliseconds. */
+    private static final long[] LATENCY_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200,
+            500, 1000, 2000, 5000, 10000, Long.MAX_VALUE};
+
+    private static final ExecutionAttribute<Long> START_NANOS =
+            new ExecutionAttribute<>("MarsS3Metrics.startNanos");
+    private static final ExecutionAttribute<Integer> ATTEMPTS =
+            new ExecutionAttribute<>("MarsS3Metrics.attempts");
+
+    private static final MarsS3Metrics INSTANCE = new MarsS3Metrics();
+
+    static {
+        try {
+            final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!mbs.isRegistered(name)) mbs.registerMBean(INSTANCE, name);
+        }
+        catch (final Exception e) {
+            System.out.println("Could not register S3 metrics with JMX: " + e
+                    .getMessage());
+        }
+    }
+
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> errorCodes = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> statusCodes = new ConcurrentHashMap<>();
+    private final AtomicLongArray latencyCounts = new AtomicLongArray(
+            LATENCY_BOUNDS.length);
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private MarsS3Metrics() {}
+
+    /** The process-wide metrics shared by all Mars S3 clients. */
+    public static MarsS3Metrics getInstance() {
+        return INSTANCE;
+    }
+
+    // ---- ExecutionInterceptor ----
+
+    @Override
+    public void beforeExecution(final Context.BeforeExecution context,
+                                final ExecutionAttributes executionAttributes)
+    {
+        executionAttributes.putAttribute(START_NANOS, System.nanoTime());
+        executionAttributes.putAttribute(ATTEMPTS, 0);
+    }
+
+    @Override
+    public void beforeTransmission(final Context.BeforeTransmission context,
+                                   final ExecutionAttributes executionAttributes)
+    {
+        final Integer attempts = executionAttributes.getAttribute(ATTEMPTS);
+        executionAttributes.putAttribute(ATTEMPTS, attempts == null ? 1 : attempts +
+                1);
+        bytesSent.addAndGet(contentLength(context.httpRequest()));
+    }
+
+    @Override
+    public void afterTransmission(final Context.AfterTransmission context,
+                                  final ExecutionAttributes executionAttributes)
+    {
+        final int status = context.httpResponse().statusCode();
+        if (status >= 400) increment(statusCodes, Integer.toString(status));
+    }
+
+    @Override
+    public Optional<InputStream> modifyHttpResponseContent(
+            final Context.ModifyHttpResponse context,
+            final ExecutionAttributes executionAttributes)
+    {
+        return context.responseBody().map(CountingInputStream::new);
+    }
+
+    @Override
+    public void afterExecution(final Context.AfterExecution context,
+                               final ExecutionAttributes executionAttributes)
+    {
+        record(executionAttributes);
+    }
+
+    @Override
+    public void onExecutionFailure(final Context.FailedExecution context,
+                                   final ExecutionAttributes executionAttributes)
+    {
+        record(executionAttributes);
+        errors.incrementAndGet();
+        final Throwable e = context.exception();
+        if (e instanceof AwsServiceException && ((AwsServiceException) e)
+                .awsErrorDetails() != null)
+        {
+            final AwsServiceException ase = (AwsServiceException) e;
+            increment(errorCodes, ase.awsErrorDetails().errorCode());
+        }
+        else increment(errorCodes, e.getClass().getSimpleName());
+    }
+
+    private void record(final ExecutionAttributes executionAttributes) {
+        final String operation = executionAttributes.getAttribute(
+                SdkExecutionAttribute.OPERATION_NAME);
+        increment(requestCounts, operation == null ? "Unknown" : operation);
+        requests.incrementAndGet();
+
+        final Integer attempts = executionAttributes.getAttribute(ATTEMPTS);
+        if (attempts != null && attempts > 1) retries.addAndGet(attempts - 1);
+
+        final Long start = executionAttributes.getAttribute(START_NANOS);
+        if (start == null) return;
+        final long nanos = System.nanoTime() - start;
+        totalLatencyNanos.addAndGet(nanos);
+        final long millis = nanos / 1_000_000L;
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++)
+            if (millis <= LATENCY_BOUNDS[i]) {
+                latencyCounts.incrementAndGet(i);
+                break;
+            }
+    }
+
+    private static long contentLength(final SdkHttpHeaders headers) {
+        final Optional<String> length = headers.firstMatchingHeader(
+                "Content-Length");
+        if (!length.isPresent()) return 0;
+        try {
+            return Long.parseLong(length.get().trim());
+        }
+        catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** Adds the bytes read from a response body to the bytes received. */
+    private final class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) bytesReceived.incrementAndGet();
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException
+        {
+            final int n = super.read(b, off, len);
+            if (n > 0) bytesReceived.addAndGet(n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            if (skipped > 0) bytesReceived.addAndGet(skipped);
+            return skipped;
+        }
+    }
+
+    private static void increment(final Map<String, AtomicLong> counts,
+                                  final String key)
+    {
+        counts.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static Map<String, Long> copy(final Map<String, AtomicLong> counts) {
+        final Map<String, Long> copy = new TreeMap<>();
+        counts.forEach((k, v) -> copy.put(k, v.get()));
+        return copy;
+    }
+
+    // ---- programmatic access ----
+
+    /** Consistent-enough copy of all counters for reporting or diffing. */
+    public Snapshot snapshot() {
+        final long[] histogram = new long[LATENCY_BOUNDS.length];
+        for (int i = 0; i < histogram.length; i++)
+            histogram[i] = latencyCounts.get(i);
+        return new Snapshot(requests.get(), errors.get(), retries.get(), bytesSent
+                .get(), bytesReceived.get(), totalLatencyNanos.get(), copy(
+                requestCounts), copy(errorCodes), copy(statusCodes), histogram);
+    }
+
+    // ---- MXBean ----
+
+    @Override
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public Map<String, Long> getRequestCounts() {
+        return copy(requestCounts);
+    }
+
+    @Override
+    public Map<String, Long> getErrorCodes() {
+        return copy(errorCodes);
+    }
+
+    @Override
+    public Map<String, Long> getStatusCodes() {
+        return copy(statusCodes);
+    }
+
+    @Override
+    public Map<String, Long> getLatencyHistogram() {
+        return snapshot().getLatencyHistogram();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return snapshot().getMeanLatencyMillis();
+    }
+
+    @Override
+    public void reset() {
+        requestCounts.clear();
+        errorCodes.clear();
+        statusCodes.clear();
+        for (int i = 0; i < LATENCY_BOUNDS.length; i++)
+            latencyCounts.set(i, 0);
+        totalLatencyNanos.set(0);
+        requests.set(0);
+        errors.set(0);
+        retries.set(0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+    }
+
+    /** Immutable copy of the metrics at one point in time. */
+    public static final class Snapshot {
+
+        public final long requests;
+        public final long errors;
+        public final long retries;
+        public final long bytesSent;
+        public final long bytesReceived;
+        public final long totalLatencyNanos;
+        public final Map<String, Long> requestCounts;
+        public final Map<String, Long> errorCodes;
+        public final Map<String, Long> statusCodes;
+        private final long[] latencyCounts;
+
+        private Snapshot(final long requests, final long errors,
+                         final long retries, final long bytesSent, final long bytesReceived,
+                         final long totalLatencyNanos, final Map<String, Long> requestCounts,
+                         final Map<String, Long> errorCodes, final Map<String, Long> statusCodes,
+                         final long[] latencyCounts)
+        {
+            this.requests = requests;
+            this.errors = errors;
+            this.retries = retries;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.totalLatencyNanos = totalLatencyNanos;
+            this.requestCounts = requestCounts;
+            this.errorCodes = errorCodes;
+            this.statusCodes = statusCodes;
+            this.latencyCounts = latencyCounts;
+        }
+
+        /**
+         * The activity between an earlier snapshot and this one, e.g. to measure
+         * what a single {@code listDatasets} call cost.
+         */
+        public Snapshot since(final Snapshot before) {
+            final long[] histogram = new long[latencyCounts.length];
+            for (int i = 0; i < histogram.length; i++)
+                histogram[i] = latencyCounts[i] - before.latencyCounts[i];
+            return new Snapshot(requests - before.requests, errors - before.errors,
+                    retries - before.retries, bytesSent - before.bytesSent,
+                    bytesReceived - before.bytesReceived, totalLatencyNanos -
+                    before.totalLatencyNanos, subtract(requestCounts,
+                    before.requestCounts), subtract(errorCodes, before.errorCodes),
+                    subtract(statusCodes, before.statusCodes), histogram);
+        }
+
+        private static Map<String, Long> subtract(final Map<String, Long> after,
+                                                  final Map<String, Long> before)
+        {
+            final Map<String, Long> diff = new TreeMap<>();
+            after.forEach((k, v) -> {
+                final long d = v - before.getOrDefault(k, 0L);
+                if (d != 0) diff.put(k, d);
+            });
+            return diff;
+        }
+
+        public Map<String, Long> getLatencyHistogram() {
+            final Map<String, Long> histogram = new LinkedHashMap<>();
+            for (int i = 0; i < LATENCY_BOUNDS.length; i++)
+                histogram.put(LATENCY_BOUNDS[i] == Long.MAX_VALUE ? ">" +
+                        LATENCY_BOUNDS[i - 1] + "ms" : "<=" + LATENCY_BOUNDS[i] + "ms",
+                        latencyCounts[i]);
+            return histogram;
+        }
+
+        public double getMeanLatencyMillis() {
+            return requests == 0 ? 0 : totalLatencyNanos / 1e6 / requests;
+        }
+
+        /**
+         * Latency below which the given fraction of requests completed, at the
+         * resolution of the histogram buckets.
+         */
+        public long getLatencyPercentileMillis(final double fraction) {
+            long total = 0;
+            for (long c : latencyCounts)
+                total += c;
+            if (total == 0) return 0;
+            long seen = 0;
+            for (int i = 0; i < latencyCounts.length; i++) {
+                seen += latencyCounts[i];
+                if (seen >= fraction * total) return LATENCY_BOUNDS[i] ==
+                        Long.MAX_VALUE ? LATENCY_BOUNDS[i - 1] : LATENCY_BOUNDS[i];
+            }
+            return LATENCY_BOUNDS[LATENCY_BOUNDS.length - 2];
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d requests (%d retries, %d errors), sent %s, received %s, mean %.1f ms, p99 <= %d ms, %s errors %s status %s",
+                    requests, retries, errors, DatasetEntry.humanReadableBytes(bytesSent),
+                    DatasetEntry.humanReadableBytes(bytesReceived), getMeanLatencyMillis(),
+                    getLatencyPercentileMillis(0.99), requestCounts, errorCodes, statusCodes);
+        }
+    }
+}
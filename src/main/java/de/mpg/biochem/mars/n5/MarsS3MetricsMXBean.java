@@ -0,0 +1,67 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link MarsS3Metrics}, registered as
+ * {@value MarsS3Metrics#OBJECT_NAME}. Inspect with JConsole or VisualVM while
+ * a viewer or batch job is running.
+ *
+ * @author Karl Duderstadt
+ */
+public interface MarsS3MetricsMXBean {
+
+    long getRequestCount();
+
+    long getErrorCount();
+
+    long getRetryCount();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    /** Requests per S3 operation, e.g. GetObject -> 1200. */
+    Map<String, Long> getRequestCounts();
+
+    /** Failed calls per S3 error code, e.g. "NoSuchKey" -> 12. */
+    Map<String, Long> getErrorCodes();
+
+    /** Failed HTTP attempts per status, including retried ones, e.g. "503" -> 40. */
+    Map<String, Long> getStatusCodes();
+
+    /** Request count per latency bucket, keyed by upper bound, e.g. "<=50ms". */
+    Map<String, Long> getLatencyHistogram();
+
+    double getMeanLatencyMillis();
+
+    void reset();
+}
@@ -0,0 +1,710 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.services.s3.DelegatingS3Client;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * S3 client that stores the chunks of sharded N5 datasets in shard objects,
+ * in the style of Zarr v3 sharding, while the N5 readers and writers keep
+ * addressing individual chunk keys.
+ * <p>
+ * A dataset is sharded when its attributes.json contains
+ * {@code "marsSharding": {"chunksPerShard": [...]}}, see
+ * {@link MarsN5AmazonS3Writer#setSharding(String, int...)}. The client picks
+ * this up whenever attributes.json passes through it. Chunk requests of such
+ * datasets are then redirected:
+ * <ul>
+ * <li>GET and HEAD of a chunk read the shard index (cached) with one suffix
+ * range request and the chunk with one byte-range GET. With a read-ahead
+ * larger than 0, chunks stored directly after the requested one are fetched
+ * in the same range request and kept for subsequent reads.</li>
+ * <li>PUT and DELETE of a chunk are collected per shard. A shard is written as
+ * soon as all its chunks have arrived, remaining shards on {@link
+ * #flushShards(String, String)} once the writes to a dataset are done, or on
+ * {@link #flushShards()} and {@link #close()}.</li>
+ * </ul>
+ * <b>Chunks of shards that are not complete are only held in memory until
+ * they are flushed; they are lost if the client is not flushed or closed.</b>
+ * Such partial shards are merged with the chunks already stored in the shard
+ * and written with a conditional PUT (If-Match the ETag read, or
+ * If-None-Match for new shards), and merged again if another writer changed
+ * the shard in between. Servers that ignore these conditions leave only the
+ * last writer's chunks, so on those a dataset must not be written by several
+ * clients at once.
+ * <p>
+ * Shard indices are cached with their ETag and chunk ranges are read
+ * If-Match that ETag, so a shard rewritten by another client is noticed on
+ * the next chunk read and its index is read again. Missing shards are not
+ * cached, each read of one of their chunks looks the shard up again so shards
+ * stored by other clients, e.g. during an acquisition, show up.
+ * A shard of dataset {@code path} at shard grid position (s0, s1, ...) is
+ * stored at {@code path/shards/s0/s1/...}. It contains the N5 encoded chunks
+ * followed by the index: one little-endian (offset, nbytes) uint64 pair per
+ * chunk, chunks ordered with the first dimension fastest, and both values set
+ * to 2^64-1 for missing chunks.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsShardedS3Client extends DelegatingS3Client {
+
+    public static final String SHARDING_KEY = "marsSharding";
+    public static final String CHUNKS_PER_SHARD_KEY = "chunksPerShard";
+    public static final String SHARDS_FOLDER = "shards";
+
+    private static final String ATTRIBUTES_FILE = "attributes.json";
+    private static final long EMPTY = -1L;
+    private static final byte[] REMOVED = new byte[0];
+    private static final int MAX_CACHED_INDICES = 4096;
+    private static final int MAX_MERGE_ATTEMPTS = 8;
+
+    private final S3Client s3;
+    private final int readAhead;
+    private final long maxCachedChunkBytes;
+
+    private final Map<String, ShardLayout> layouts = new ConcurrentHashMap<>();
+    private final Map<String, ShardBuffer> buffers = new ConcurrentHashMap<>();
+    private final Map<String, ShardIndex> indices = Collections.synchronizedMap(
+            new LinkedHashMap<String, ShardIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, ShardIndex> eldest) {
+                    return size() > MAX_CACHED_INDICES;
+                }
+            });
+    private final LinkedHashMap<String, byte[]> chunkCache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedChunkBytes = 0;
+
+    /**
+     * @param s3 the client doing the requests
+     * @param readAhead maximum size in bytes of a coalesced range request, 0
+     *            to read every chunk with its own request
+     */
+    public MarsShardedS3Client(final S3Client s3, final int readAhead) {
+        super(s3);
+        this.s3 = s3;
+        this.readAhead = readAhead;
+        this.maxCachedChunkBytes = 16L * readAhead;
+    }
+
+    /** True if the chunks of the dataset at this key prefix are stored in shards. */
+    public boolean isSharded(final String bucket, final String datasetKey) {
+        return layouts.containsKey(layoutKey(bucket, normalizePrefix(datasetKey)));
+    }
+
+    @Override
+    public <ReturnT> ReturnT getObject(final GetObjectRequest request,
+            final ResponseTransformer<GetObjectResponse, ReturnT> transformer) {
+        if (isAttributesKey(request.key())) {
+            final ResponseBytes<GetObjectResponse> bytes = s3.getObject(request,
+                    ResponseTransformer.toBytes());
+            updateLayout(request.bucket(), request.key(), bytes.asByteArrayUnsafe());
+            return MarsS3MetadataCache.transform(transformer, bytes.response(),
+                    bytes.asByteArrayUnsafe());
+        }
+        final ChunkKey chunk = request.range() == null ? chunkKey(request.bucket(),
+                request.key()) : null;
+        if (chunk == null)
+            return s3.getObject(request, transformer);
+
+        final byte[] data = readChunk(chunk);
+        if (data == null)
+            throw noSuchKey(request.key());
+        return MarsS3MetadataCache.transform(transformer, GetObjectResponse.builder()
+                .contentLength((long) data.length).build(), data);
+    }
+
+    @Override
+    public HeadObjectResponse headObject(final HeadObjectRequest request) {
+        final ChunkKey chunk = chunkKey(request.bucket(), request.key());
+        if (chunk == null)
+            return s3.headObject(request);
+
+        final byte[] buffered = buffered(chunk);
+        if (buffered != null && buffered != REMOVED)
+            return HeadObjectResponse.builder().contentLength((long) buffered.length).build();
+        final ShardIndex index = buffered == null ? index(chunk.bucket, chunk.shardKey,
+                chunk.layout) : null;
+        if (index == null || index.entries[2 * chunk.index] == EMPTY)
+            throw noSuchKey(request.key());
+        return HeadObjectResponse.builder().contentLength(index.entries[2 * chunk.index + 1])
+                .build();
+    }
+
+    @Override
+    public PutObjectResponse putObject(final PutObjectRequest request,
+            final RequestBody requestBody) {
+        if (isAttributesKey(request.key())) {
+            final byte[] bytes = MarsS3MetadataCache.readAll(requestBody);
+            final PutObjectResponse response = s3.putObject(request,
+                    RequestBody.fromBytes(bytes));
+            updateLayout(request.bucket(), request.key(), bytes);
+            return response;
+        }
+        final ChunkKey chunk = chunkKey(request.bucket(), request.key());
+        if (chunk == null)
+            return s3.putObject(request, requestBody);
+
+        bufferChunk(chunk, MarsS3MetadataCache.readAll(requestBody));
+        return PutObjectResponse.builder().build();
+    }
+
+    @Override
+    public DeleteObjectResponse deleteObject(final DeleteObjectRequest request) {
+        final ChunkKey chunk = chunkKey(request.bucket(), request.key());
+        if (chunk == null)
+            return s3.deleteObject(request);
+
+        bufferChunk(chunk, REMOVED);
+        return DeleteObjectResponse.builder().build();
+    }
+
+    /**
+     * Writes all shards with pending chunks, merging them with the chunks
+     * already stored in those shards.
+     */
+    public void flushShards() {
+        flushShards("");
+    }
+
+    /**
+     * Writes the shards of one dataset that have pending chunks. Call when
+     * all chunks of the dataset are written, so its partial shards don't
+     * wait in memory until the client is closed.
+     *
+     * @param bucket the bucket of the dataset
+     * @param datasetKey key prefix of the dataset
+     */
+    public void flushShards(final String bucket, final String datasetKey) {
+        flushShards(layoutKey(bucket, normalizePrefix(datasetKey)) + SHARDS_FOLDER + "/");
+    }
+
+    private void flushShards(final String keyPrefix) {
+        for (String shardKey : new ArrayList<>(buffers.keySet())) {
+            if (!shardKey.startsWith(keyPrefix))
+                continue;
+            final ShardBuffer buffer = buffers.remove(shardKey);
+            if (buffer != null)
+                writeShard(buffer);
+        }
+    }
+
+    @Override
+    public void close() {
+        flushShards();
+        super.close();
+    }
+
+    private byte[] readChunk(final ChunkKey chunk) {
+        final byte[] buffered = buffered(chunk);
+        if (buffered != null)
+            return buffered == REMOVED ? null : buffered;
+
+        final String cacheKey = chunk.shardKey + "#" + chunk.index;
+        synchronized (chunkCache) {
+            final byte[] cached = chunkCache.remove(cacheKey);
+            if (cached != null) {
+                cachedChunkBytes -= cached.length;
+                return cached;
+            }
+        }
+
+        for (int attempt = 0;; attempt++) {
+            final ShardIndex shardIndex = index(chunk.bucket, chunk.shardKey, chunk.layout);
+            if (shardIndex == null || shardIndex.entries[2 * chunk.index] == EMPTY)
+                return null;
+            try {
+                return readChunk(chunk, shardIndex);
+            } catch (final S3Exception e) {
+                // the shard changed since its index was read, read it again
+                if (attempt > 0 || !isStale(e))
+                    throw e;
+                invalidate(chunk.bucket, chunk.shardKey);
+            }
+        }
+    }
+
+    private byte[] readChunk(final ChunkKey chunk, final ShardIndex shardIndex) {
+        final long[] index = shardIndex.entries;
+
+        // extend the range over chunks stored directly after this one
+        final long start = index[2 * chunk.index];
+        long end = start + index[2 * chunk.index + 1];
+        int last = chunk.index;
+        while (last + 1 < chunk.layout.chunksPerShard && index[2 * (last + 1)] == end &&
+                end + index[2 * (last + 1) + 1] - start <= readAhead) {
+            last++;
+            end += index[2 * last + 1];
+        }
+
+        final byte[] range = s3.getObject(GetObjectRequest.builder()
+                .bucket(chunk.bucket)
+                .key(chunk.shardKey)
+                .range("bytes=" + start + "-" + (end - 1))
+                .ifMatch(shardIndex.eTag)
+                .build(), ResponseTransformer.toBytes()).asByteArrayUnsafe();
+
+        if (last > chunk.index) {
+            synchronized (chunkCache) {
+                for (int i = chunk.index + 1; i <= last; i++) {
+                    final int offset = (int) (index[2 * i] - start);
+                    final byte[] data = Arrays.copyOfRange(range, offset,
+                            offset + (int) index[2 * i + 1]);
+                    final byte[] previous = chunkCache.put(chunk.shardKey + "#" + i, data);
+                    cachedChunkBytes += data.length - (previous == null ? 0 : previous.length);
+                }
+                final Iterator<byte[]> it = chunkCache.values().iterator();
+                while (cachedChunkBytes > maxCachedChunkBytes && it.hasNext()) {
+                    cachedChunkBytes -= it.next().length;
+                    it.remove();
+                }
+            }
+        }
+        return range.length == index[2 * chunk.index + 1] ? range : Arrays.copyOf(range,
+                (int) index[2 * chunk.index + 1]);
+    }
+
+    /** The cached index of a shard, null if the shard doesn't exist. */
+    private ShardIndex index(final String bucket, final String shardKey,
+            final ShardLayout layout) {
+        final ShardIndex cached = indices.get(layoutKey(bucket, shardKey));
+        if (cached != null)
+            return cached;
+
+        final ShardIndex index;
+        try {
+            final ResponseBytes<GetObjectResponse> bytes = s3.getObject(GetObjectRequest
+                    .builder()
+                    .bucket(bucket)
+                    .key(shardKey)
+                    .range("bytes=-" + 16L * layout.chunksPerShard)
+                    .build(), ResponseTransformer.toBytes());
+            index = new ShardIndex(decodeIndex(bytes.asByteArrayUnsafe(), 0,
+                    layout.chunksPerShard), bytes.response().eTag());
+        } catch (final NoSuchKeyException e) {
+            // not cached, a shard still being acquired may be stored any time
+            return null;
+        }
+        indices.put(layoutKey(bucket, shardKey), index);
+        return index;
+    }
+
+    /**
+     * True if a range read failed because the shard is no longer the one
+     * indexed: rewritten (412), deleted (404) or shorter (416).
+     */
+    private static boolean isStale(final S3Exception e) {
+        return e.statusCode() == 412 || e.statusCode() == 404 || e.statusCode() == 416;
+    }
+
+    private byte[] buffered(final ChunkKey chunk) {
+        final ShardBuffer buffer = buffers.get(layoutKey(chunk.bucket, chunk.shardKey));
+        if (buffer == null)
+            return null;
+        synchronized (buffer) {
+            return buffer.chunks.get(chunk.index);
+        }
+    }
+
+    private void bufferChunk(final ChunkKey chunk, final byte[] data) {
+        final String key = layoutKey(chunk.bucket, chunk.shardKey);
+        while (true) {
+            final ShardBuffer buffer = buffers.computeIfAbsent(key,
+                    k -> new ShardBuffer(chunk));
+            final boolean complete;
+            synchronized (buffer) {
+                if (buffer.flushed)
+                    continue;
+                buffer.chunks.put(chunk.index, data);
+                complete = buffer.chunks.size() == buffer.expectedChunks;
+                if (complete) {
+                    buffer.flushed = true;
+                    buffers.remove(key, buffer);
+                }
+            }
+            if (complete)
+                writeShard(buffer);
+            return;
+        }
+    }
+
+    private void writeShard(final ShardBuffer buffer) {
+        final ShardLayout layout = buffer.layout;
+        final byte[][] pending = new byte[layout.chunksPerShard][];
+        final int numChunks;
+        synchronized (buffer) {
+            buffer.flushed = true;
+            for (Map.Entry<Integer, byte[]> entry : buffer.chunks.entrySet())
+                pending[entry.getKey()] = entry.getValue();
+            numChunks = buffer.chunks.size();
+        }
+
+        if (numChunks == buffer.expectedChunks) {
+            // all chunks are new, nothing stored is kept
+            storeShard(buffer, pending, null, false);
+            return;
+        }
+        for (int attempt = 1;; attempt++) {
+            final byte[][] chunks = pending.clone();
+            final GetObjectResponse stored = mergeStoredChunks(buffer.bucket,
+                    buffer.shardKey, layout, chunks);
+            try {
+                storeShard(buffer, chunks, stored, true);
+                return;
+            } catch (final S3Exception e) {
+                // another writer changed the shard since it was read, merge again
+                if (e.statusCode() != 412 || attempt == MAX_MERGE_ATTEMPTS)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes the chunks as a shard, or deletes the shard if there are none.
+     * Conditional writes only succeed if the stored shard is still the one
+     * described by stored, null if there was none.
+     */
+    private void storeShard(final ShardBuffer buffer, final byte[][] chunks,
+            final GetObjectResponse stored, final boolean conditional) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteBuffer index = ByteBuffer.allocate(16 * buffer.layout.chunksPerShard)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        boolean empty = true;
+        for (byte[] data : chunks) {
+            if (data == null || data == REMOVED) {
+                index.putLong(EMPTY).putLong(EMPTY);
+            } else {
+                index.putLong(out.size()).putLong(data.length);
+                out.write(data, 0, data.length);
+                empty = false;
+            }
+        }
+        out.write(index.array(), 0, index.capacity());
+
+        invalidate(buffer.bucket, buffer.shardKey);
+        if (empty) {
+            if (!conditional || stored != null)
+                s3.deleteObject(DeleteObjectRequest.builder()
+                        .bucket(buffer.bucket)
+                        .key(buffer.shardKey)
+                        .ifMatch(conditional ? stored.eTag() : null)
+                        .build());
+        } else {
+            s3.putObject(PutObjectRequest.builder()
+                    .bucket(buffer.bucket)
+                    .key(buffer.shardKey)
+                    .ifMatch(conditional && stored != null ? stored.eTag() : null)
+                    .ifNoneMatch(conditional && stored == null ? "*" : null)
+                    .build(), RequestBody.fromBytes(out.toByteArray()));
+        }
+        invalidate(buffer.bucket, buffer.shardKey);
+    }
+
+    /**
+     * Fills the chunks not written with those stored in the shard and
+     * returns the response of the shard read, null if there is no shard.
+     */
+    private GetObjectResponse mergeStoredChunks(final String bucket, final String shardKey,
+            final ShardLayout layout, final byte[][] chunks) {
+        final ResponseBytes<GetObjectResponse> response;
+        try {
+            response = s3.getObject(GetObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(shardKey)
+                    .build(), ResponseTransformer.toBytes());
+        } catch (final NoSuchKeyException e) {
+            return null;
+        }
+        final byte[] stored = response.asByteArrayUnsafe();
+        final long[] index = decodeIndex(stored, stored.length - 16 * layout.chunksPerShard,
+                layout.chunksPerShard);
+        for (int i = 0; i < chunks.length; i++)
+            if (chunks[i] == null && index[2 * i] != EMPTY)
+                chunks[i] = Arrays.copyOfRange(stored, (int) index[2 * i],
+                        (int) (index[2 * i] + index[2 * i + 1]));
+        return response.response();
+    }
+
+    private void invalidate(final String bucket, final String shardKey) {
+        indices.remove(layoutKey(bucket, shardKey));
+        synchronized (chunkCache) {
+            final Iterator<Map.Entry<String, byte[]>> it = chunkCache.entrySet()
+                    .iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, byte[]> entry = it.next();
+                if (entry.getKey().startsWith(shardKey + "#")) {
+                    cachedChunkBytes -= entry.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static long[] decodeIndex(final byte[] bytes, final int offset, final int n) {
+        if (offset < 0 || bytes.length - offset < 16 * n)
+            throw SdkClientException.create("Truncated shard index");
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, 16 * n)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        final long[] index = new long[2 * n];
+        for (int i = 0; i < index.length; i++)
+            index[i] = buffer.getLong();
+        return index;
+    }
+
+    /**
+     * Registers or removes the sharding layout of the dataset whose
+     * attributes.json was just read or written.
+     */
+    private void updateLayout(final String bucket, final String key, final byte[] json) {
+        final String prefix = key.substring(0, key.length() - ATTRIBUTES_FILE.length());
+        final ShardLayout layout = ShardLayout.parse(json);
+        if (layout == null)
+            layouts.remove(layoutKey(bucket, prefix));
+        else
+            layouts.put(layoutKey(bucket, prefix), layout);
+    }
+
+    /**
+     * Maps an N5 chunk key (dataset/g0/g1/...) of a sharded dataset to its
+     * shard, null for any other key.
+     */
+    private ChunkKey chunkKey(final String bucket, final String key) {
+        if (layouts.isEmpty())
+            return null;
+        int end = key.length();
+        int numSegments = 0;
+        while (end > 0) {
+            final int slash = key.lastIndexOf('/', end - 1);
+            if (!isNumeric(key, slash + 1, end))
+                return null;
+            numSegments++;
+            if (slash < 0)
+                return null;
+            final ShardLayout layout = layouts.get(layoutKey(bucket, key.substring(0,
+                    slash + 1)));
+            if (layout != null && layout.numDimensions() == numSegments) {
+                final long[] gridPosition = new long[numSegments];
+                int from = slash + 1;
+                for (int d = 0; d < numSegments; d++) {
+                    final int to = key.indexOf('/', from);
+                    gridPosition[d] = Long.parseLong(key.substring(from, to < 0 ? key.length() : to));
+                    from = to + 1;
+                }
+                return new ChunkKey(bucket, key.substring(0, slash + 1), layout, gridPosition);
+            }
+            end = slash;
+        }
+        return null;
+    }
+
+    private static boolean isNumeric(final String s, final int from, final int to) {
+        if (from >= to)
+            return false;
+        for (int i = from; i < to; i++)
+            if (!Character.isDigit(s.charAt(i)))
+                return false;
+        return true;
+    }
+
+    private static boolean isAttributesKey(final String key) {
+        return key.equals(ATTRIBUTES_FILE) || key.endsWith("/" + ATTRIBUTES_FILE);
+    }
+
+    private static String normalizePrefix(final String datasetKey) {
+        String prefix = datasetKey;
+        while (prefix.startsWith("/"))
+            prefix = prefix.substring(1);
+        return prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+    }
+
+    private static String layoutKey(final String bucket, final String key) {
+        return bucket + "/" + key;
+    }
+
+    private static NoSuchKeyException noSuchKey(final String key) {
+        return NoSuchKeyException.builder()
+                .message("The specified key does not exist: " + key)
+                .statusCode(404)
+                .build();
+    }
+
+    /** Dataset geometry and chunks per shard read from attributes.json. */
+    private static final class ShardLayout {
+
+        final long[] dimensions;
+        final int[] blockSize;
+        final int[] shardSize;
+        final int chunksPerShard;
+
+        ShardLayout(final long[] dimensions, final int[] blockSize, final int[] shardSize) {
+            this.dimensions = dimensions;
+            this.blockSize = blockSize;
+            this.shardSize = shardSize;
+            int n = 1;
+            for (int s : shardSize)
+                n *= s;
+            this.chunksPerShard = n;
+        }
+
+        int numDimensions() {
+            return dimensions.length;
+        }
+
+        /** Number of chunks of the shard, smaller at the dataset border. */
+        int expectedChunks(final long[] shardPosition) {
+            int n = 1;
+            for (int d = 0; d < dimensions.length; d++) {
+                final long gridSize = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+                n *= (int) Math.min(shardSize[d], gridSize - shardPosition[d] * shardSize[d]);
+            }
+            return n;
+        }
+
+        static ShardLayout parse(final byte[] json) {
+            try {
+                final JsonElement root = JsonParser.parseString(new String(json,
+                        StandardCharsets.UTF_8));
+                if (!root.isJsonObject())
+                    return null;
+                final JsonObject attributes = root.getAsJsonObject();
+                if (!attributes.has(SHARDING_KEY) || !attributes.has("dimensions") ||
+                        !attributes.has("blockSize"))
+                    return null;
+                final JsonArray dims = attributes.getAsJsonArray("dimensions");
+                final JsonArray block = attributes.getAsJsonArray("blockSize");
+                final JsonArray shard = attributes.getAsJsonObject(SHARDING_KEY)
+                        .getAsJsonArray(CHUNKS_PER_SHARD_KEY);
+                if (dims.size() != block.size() || dims.size() != shard.size())
+                    return null;
+                final long[] dimensions = new long[dims.size()];
+                final int[] blockSize = new int[dims.size()];
+                final int[] shardSize = new int[dims.size()];
+                for (int d = 0; d < dimensions.length; d++) {
+                    dimensions[d] = dims.get(d).getAsLong();
+                    blockSize[d] = block.get(d).getAsInt();
+                    shardSize[d] = Math.max(1, shard.get(d).getAsInt());
+                }
+                return new ShardLayout(dimensions, blockSize, shardSize);
+            } catch (final RuntimeException e) {
+                System.out.println("Could not read the sharding layout: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /** A chunk key resolved to its shard and position in the shard index. */
+    private static final class ChunkKey {
+
+        final String bucket;
+        final String shardKey;
+        final ShardLayout layout;
+        final long[] shardPosition;
+        final int index;
+
+        ChunkKey(final String bucket, final String datasetPrefix, final ShardLayout layout,
+                final long[] gridPosition) {
+            this.bucket = bucket;
+            this.layout = layout;
+            this.shardPosition = new long[gridPosition.length];
+            final StringBuilder key = new StringBuilder(datasetPrefix).append(SHARDS_FOLDER);
+            int i = 0;
+            int stride = 1;
+            for (int d = 0; d < gridPosition.length; d++) {
+                shardPosition[d] = gridPosition[d] / layout.shardSize[d];
+                key.append('/').append(shardPosition[d]);
+                i += (int) (gridPosition[d] % layout.shardSize[d]) * stride;
+                stride *= layout.shardSize[d];
+            }
+            this.shardKey = key.toString();
+            this.index = i;
+        }
+    }
+
+    /** The index of a stored shard and the ETag of the shard it was read from. */
+    private static final class ShardIndex {
+
+        final long[] entries;
+        final String eTag;
+
+        ShardIndex(final long[] entries, final String eTag) {
+            this.entries = entries;
+            this.eTag = eTag;
+        }
+    }
+
+    /** Chunks written to a shard that hasn't been stored yet. */
+    private static final class ShardBuffer {
+
+        final String bucket;
+        final String shardKey;
+        final ShardLayout layout;
+        final int expectedChunks;
+        final Map<Integer, byte[]> chunks = new LinkedHashMap<>();
+        boolean flushed = false;
+
+        ShardBuffer(final ChunkKey chunk) {
+            this.bucket = chunk.bucket;
+            this.shardKey = chunk.shardKey;
+            this.layout = chunk.layout;
+            this.expectedChunks = chunk.layout.expectedChunks(chunk.shardPosition);
+        }
+    }
+}
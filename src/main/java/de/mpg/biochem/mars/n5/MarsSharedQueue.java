@@ -0,0 +1,89 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import bdv.util.volatiles.SharedQueue;
+import net.imglib2.cache.volatiles.CacheHints;
+import net.imglib2.cache.volatiles.LoadingStrategy;
+
+/**
+ * {@link SharedQueue} that keeps the frame under the cursor at the head of
+ * the line. When any Mars volatile source is asked for a different timepoint,
+ * all block requests still queued for earlier frames are demoted to the
+ * prefetch stack, where they only run once nothing else is waiting. Requests
+ * for the new frame are enqueued after the switch and therefore load first.
+ * <p>
+ * Within a frame, requests are prioritized by resolution level and by a
+ * per-source priority offset, so the viewer can push channels that are not
+ * in focus (or single timepoint overlays) behind the one the user is looking
+ * at.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsSharedQueue extends SharedQueue {
+
+	private int currentTimePoint = -1;
+
+	public MarsSharedQueue(final int numFetcherThreads) {
+		this(numFetcherThreads, 3);
+	}
+
+	public MarsSharedQueue(final int numFetcherThreads,
+		final int numPriorities)
+	{
+		super(numFetcherThreads, numPriorities);
+	}
+
+	/**
+	 * Called by volatile sources whenever they render a timepoint. Demotes all
+	 * queued requests the first time a new timepoint is seen.
+	 */
+	public synchronized void timePointRequested(final int t) {
+		if (t == currentTimePoint) return;
+		currentTimePoint = t;
+		queue.clearToPrefetch();
+	}
+
+	public synchronized int getCurrentTimePoint() {
+		return currentTimePoint;
+	}
+
+	/**
+	 * Cache hints for a block request at the given level. Lower values load
+	 * first; the priority is clamped to the number of priorities of the queue
+	 * so any {@link SharedQueue} can be used.
+	 */
+	public static CacheHints cacheHints(final SharedQueue queue,
+		final int level, final int priorityOffset)
+	{
+		final int priority = Math.max(0, Math.min(level + priorityOffset, queue
+			.getNumPriorities() - 1));
+		return new CacheHints(LoadingStrategy.VOLATILE, priority, true);
+	}
+}
@@ -37,8 +37,6 @@ import bdv.util.volatiles.VolatileViews;
 import mpicbg.spim.data.sequence.VoxelDimensions;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Volatile;
-import net.imglib2.cache.volatiles.CacheHints;
-import net.imglib2.cache.volatiles.LoadingStrategy;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.NumericType;
 
@@ -50,6 +48,14 @@ public class MarsSingleTimePointN5VolatileSource<T extends NumericType<T>, V ext
 
 	private SharedQueue queue;
 
+	private MarsN5LoadStatistics statistics;
+
+	private String metaUID;
+
+	private int timeOffset;
+
+	private int priorityOffset = 0;
+
 	public MarsSingleTimePointN5VolatileSource(
 		final MarsSingleTimePointN5Source<T> source, final V type,
 		final SharedQueue queue)
@@ -66,10 +72,35 @@ public class MarsSingleTimePointN5VolatileSource<T extends NumericType<T>, V ext
 		this(source, typeSupplier.get(), queue);
 	}
 
+	/** See {@link MarsN5VolatileSource#setPriorityOffset(int)}. */
+	public void setPriorityOffset(final int priorityOffset) {
+		this.priorityOffset = priorityOffset;
+	}
+
+	public int getPriorityOffset() {
+		return priorityOffset;
+	}
+
+	/**
+	 * Records the requested timepoint for time-to-valid measurements, against
+	 * this source of the metadata with the given UID. The time offset is the
+	 * frame of the dataset shown as timepoint 0, so the recorded timepoint
+	 * matches the frames of the blocks loaded.
+	 */
+	public void setStatistics(final MarsN5LoadStatistics statistics,
+		final String metaUID, final int timeOffset)
+	{
+		this.statistics = statistics;
+		this.metaUID = metaUID;
+		this.timeOffset = timeOffset;
+	}
+
 	@Override
 	public RandomAccessibleInterval<V> getSource(final int t, final int level) {
+		if (statistics != null) statistics.timePointRequested(metaUID, getName(),
+			source.singleTimePoint + timeOffset);
 		return VolatileViews.wrapAsVolatile(source.getSource(t, level), queue,
-			new CacheHints(LoadingStrategy.VOLATILE, level, true));
+			MarsSharedQueue.cacheHints(queue, level, priorityOffset));
 	}
 
 	@Override
@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link MarsSharedQueue} that runs every block load on its own virtual
+ * thread instead of a fixed set of platform fetcher threads. Loads behind
+ * {@code N5Utils.openVolatile} and {@link MarsN5SourceLoader} block on S3
+ * GETs, so their throughput is bound by the number of requests in flight;
+ * with virtual threads, hundreds of concurrent GETs cost almost nothing.
+ * <p>
+ * A single virtual dispatcher takes requests from the priority queue only
+ * when one of {@code maxInFlight} permits is free, so requests keep waiting
+ * in the queue, and keep being reprioritized on timepoint changes, until
+ * they can actually start. Set {@link MarsN5Factory#s3MaxConnections} to at
+ * least {@code maxInFlight}, or loads wait for pooled connections instead.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsVirtualThreadSharedQueue extends MarsSharedQueue {
+
+	private final int maxInFlight;
+
+	private final Semaphore permits;
+
+	private final AtomicInteger numStarted = new AtomicInteger();
+
+	private final Thread dispatcher;
+
+	private volatile boolean shutdown = false;
+
+	public MarsVirtualThreadSharedQueue(final int maxInFlight) {
+		this(maxInFlight, 3);
+	}
+
+	public MarsVirtualThreadSharedQueue(final int maxInFlight,
+		final int numPriorities)
+	{
+		// SharedQueue always starts platform fetchers; start a single one and
+		// stop it right away, the dispatcher replaces it.
+		super(1, numPriorities);
+		super.shutdown();
+		this.maxInFlight = maxInFlight;
+		this.permits = new Semaphore(maxInFlight);
+		this.dispatcher = Thread.ofVirtual().name("mars-fetch-dispatcher").start(
+			this::dispatch);
+	}
+
+	private void dispatch() {
+		while (!shutdown) {
+			final Callable<?> task;
+			try {
+				permits.acquire();
+			}
+			catch (final InterruptedException e) {
+				return;
+			}
+			try {
+				task = queue.take();
+			}
+			catch (final InterruptedException e) {
+				permits.release();
+				return;
+			}
+			Thread.ofVirtual().name("mars-fetcher-" + numStarted.incrementAndGet())
+				.start(() -> {
+					try {
+						task.call();
+					}
+					catch (final InterruptedException e) {
+						// shutting down
+					}
+					catch (final Exception e) {
+						// counted by MarsN5LoadStatistics, the block stays invalid
+						// and is requested again
+					}
+					finally {
+						permits.release();
+					}
+				});
+		}
+	}
+
+	/** Maximum number of block loads in flight, reported as fetcher count. */
+	@Override
+	public int getNumFetcherThreads() {
+		return maxInFlight;
+	}
+
+	/** Block loads currently running. */
+	public int getNumInFlight() {
+		return maxInFlight - permits.availablePermits();
+	}
+
+	/** Stops dispatching; loads already running finish. */
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		dispatcher.interrupt();
+	}
+}
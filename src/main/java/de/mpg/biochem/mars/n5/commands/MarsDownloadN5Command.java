@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5.commands;
+
+import ij.IJ;
+
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.command.DynamicCommand;
+import org.scijava.log.LogService;
+import org.scijava.menu.MenuConstants;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+
+import de.mpg.biochem.mars.n5.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Downloads an N5 root, or one dataset of it, from MinIO to a local folder
+ * with {@link MarsN5Download}. An interrupted download resumes when the
+ * command is run again with the same settings.
+ *
+ * @author Karl Duderstadt
+ */
+@Plugin(type = Command.class, label = "Download N5 from MinIO", menu = { @Menu(
+        label = MenuConstants.PLUGINS_LABEL, weight = MenuConstants.PLUGINS_WEIGHT,
+        mnemonic = MenuConstants.PLUGINS_MNEMONIC), @Menu(label = "Mars",
+        weight = MenuConstants.PLUGINS_WEIGHT, mnemonic = 'm'), @Menu(
+        label = "Import", weight = 1, mnemonic = 'i'),  @Menu(label = "Download N5 from MinIO",
+        weight = 20, mnemonic = 'd') })
+public class MarsDownloadN5Command extends DynamicCommand implements Command {
+
+    /**
+     * SERVICES
+     */
+    @Parameter
+    private LogService logService;
+
+    @Parameter
+    private StatusService statusService;
+
+    /**
+     * PARAMETERS
+     */
+    @Parameter(label = "N5 root url", description = "e.g. https://bucket.s3.server:9000/folder/root.n5")
+    private String rootUrl;
+
+    @Parameter(label = "Dataset (empty for all)", required = false)
+    private String datasetPath = "";
+
+    @Parameter(label = "Local root", style = FileWidget.DIRECTORY_STYLE)
+    private File localRoot;
+
+    @Parameter(label = "Verify when done")
+    private boolean verify = true;
+
+    @Parameter(label = "Threads", min = "1")
+    private int threads = 16;
+
+    @Override
+    public void run() {
+        final MarsN5Download download = new MarsN5Download(new MarsN5Factory()
+                .s3MaxConnections(Math.max(50, 2 * threads)))
+                .numThreads(threads)
+                .verify(verify)
+                .progress(p -> statusService.showProgress((int) (p * 1000), 1000));
+        try {
+            statusService.showStatus("Downloading " + rootUrl + " to " + localRoot);
+            final long count = download.download(rootUrl, datasetPath, localRoot.toPath());
+            statusService.showStatus("Downloaded " + count + " files to " + localRoot);
+        } catch (final IOException | IllegalArgumentException e) {
+            logService.error(e);
+            IJ.error("Could not download " + rootUrl + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5.commands;
+
+import ij.IJ;
+
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.command.DynamicCommand;
+import org.scijava.log.LogService;
+import org.scijava.menu.MenuConstants;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import de.mpg.biochem.mars.n5.*;
+
+import java.io.IOException;
+
+/**
+ * Writes an analysis-optimized copy of an N5 dataset with a new chunking,
+ * e.g. 64,64,1,1,512 for long time series of small XY windows, using
+ * {@link MarsN5Rechunker}. Source and target can be MinIO or local roots.
+ *
+ * @author Karl Duderstadt
+ */
+@Plugin(type = Command.class, label = "Rechunk N5 dataset", menu = { @Menu(
+        label = MenuConstants.PLUGINS_LABEL, weight = MenuConstants.PLUGINS_WEIGHT,
+        mnemonic = MenuConstants.PLUGINS_MNEMONIC), @Menu(label = "Mars",
+        weight = MenuConstants.PLUGINS_WEIGHT, mnemonic = 'm'), @Menu(
+        label = "Export", weight = 2, mnemonic = 'e'),  @Menu(label = "Rechunk N5 dataset",
+        weight = 30, mnemonic = 'r') })
+public class MarsRechunkN5Command extends DynamicCommand implements Command {
+
+    /**
+     * SERVICES
+     */
+    @Parameter
+    private LogService logService;
+
+    @Parameter
+    private StatusService statusService;
+
+    /**
+     * PARAMETERS
+     */
+    @Parameter(label = "Source root url")
+    private String sourceUrl;
+
+    @Parameter(label = "Source dataset")
+    private String sourceDataset = "Pos0";
+
+    @Parameter(label = "Target root url", description = "MinIO url or local path, may equal the source")
+    private String targetUrl;
+
+    @Parameter(label = "Target dataset")
+    private String targetDataset = "Pos0_xyt";
+
+    @Parameter(label = "Block size (XYZCT)")
+    private String blockSize = "64,64,1,1,512";
+
+    @Parameter(label = "Compression", choices = { "same as source", "raw", "gzip", "lz4", "xz", "bzip2" })
+    private String compression = "same as source";
+
+    @Parameter(label = "Threads", min = "1")
+    private int threads = 8;
+
+    @Parameter(label = "Cache size (MB)", min = "16")
+    private long cacheMegabytes = 2048;
+
+    @Override
+    public void run() {
+        final String[] parts = blockSize.trim().split("\\s*,\\s*");
+        final int[] blocks = new int[parts.length];
+        for (int d = 0; d < parts.length; d++)
+            blocks[d] = Integer.parseInt(parts[d]);
+
+        final MarsN5Rechunker rechunker = new MarsN5Rechunker(new MarsN5Factory()
+                .s3MaxConnections(Math.max(50, 2 * threads)))
+                .numThreads(threads)
+                .maxMemoryBytes(cacheMegabytes * 1024 * 1024)
+                .compression(compression.equals("same as source") ? null : MarsN5WriteTuner
+                        .compression(compression))
+                .progress(p -> statusService.showProgress((int) (p * 1000), 1000));
+        try {
+            statusService.showStatus("Rechunking " + sourceDataset);
+            rechunker.rechunk(sourceUrl, sourceDataset, targetUrl, targetDataset, blocks);
+            statusService.showStatus("Rechunked " + sourceDataset + " to " + targetDataset);
+        } catch (final IOException | IllegalArgumentException e) {
+            logService.error(e);
+            IJ.error("Could not rechunk " + sourceDataset + ": " + e.getMessage());
+        }
+    }
+}
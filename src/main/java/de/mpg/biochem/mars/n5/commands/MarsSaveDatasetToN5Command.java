@@ -0,0 +1,313 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5.commands;
+
+import ij.IJ;
+import net.imagej.Dataset;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import org.apache.commons.io.IOUtils;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.command.DynamicCommand;
+import org.scijava.log.LogService;
+import org.scijava.menu.MenuConstants;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import de.mpg.biochem.mars.n5.*;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Write-side mirror of {@link MarsOpenN5asImagePlusCommand}: saves an open
+ * Dataset as an XYZCT N5 dataset on MinIO. Blocks are encoded and uploaded in
+ * parallel by a fixed number of threads, shard by shard if the dataset is
+ * sharded, so memory stays bounded by the blocks in flight and the few shards
+ * being filled. The metadata.txt read by the open command is written next to
+ * the data.
+ *
+ * @author Karl Duderstadt
+ */
+@Plugin(type = Command.class, label = "Save Dataset to MinIO as N5", menu = { @Menu(
+        label = MenuConstants.PLUGINS_LABEL, weight = MenuConstants.PLUGINS_WEIGHT,
+        mnemonic = MenuConstants.PLUGINS_MNEMONIC), @Menu(label = "Mars",
+        weight = MenuConstants.PLUGINS_WEIGHT, mnemonic = 'm'), @Menu(
+        label = "Export", weight = 2, mnemonic = 'e'),  @Menu(label = "Save Dataset to MinIO as N5",
+        weight = 20, mnemonic = 's') })
+public class MarsSaveDatasetToN5Command extends DynamicCommand implements Command {
+
+    public static final String METADATA_FILE = "metadata.txt";
+
+    private static final AxisType[] XYZCT = {Axes.X, Axes.Y, Axes.Z, Axes.CHANNEL, Axes.TIME};
+
+    /**
+     * SERVICES
+     */
+    @Parameter
+    private LogService logService;
+
+    @Parameter
+    private StatusService statusService;
+
+    /**
+     * PARAMETERS
+     */
+    @Parameter(label = "Dataset")
+    private Dataset dataset;
+
+    @Parameter(label = "N5 root url", description = "e.g. https://bucket.s3.server:9000/folder/root.n5")
+    private String rootUrl;
+
+    @Parameter(label = "Dataset path")
+    private String datasetPath = "Pos0";
+
+    @Parameter(label = "Block size (XYZCT)")
+    private String blockSize = "1024,1024,1,1,1";
+
+    @Parameter(label = "Compression", choices = { "raw", "gzip", "lz4", "xz", "bzip2" })
+    private String compression = "gzip";
+
+    @Parameter(label = "Tune codec and block size", description = "Measure all codecs and " +
+            "a few block shapes on sample blocks and use the fastest for frame-wise reading")
+    private boolean tune = false;
+
+    @Parameter(label = "Chunks per shard (XYZCT, empty for none)", required = false)
+    private String chunksPerShard = "";
+
+    @Parameter(label = "Threads", min = "1")
+    private int threads = 8;
+
+    @Parameter(label = "Write metadata.txt")
+    private boolean writeMetadata = true;
+
+    @Override
+    public void run() {
+        final MarsN5Factory factory = new MarsN5Factory().s3MaxConnections(Math.max(50, threads));
+        try {
+            save(factory);
+        } catch (final IOException | IllegalArgumentException e) {
+            logService.error(e);
+            IJ.error("Could not save " + dataset.getName() + ": " + e.getMessage());
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private <T extends NumericType<T> & NativeType<T>> void save(final MarsN5Factory factory) throws IOException {
+        final Endpoint endpoint = Endpoint.parse(rootUrl);
+        final RandomAccessibleInterval<T> img = toXYZCT((ImgPlus) dataset.getImgPlus());
+        int[] blocks = parseInts(blockSize, "block size");
+        Compression codec = MarsN5WriteTuner.compression(compression);
+        if (tune) {
+            statusService.showStatus("Tuning codec and block size");
+            final MarsN5WriteTuner.Candidate best = new MarsN5WriteTuner()
+                    .numReaders(threads)
+                    .recommend(img);
+            logService.info("Tuned configuration: " + best);
+            blocks = best.blockSize;
+            codec = best.getCompression();
+        }
+        final String path = datasetPath.startsWith("/") ? datasetPath.substring(1) : datasetPath;
+
+        // blocks are written shard by shard, so each shard is stored as soon as
+        // it is complete instead of all of them being held until the end
+        final long[] groupSize = new long[blocks.length];
+        Arrays.fill(groupSize, 1);
+        final MarsN5AmazonS3Writer writer = factory.openAWSS3WriterWithEndpoint(endpoint.s3Url,
+                endpoint.endpointUrl);
+        try {
+            statusService.showStatus("Writing " + path + " to " + rootUrl);
+            writer.createDataset(path, img.dimensionsAsLongArray(), blocks,
+                    N5Utils.dataType(Util.getTypeFromInterval(img)), codec);
+            if (chunksPerShard != null && !chunksPerShard.trim().isEmpty()) {
+                final int[] shard = parseInts(chunksPerShard, "chunks per shard");
+                writer.setSharding(path, shard);
+                for (int d = 0; d < groupSize.length && d < shard.length; d++)
+                    groupSize[d] = shard[d];
+            }
+            new MarsN5Rechunker(factory)
+                    .numThreads(threads)
+                    .progress(p -> statusService.showProgress((int) (p * 1000), 1000))
+                    .writeBlocks(img, writer, path, groupSize);
+            writer.flushShards(path);
+        } finally {
+            writer.close();
+        }
+
+        if (writeMetadata) {
+            final byte[] metadata = metadata(img);
+            try (S3Client s3 = factory.createS3WithEndpoint(endpoint.endpointUrl)) {
+                s3.putObject(PutObjectRequest.builder()
+                        .bucket(endpoint.bucket)
+                        .key(endpoint.key + path + "/" + METADATA_FILE)
+                        .build(), RequestBody.fromBytes(metadata));
+            }
+        }
+        statusService.showStatus("Saved " + path + " to " + rootUrl);
+    }
+
+    /**
+     * Views the image as XYZCT, adding missing axes as singleton dimensions,
+     * the layout {@link MarsOpenN5asImagePlusCommand} reads back.
+     */
+    private <T> RandomAccessibleInterval<T> toXYZCT(final ImgPlus<T> imgPlus) {
+        final List<AxisType> axes = new ArrayList<>();
+        for (int d = 0; d < imgPlus.numDimensions(); d++)
+            axes.add(imgPlus.axis(d).type());
+        for (AxisType axis : axes)
+            if (!Arrays.asList(XYZCT).contains(axis))
+                throw new IllegalArgumentException("Unsupported axis " + axis);
+
+        RandomAccessibleInterval<T> img = imgPlus;
+        for (AxisType axis : XYZCT)
+            if (!axes.contains(axis)) {
+                img = Views.addDimension(img, 0, 0);
+                axes.add(axis);
+            }
+        for (int d = 0; d < XYZCT.length; d++) {
+            final int from = axes.indexOf(XYZCT[d]);
+            if (from != d) {
+                img = Views.permute(img, from, d);
+                Collections.swap(axes, from, d);
+            }
+        }
+        return Views.zeroMin(img);
+    }
+
+    /**
+     * The Micro-Manager metadata of the source: the metadata.txt of an N5
+     * dataset opened from MinIO, the metadata file next to a local
+     * Micro-Manager stack, or a minimal summary otherwise.
+     */
+    private byte[] metadata(final RandomAccessibleInterval<?> img) throws IOException {
+        final String source = dataset.getSource();
+        if (source != null) {
+            final int n5 = source.indexOf(".n5/");
+            if (n5 > 0 && source.contains("://")) {
+                try (InputStream in = MarsOpenN5asImagePlusCommand.getMetadataInputStream(
+                        source.substring(0, n5 + 4), source.substring(n5 + 4))) {
+                    if (in != null)
+                        return IOUtils.toByteArray(in);
+                } catch (final RuntimeException e) {
+                    logService.warn("Could not read metadata of " + source + ": " + e.getMessage());
+                }
+            }
+            final File file = new File(source);
+            if (file.isFile()) {
+                String name = file.getName();
+                name = name.replaceAll("(?i)(\\.ome)?\\.tiff?$", "");
+                for (File candidate : new File[] {
+                        new File(file.getParentFile(), name + "_metadata.txt"),
+                        new File(file.getParentFile(), METADATA_FILE) })
+                    if (candidate.isFile())
+                        return Files.readAllBytes(candidate.toPath());
+            }
+        }
+        logService.warn("No Micro-Manager metadata found for " + dataset.getName() +
+                ", writing a minimal summary.");
+        return ("{\n  \"Summary\": {\n" +
+                "    \"Prefix\": \"" + dataset.getName().replace("\"", "'") + "\",\n" +
+                "    \"Width\": " + img.dimension(0) + ",\n" +
+                "    \"Height\": " + img.dimension(1) + ",\n" +
+                "    \"Slices\": " + img.dimension(2) + ",\n" +
+                "    \"Channels\": " + img.dimension(3) + ",\n" +
+                "    \"Frames\": " + img.dimension(4) + ",\n" +
+                "    \"Positions\": 1\n  }\n}\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int[] parseInts(final String list, final String what) {
+        final String[] parts = list.trim().split("\\s*,\\s*");
+        if (parts.length != XYZCT.length)
+            throw new IllegalArgumentException("Expected 5 values (XYZCT) for " + what +
+                    ", got " + list);
+        final int[] values = new int[parts.length];
+        for (int d = 0; d < parts.length; d++)
+            values[d] = Integer.parseInt(parts[d]);
+        return values;
+    }
+
+    /** Bucket, key and endpoint of a https://bucket.s3.server:port/path url. */
+    private static final class Endpoint {
+
+        final String bucket;
+        final String key;
+        final String s3Url;
+        final String endpointUrl;
+
+        private Endpoint(final String bucket, final String key, final String endpointUrl) {
+            this.bucket = bucket;
+            this.key = key;
+            this.s3Url = "s3://" + bucket + "/" + key;
+            this.endpointUrl = endpointUrl;
+        }
+
+        static Endpoint parse(final String url) {
+            try {
+                final URI uri = new URI(url);
+                if (uri.getHost() == null || !uri.getHost().matches(".*s3\\..*"))
+                    throw new IllegalArgumentException("Expected a url like " +
+                            "https://bucket.s3.server:9000/path, got " + url);
+                final String[] parts = uri.getHost().split("\\.", 3);
+                String key = uri.getPath() == null ? "" : uri.getPath();
+                while (key.startsWith("/"))
+                    key = key.substring(1);
+                if (!key.isEmpty() && !key.endsWith("/"))
+                    key += "/";
+                return new Endpoint(parts[0], key, uri.getScheme() + "://" + parts[2] + ":" +
+                        uri.getPort());
+            } catch (final URISyntaxException e) {
+                throw new IllegalArgumentException("Invalid url " + url, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5.commands;
+
+import ij.IJ;
+
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.command.DynamicCommand;
+import org.scijava.log.LogService;
+import org.scijava.menu.MenuConstants;
+import org.scijava.plugin.Menu;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.widget.FileWidget;
+
+import de.mpg.biochem.mars.n5.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Uploads new and changed files of a local N5 root to MinIO with
+ * {@link MarsN5Sync}, e.g. at the end of each acquisition day.
+ *
+ * @author Karl Duderstadt
+ */
+@Plugin(type = Command.class, label = "Sync N5 root to MinIO", menu = { @Menu(
+        label = MenuConstants.PLUGINS_LABEL, weight = MenuConstants.PLUGINS_WEIGHT,
+        mnemonic = MenuConstants.PLUGINS_MNEMONIC), @Menu(label = "Mars",
+        weight = MenuConstants.PLUGINS_WEIGHT, mnemonic = 'm'), @Menu(
+        label = "Export", weight = 2, mnemonic = 'e'),  @Menu(label = "Sync N5 root to MinIO",
+        weight = 40, mnemonic = 's') })
+public class MarsSyncN5ToMinIOCommand extends DynamicCommand implements Command {
+
+    /**
+     * SERVICES
+     */
+    @Parameter
+    private LogService logService;
+
+    @Parameter
+    private StatusService statusService;
+
+    /**
+     * PARAMETERS
+     */
+    @Parameter(label = "Local N5 root", style = FileWidget.DIRECTORY_STYLE)
+    private File localRoot;
+
+    @Parameter(label = "N5 root url", description = "e.g. https://bucket.s3.server:9000/folder/root.n5")
+    private String rootUrl;
+
+    @Parameter(label = "Delete remote files missing locally")
+    private boolean deleteOrphans = false;
+
+    @Parameter(label = "Dry run", description = "Only report what would be uploaded and deleted")
+    private boolean dryRun = false;
+
+    @Parameter(label = "Threads", min = "1")
+    private int threads = 16;
+
+    @Override
+    public void run() {
+        final MarsN5Sync sync = new MarsN5Sync(new MarsN5Factory()
+                .s3MaxConnections(Math.max(50, 2 * threads)))
+                .numThreads(threads)
+                .deleteOrphans(deleteOrphans)
+                .dryRun(dryRun)
+                .progress(p -> statusService.showProgress((int) (p * 1000), 1000));
+        try {
+            statusService.showStatus("Syncing " + localRoot.getName() + " to " + rootUrl);
+            final MarsN5Sync.Result result = sync.sync(localRoot.toPath(), rootUrl);
+            logService.info((dryRun ? "Dry run: " : "") + result);
+            statusService.showStatus((dryRun ? "Dry run: " : "Synced: ") + result);
+        } catch (final IOException | IllegalArgumentException e) {
+            logService.error(e);
+            IJ.error("Could not sync " + localRoot + ": " + e.getMessage());
+        }
+    }
+}
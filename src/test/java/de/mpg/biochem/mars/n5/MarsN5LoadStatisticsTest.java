@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.junit.Test;
+
+import bdv.util.volatiles.SharedQueue;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.volatiles.VolatileUnsignedShortType;
+import net.imglib2.view.Views;
+
+/**
+ * Time-to-valid of {@link MarsN5LoadStatistics} for volatile sources shown
+ * through a time window, whose timepoints are shifted against the frames of
+ * the instrumented dataset.
+ */
+public class MarsN5LoadStatisticsTest {
+
+	private static final String UID = "meta";
+
+	private static final String NAME = "movie";
+
+	private final MarsN5LoadStatistics statistics = new MarsN5LoadStatistics();
+
+	/** A 4x4x20 movie with one frame per block, shown from frame 10 to 14. */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private MarsN5Source<UnsignedShortType> windowedSource() {
+		final long[] dimensions = { 4, 4, 20 };
+		final int[] blockSize = { 4, 4, 1 };
+		final DatasetAttributes attributes = new DatasetAttributes(dimensions,
+			blockSize, DataType.UINT16, new RawCompression());
+		final CellLoader<UnsignedShortType> loader = statistics.instrument(UID,
+			NAME, attributes, cell -> {});
+		final RandomAccessibleInterval<UnsignedShortType> movie =
+			new ReadOnlyCachedCellImgFactory(ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions(blockSize)).create(dimensions, new UnsignedShortType(),
+					loader);
+		final RandomAccessibleInterval<UnsignedShortType>[] images =
+			new RandomAccessibleInterval[] { Views.zeroMin(Views.interval(movie,
+				new long[] { 0, 0, 10 }, new long[] { 3, 3, 14 })) };
+		final AffineTransform3D[] transforms = new AffineTransform3D[5];
+		for (int t = 0; t < transforms.length; t++)
+			transforms[t] = new AffineTransform3D();
+		return new MarsN5Source<>(new UnsignedShortType(), NAME, images,
+			transforms);
+	}
+
+	@Test
+	public void timeToValidUsesFramesOfTheDataset() {
+		final MarsN5Source<UnsignedShortType> source = windowedSource();
+		final MarsN5VolatileSource<UnsignedShortType, VolatileUnsignedShortType> volatileSource =
+			source.asVolatile(new SharedQueue(1));
+		volatileSource.setStatistics(statistics, UID, 10);
+
+		// Timepoint 2 of the window is frame 12 of the dataset.
+		volatileSource.getSource(2, 0);
+		source.getSource(2, 0).randomAccess().get();
+
+		final MarsN5LoadStatistics.SourceStatistics stats = statistics.getSource(
+			UID, NAME);
+		assertEquals(1, stats.getBlocksLoaded());
+		assertTrue("the block on screen was not timed", stats
+			.getMaxTimeToValidMillis() > 0);
+	}
+
+	@Test
+	public void blocksOfOtherFramesAreNotTimed() {
+		final MarsN5Source<UnsignedShortType> source = windowedSource();
+		final MarsN5VolatileSource<UnsignedShortType, VolatileUnsignedShortType> volatileSource =
+			source.asVolatile(new SharedQueue(1));
+		volatileSource.setStatistics(statistics, UID, 10);
+
+		volatileSource.getSource(2, 0);
+		source.getSource(3, 0).randomAccess().get();
+
+		final MarsN5LoadStatistics.SourceStatistics stats = statistics.getSource(
+			UID, NAME);
+		assertEquals(1, stats.getBlocksLoaded());
+		assertEquals(0, stats.getMaxTimeToValidMillis(), 0);
+	}
+}
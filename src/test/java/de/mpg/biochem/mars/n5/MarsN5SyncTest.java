@@ -0,0 +1,150 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mpg.biochem.mars.n5.bench.MarsS3StandInServer;
+
+/** Request and byte counts of {@link MarsN5Sync} against a {@link MarsS3StandInServer}. */
+public class MarsN5SyncTest {
+
+    private static final String BUCKET = "test";
+
+    private MarsS3StandInServer server;
+    private Path root;
+    private long totalBytes = 0;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MarsS3StandInServer().start();
+        server.createBucket(BUCKET);
+        root = Files.createTempDirectory("mars-sync-test").resolve("r.n5");
+        write("attributes.json", "{\"n5\":\"4.0.0\"}".getBytes());
+        write("Pos0/attributes.json", "{\"dimensions\":[64,64,3]}".getBytes());
+        for (int t = 0; t < 3; t++)
+            for (int x = 0; x < 4; x++)
+                write("Pos0/" + x + "/0/" + t, new byte[1000 + t]);
+    }
+
+    private void write(final String relative, final byte[] data) throws IOException {
+        final Path file = root.resolve(relative);
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+        totalBytes += data.length;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        try (Stream<Path> files = Files.walk(root.getParent())) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private MarsN5Sync.Result sync() throws IOException {
+        return new MarsN5Sync().numThreads(4).sync(root, MarsS3Browser.buildPath(server
+                .getServerUrl(), BUCKET, "data/r.n5"));
+    }
+
+    @Test
+    public void firstSyncUploadsEachFileOnce() throws IOException {
+        server.resetStatistics();
+        final MarsN5Sync.Result result = sync();
+        assertEquals(14, result.getUploaded());
+        assertEquals(14, server.getRequestCount("PutObject"));
+        assertEquals(totalBytes, server.getBytesIn());
+        assertEquals(14, server.objectCount(BUCKET));
+    }
+
+    @Test
+    public void resyncOnlyLists() throws IOException {
+        sync();
+        server.resetStatistics();
+        final MarsN5Sync.Result result = sync();
+        assertEquals(0, result.getUploaded());
+        assertEquals(14, result.getUnchanged());
+        assertEquals(1, server.getRequestCount("ListObjectsV2"));
+        assertEquals(1, server.getTotalRequestCount());
+    }
+
+    @Test
+    public void changedFileIsUploadedAlone() throws IOException {
+        sync();
+        final byte[] changed = new byte[1002];
+        Arrays.fill(changed, (byte) 1);
+        Files.write(root.resolve("Pos0/1/0/2"), changed);
+        server.resetStatistics();
+        final MarsN5Sync.Result result = sync();
+        assertEquals(1, result.getUploaded());
+        assertEquals(1, server.getRequestCount("PutObject"));
+        assertEquals(1002, server.getBytesIn());
+    }
+
+    @Test
+    public void resyncHashesOnlyTouchedFiles() throws IOException {
+        sync();
+        // same size and modification time, the manifest hash is trusted
+        final Path file = root.resolve("Pos0/1/0/2");
+        final FileTime modified = Files.getLastModifiedTime(file);
+        final byte[] changed = new byte[1002];
+        Arrays.fill(changed, (byte) 1);
+        Files.write(file, changed);
+        Files.setLastModifiedTime(file, modified);
+        assertEquals(0, sync().getUploaded());
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() + 1000));
+        final MarsN5Sync.Result result = sync();
+        assertEquals(1, result.getUploaded());
+        assertEquals(13, result.getUnchanged());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deleteOrphansRefusesBucketRoot() throws IOException {
+        server.putObject(BUCKET, "other/attributes.json", new byte[10]);
+        try {
+            new MarsN5Sync().deleteOrphans(true).sync(root, MarsS3Browser.buildPath(
+                    server.getServerUrl(), BUCKET, ""));
+        } finally {
+            assertEquals(1, server.objectCount(BUCKET));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mpg.biochem.mars.n5.bench.MarsS3StandInServer;
+
+/**
+ * Request and byte counts of {@link MarsS3Browser} transfers against a
+ * {@link MarsS3StandInServer}, so changes that add round trips or move data
+ * through the client fail here.
+ */
+public class MarsS3BrowserTest {
+
+    private static final String BUCKET = "test";
+
+    private MarsS3StandInServer server;
+    private MarsS3Browser browser;
+    private Path tmp;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MarsS3StandInServer().start();
+        server.createBucket(BUCKET);
+        browser = new MarsS3Browser(server.getServerUrl());
+        tmp = Files.createTempDirectory("mars-browser-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        browser.close();
+        server.close();
+        try (Stream<Path> files = Files.walk(tmp)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void copyIsServerSide() {
+        for (int i = 0; i < 50; i++)
+            server.putObject(BUCKET, "src.n5/Pos0/" + i, new byte[1000]);
+        server.resetStatistics();
+
+        assertEquals(50, browser.copy(BUCKET, "src.n5", BUCKET, "dst.n5", 4, null));
+        assertEquals(50, server.getRequestCount("CopyObject"));
+        assertEquals(1, server.getRequestCount("ListObjectsV2"));
+        assertEquals(0, server.getRequestCount("GetObject"));
+        assertEquals(0, server.getRequestCount("PutObject"));
+        assertTrue("copied data went through the client",
+                server.getBytesOut() + server.getBytesIn() < 50 * 1000);
+        assertEquals(100, server.objectCount(BUCKET));
+    }
+
+    @Test
+    public void deletePrefixDeletesInBatches() {
+        for (int i = 0; i < 2500; i++)
+            server.putObject(BUCKET, "old.n5/" + i, new byte[1]);
+        server.putObject(BUCKET, "keep.n5/0", new byte[1]);
+        server.resetStatistics();
+
+        assertEquals(2500, browser.deletePrefix(BUCKET, "old.n5", 4, false, null));
+        assertEquals(3, server.getRequestCount("DeleteObjects"));
+        assertEquals(0, server.getRequestCount("DeleteObject"));
+        assertEquals(1, server.objectCount(BUCKET));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void deletePrefixRefusesBucketRoot() {
+        browser.deletePrefix(BUCKET, "/", 1, true, null);
+    }
+
+    @Test
+    public void uploadAndDownloadMoveEachByteOnce() throws IOException {
+        final byte[] data = new byte[200_000];
+        new Random(1).nextBytes(data);
+        final Path file = tmp.resolve("chunk");
+        Files.write(file, data);
+
+        server.resetStatistics();
+        browser.upload(BUCKET, "r.n5/chunk", file);
+        assertEquals(1, server.getRequestCount("PutObject"));
+        assertEquals(data.length, server.getBytesIn());
+
+        server.resetStatistics();
+        final Path copy = tmp.resolve("copy");
+        browser.download(BUCKET, "r.n5/chunk", copy);
+        assertEquals(1, server.getTotalRequestCount());
+        assertEquals(data.length, server.getBytesOut());
+        assertArrayEquals(data, Files.readAllBytes(copy));
+    }
+
+    @Test
+    public void downloadRefusesKeysOutsideLocalRoot() throws IOException {
+        server.putObject(BUCKET, "r.n5/0/0", new byte[1]);
+        server.putObject(BUCKET, "r.n5/../../escaped", new byte[1]);
+        final Path localRoot = tmp.resolve("a").resolve("r.n5");
+        try {
+            new MarsN5Download().download(browser, BUCKET, "r.n5", "", localRoot);
+            fail("key leaving the local root was downloaded");
+        } catch (final IOException e) {
+            // expected
+        }
+        assertFalse(Files.exists(tmp.resolve("escaped")));
+        assertFalse(Files.exists(localRoot));
+    }
+}
@@ -0,0 +1,222 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mpg.biochem.mars.n5.bench.MarsS3StandInServer;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+/**
+ * Requests made by {@link MarsS3MetadataCache} sweeps and snapshots against
+ * a {@link MarsS3StandInServer}.
+ */
+public class MarsS3MetadataCacheTest {
+
+    private static final String BUCKET = "test";
+
+    private MarsS3StandInServer server;
+    private MarsShardedS3Client client;
+    private S3Client s3;
+    private Path snapshots;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MarsS3StandInServer().start();
+        server.createBucket(BUCKET);
+        put("r.n5/attributes.json", "{\"n5\":\"4.0.0\"}");
+        for (int i = 0; i < 10; i++) {
+            put("r.n5/g" + i + "/attributes.json", "{\"dimensions\":[" + i + "]}");
+            for (int c = 0; c < 5; c++)
+                server.putObject(BUCKET, "r.n5/g" + i + "/" + c + "/0", new byte[100]);
+        }
+        // a plain client without a cache of its own
+        client = new MarsN5Factory().createS3WithEndpoint(server.getEndpoint());
+        s3 = (S3Client) ((MarsS3MetadataCache) client.delegate()).delegate();
+        snapshots = Files.createTempDirectory("mars-snapshot-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+        try (Stream<Path> files = Files.walk(snapshots)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private void put(final String key, final String json) {
+        server.putObject(BUCKET, key, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private MarsS3MetadataCache newCache() {
+        return new MarsS3MetadataCache(s3, new MarsS3MetadataCache.Store(), true);
+    }
+
+    private String read(final MarsS3MetadataCache cache, final String key) {
+        return cache.getObjectAsBytes(GetObjectRequest.builder().bucket(BUCKET).key(key)
+                .build()).asUtf8String();
+    }
+
+    @Test
+    public void prefetchListsEachGroupOnce() {
+        server.resetStatistics();
+        assertEquals(11, newCache().prefetch(BUCKET, "r.n5", 4));
+        assertEquals(11, server.getRequestCount("ListObjectsV2"));
+        assertEquals(11, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void prefetchedLookupsNeedNoRequests() {
+        final MarsS3MetadataCache cache = newCache();
+        cache.prefetch(BUCKET, "r.n5", 4);
+        server.resetStatistics();
+        assertEquals("{\"dimensions\":[3]}", read(cache, "r.n5/g3/attributes.json"));
+        try {
+            read(cache, "r.n5/g3/missing/attributes.json");
+            fail("missing attributes should not be found");
+        } catch (final NoSuchKeyException e) {
+            // expected
+        }
+        assertEquals(0, server.getTotalRequestCount());
+    }
+
+    @Test
+    public void prefetchReadsNumericGroups() {
+        put("image.zarr/.zgroup", "{\"zarr_format\":2}");
+        put("image.zarr/.zattrs", "{\"multiscales\":[]}");
+        for (int s = 0; s < 3; s++) {
+            put("image.zarr/" + s + "/.zarray", "{\"shape\":[4]}");
+            for (int c = 0; c < 4; c++)
+                server.putObject(BUCKET, "image.zarr/" + s + "/" + c + "/0", new byte[10]);
+        }
+        final MarsS3MetadataCache cache = newCache();
+        server.resetStatistics();
+        assertEquals(5, cache.prefetch(BUCKET, "image.zarr", 4));
+        // the root and the three scales, no chunk folders
+        assertEquals(4, server.getRequestCount("ListObjectsV2"));
+
+        server.resetStatistics();
+        assertEquals("{\"shape\":[4]}", read(cache, "image.zarr/2/.zarray"));
+        assertEquals(0, server.getTotalRequestCount());
+    }
+
+    @Test
+    public void snapshotOpensWithoutRequests() throws IOException {
+        final MarsS3MetadataCache first = newCache();
+        first.prefetch(BUCKET, "r.n5", 4);
+        first.saveSnapshot(BUCKET, "r.n5", snapshots);
+
+        final MarsS3MetadataCache cache = newCache();
+        server.resetStatistics();
+        assertTrue(cache.loadSnapshot(BUCKET, "r.n5", snapshots));
+        assertEquals("{\"dimensions\":[3]}", read(cache, "r.n5/g3/attributes.json"));
+        assertEquals(10, cache.listObjectsV2(ListObjectsV2Request.builder().bucket(BUCKET)
+                .prefix("r.n5/").delimiter("/").build()).commonPrefixes().size());
+        try {
+            read(cache, "r.n5/g99/attributes.json");
+            fail("missing attributes were found");
+        } catch (final NoSuchKeyException e) {
+            // expected, answered from the snapshot
+        }
+        assertEquals(0, server.getTotalRequestCount());
+    }
+
+    @Test
+    public void refreshRevalidatesWithConditionalGets() throws IOException {
+        final MarsS3MetadataCache first = newCache();
+        first.prefetch(BUCKET, "r.n5", 4);
+        first.saveSnapshot(BUCKET, "r.n5", snapshots);
+
+        put("r.n5/g5/attributes.json", "{\"dimensions\":[55]}");
+        s3.deleteObject(DeleteObjectRequest.builder().bucket(BUCKET).key(
+                "r.n5/g7/attributes.json").build());
+        for (int c = 0; c < 5; c++)
+            s3.deleteObject(DeleteObjectRequest.builder().bucket(BUCKET).key(
+                    "r.n5/g7/" + c + "/0").build());
+        put("r.n5/g10/attributes.json", "{\"dimensions\":[10]}");
+
+        final MarsS3MetadataCache cache = newCache();
+        cache.loadSnapshot(BUCKET, "r.n5", snapshots);
+        server.resetStatistics();
+        assertEquals(3, cache.refresh(BUCKET, "r.n5", 4));
+        // the root and the ten groups left
+        assertEquals(11, server.getRequestCount("ListObjectsV2"));
+        // the ten known attributes conditionally, the new one in full
+        assertEquals(11, server.getRequestCount("GetObject"));
+        assertEquals("{\"dimensions\":[55]}", read(cache, "r.n5/g5/attributes.json"));
+        try {
+            read(cache, "r.n5/g7/attributes.json");
+            fail("deleted attributes were found");
+        } catch (final NoSuchKeyException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void writesDropListings() {
+        final MarsS3MetadataCache cache = newCache();
+        cache.prefetch(BUCKET, "r.n5", 4);
+
+        cache.putObject(PutObjectRequest.builder().bucket(BUCKET).key("r.n5/g3/9/0")
+                .build(), RequestBody.fromBytes(new byte[100]));
+        cache.copyObject(CopyObjectRequest.builder().sourceBucket(BUCKET).sourceKey(
+                "r.n5/g3/attributes.json").destinationBucket(BUCKET).destinationKey(
+                "r.n5/g11/attributes.json").build());
+        server.resetStatistics();
+        assertEquals(6, cache.listObjectsV2(ListObjectsV2Request.builder().bucket(BUCKET)
+                .prefix("r.n5/g3/").delimiter("/").build()).commonPrefixes().size());
+        assertEquals(11, cache.listObjectsV2(ListObjectsV2Request.builder().bucket(BUCKET)
+                .prefix("r.n5/").delimiter("/").build()).commonPrefixes().size());
+        assertEquals(2, server.getRequestCount("ListObjectsV2"));
+        // the copy was read back, the root still answers from memory
+        assertEquals("{\"dimensions\":[3]}", read(cache, "r.n5/g11/attributes.json"));
+        assertEquals(2, server.getTotalRequestCount());
+    }
+}
@@ -0,0 +1,175 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mpg.biochem.mars.n5.bench.MarsS3StandInServer;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.DelegatingS3Client;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+/**
+ * Shard writes and reads of {@link MarsShardedS3Client} with several clients
+ * on one {@link MarsS3StandInServer}.
+ */
+public class MarsShardedS3ClientTest {
+
+    private static final String BUCKET = "test";
+    // one shard of 2x2 chunks
+    private static final String ATTRIBUTES = "{\"dimensions\":[4,4],\"blockSize\":[2,2]," +
+            "\"marsSharding\":{\"chunksPerShard\":[2,2]}}";
+
+    private MarsS3StandInServer server;
+    private MarsShardedS3Client factoryClient;
+    private S3Client s3;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MarsS3StandInServer().start();
+        server.createBucket(BUCKET);
+        factoryClient = new MarsN5Factory().createS3WithEndpoint(server.getEndpoint());
+        s3 = (S3Client) ((MarsS3MetadataCache) factoryClient.delegate()).delegate();
+    }
+
+    @After
+    public void tearDown() {
+        factoryClient.close();
+        server.close();
+    }
+
+    /** A client that knows the layout of dataset ds. */
+    private MarsShardedS3Client newClient(final S3Client s3) {
+        final MarsShardedS3Client client = new MarsShardedS3Client(s3, 0);
+        client.putObject(PutObjectRequest.builder().bucket(BUCKET).key("ds/attributes.json")
+                .build(), RequestBody.fromString(ATTRIBUTES));
+        return client;
+    }
+
+    private static void put(final S3Client client, final String key, final String data) {
+        client.putObject(PutObjectRequest.builder().bucket(BUCKET).key(key).build(),
+                RequestBody.fromString(data));
+    }
+
+    private static String get(final S3Client client, final String key) {
+        return client.getObjectAsBytes(GetObjectRequest.builder().bucket(BUCKET).key(key)
+                .build()).asString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void concurrentPartialShardsKeepAllChunks() {
+        final MarsShardedS3Client other = newClient(s3);
+        put(other, "ds/1/1", "b");
+        // the other client stores its shard between our read and our write
+        final MarsShardedS3Client client = newClient(new DelegatingS3Client(s3) {
+
+            private boolean raced = false;
+
+            @Override
+            public PutObjectResponse putObject(final PutObjectRequest request,
+                    final RequestBody requestBody) {
+                if (!raced && request.key().startsWith("ds/shards/")) {
+                    raced = true;
+                    other.flushShards();
+                }
+                return super.putObject(request, requestBody);
+            }
+        });
+        put(client, "ds/0/0", "a");
+        client.flushShards();
+
+        final MarsShardedS3Client reader = newClient(s3);
+        assertEquals("a", get(reader, "ds/0/0"));
+        assertEquals("b", get(reader, "ds/1/1"));
+    }
+
+    @Test
+    public void rewrittenShardIsIndexedAgain() {
+        final MarsShardedS3Client writer = newClient(s3);
+        for (String chunk : new String[] {"0/0", "1/0", "0/1", "1/1"})
+            put(writer, "ds/" + chunk, "first " + chunk);
+        final MarsShardedS3Client reader = newClient(s3);
+        assertEquals("first 1/0", get(reader, "ds/1/0"));
+
+        // chunks of other sizes move every offset in the shard
+        for (String chunk : new String[] {"0/0", "1/0", "0/1", "1/1"})
+            put(writer, "ds/" + chunk, "second, longer " + chunk);
+        server.resetStatistics();
+        assertEquals("second, longer 1/1", get(reader, "ds/1/1"));
+        // the failed If-Match read, the index and the chunk
+        assertEquals(3, server.getRequestCount("GetObject"));
+    }
+
+    @Test
+    public void shardStoredAfterMissIsRead() {
+        final MarsShardedS3Client reader = newClient(s3);
+        try {
+            get(reader, "ds/0/0");
+            fail("shard should not exist yet");
+        } catch (final NoSuchKeyException e) {
+            // expected
+        }
+
+        final MarsShardedS3Client writer = newClient(s3);
+        put(writer, "ds/0/0", "a");
+        writer.flushShards();
+        assertEquals("a", get(reader, "ds/0/0"));
+    }
+
+    @Test
+    public void flushWritesOneDataset() {
+        final MarsShardedS3Client client = newClient(s3);
+        client.putObject(PutObjectRequest.builder().bucket(BUCKET).key(
+                "other/attributes.json").build(), RequestBody.fromString(ATTRIBUTES));
+        put(client, "ds/0/0", "a");
+        put(client, "other/0/0", "b");
+
+        client.flushShards(BUCKET, "/ds");
+        assertNotNull(server.getObject(BUCKET, "ds/shards/0/0"));
+        assertNull(server.getObject(BUCKET, "other/shards/0/0"));
+        assertArrayEquals("b".getBytes(StandardCharsets.UTF_8), client.getObjectAsBytes(
+                GetObjectRequest.builder().bucket(BUCKET).key("other/0/0").build())
+                .asByteArray());
+    }
+}
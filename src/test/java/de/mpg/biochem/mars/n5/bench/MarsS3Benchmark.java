@@ -0,0 +1,281 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+
+import de.mpg.biochem.mars.n5.DatasetEntry;
+import de.mpg.biochem.mars.n5.MarsN5AmazonS3Writer;
+import de.mpg.biochem.mars.n5.MarsN5Factory;
+import de.mpg.biochem.mars.n5.MarsS3Browser;
+import de.mpg.biochem.mars.n5.MarsS3Metrics;
+
+/**
+ * Offline throughput and latency suites for the S3 code paths, run against a
+ * {@link MarsS3StandInServer}. Each suite reports wall time, bytes moved and
+ * the number of S3 requests issued per operation, so changes that add round
+ * trips show up as a changed request count rather than only as a slower run
+ * against a live MinIO.
+ * <p>
+ * Run from the command line with optional arguments
+ * {@code [latencyMillis] [bandwidthMBps] [threads] [timePoints] [timePointsPerShard]}.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsS3Benchmark {
+
+    public static final String BUCKET = "bench";
+    public static final String ROOT = "bench.n5";
+    public static final String DATASET = "Pos0";
+
+    private final MarsS3StandInServer server;
+    private final MarsN5Factory factory;
+    private final int numThreads;
+
+    private long[] dimensions = {512, 512, 1, 1, 100};
+    private int[] blockSize = {256, 256, 1, 1, 1};
+    private int[] chunksPerShard = null;
+
+    public MarsS3Benchmark(final MarsS3StandInServer server,
+                           final MarsN5Factory factory, final int numThreads) {
+        this.server = server;
+        this.factory = factory;
+        this.numThreads = numThreads;
+        server.createBucket(BUCKET);
+    }
+
+    /** XYZCT dimensions and block size of the benchmark dataset. */
+    public MarsS3Benchmark dataset(final long[] dimensions, final int[] blockSize) {
+        this.dimensions = dimensions;
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    /** Store the benchmark dataset in shards, null for one object per chunk. */
+    public MarsS3Benchmark sharding(final int... chunksPerShard) {
+        this.chunksPerShard = chunksPerShard;
+        return this;
+    }
+
+    public String getRootUrl() {
+        return MarsS3Browser.buildPath(server.getServerUrl(), BUCKET, ROOT);
+    }
+
+    /** Writes every block of the benchmark dataset in parallel. */
+    public Result upload() throws IOException {
+        server.resetStatistics();
+        final long start = System.nanoTime();
+        final MarsN5AmazonS3Writer writer = factory.openAWSS3WriterWithEndpoint(
+                "s3://" + BUCKET + "/" + ROOT, server.getEndpoint());
+        writer.createDataset(DATASET, dimensions, blockSize, DataType.UINT16,
+                new RawCompression());
+        if (chunksPerShard != null)
+            writer.setSharding(DATASET, chunksPerShard);
+        final DatasetAttributes attributes = writer.getDatasetAttributes(DATASET);
+
+        runParallel(gridPosition -> {
+            final int[] size = blockSizeAt(gridPosition);
+            int n = 1;
+            for (int s : size)
+                n *= s;
+            final short[] data = new short[n];
+            for (int i = 0; i < n; i++)
+                data[i] = (short) (i + gridPosition[gridPosition.length - 1]);
+            writer.writeBlock(DATASET, attributes, new ShortArrayDataBlock(size,
+                    gridPosition, data));
+        });
+        writer.close();
+        return result("upload", start);
+    }
+
+    /** Reads every block of the benchmark dataset in parallel. */
+    public Result chunkReads() throws IOException {
+        server.resetStatistics();
+        final long start = System.nanoTime();
+        final N5Reader reader = factory.openAWSS3ReaderWithEndpoint("s3://" +
+                BUCKET + "/" + ROOT, server.getEndpoint());
+        final DatasetAttributes attributes = reader.getDatasetAttributes(DATASET);
+        runParallel(gridPosition -> {
+            if (reader.readBlock(DATASET, attributes, gridPosition) == null)
+                throw new IOException("Missing block " + Arrays.toString(
+                        gridPosition));
+        });
+        reader.close();
+        return result("chunk reads", start);
+    }
+
+    /** The listing calls made by the browser when a user opens a root. */
+    public Result listings() {
+        server.resetStatistics();
+        final long start = System.nanoTime();
+        try (MarsS3Browser browser = new MarsS3Browser(server.getServerUrl(), factory)) {
+            browser.listBuckets();
+            browser.listFolders(BUCKET, "");
+            browser.listFiles(BUCKET, ROOT + "/" + DATASET);
+            browser.getObjectMeta(BUCKET, ROOT);
+        }
+        final List<DatasetEntry> entries = MarsS3Browser.listDatasets(getRootUrl(),
+                factory);
+        if (entries.isEmpty()) throw new IllegalStateException(
+                "listDatasets found no datasets in " + getRootUrl());
+        return result("listings", start);
+    }
+
+    private Result result(final String name, final long startNanos) {
+        return new Result(name, (System.nanoTime() - startNanos) / 1_000_000L,
+                server.getRequestCounts(), server.getBytesIn(), server.getBytesOut());
+    }
+
+    private int[] blockSizeAt(final long[] gridPosition) {
+        final int[] size = new int[blockSize.length];
+        for (int d = 0; d < size.length; d++)
+            size[d] = (int) Math.min(blockSize[d], dimensions[d] - gridPosition[d] *
+                    blockSize[d]);
+        return size;
+    }
+
+    private List<long[]> gridPositions() {
+        final int n = dimensions.length;
+        final long[] gridSize = new long[n];
+        long total = 1;
+        for (int d = 0; d < n; d++) {
+            gridSize[d] = (dimensions[d] + blockSize[d] - 1) / blockSize[d];
+            total *= gridSize[d];
+        }
+        final List<long[]> positions = new ArrayList<>();
+        for (long i = 0; i < total; i++) {
+            final long[] position = new long[n];
+            long rem = i;
+            for (int d = 0; d < n; d++) {
+                position[d] = rem % gridSize[d];
+                rem /= gridSize[d];
+            }
+            positions.add(position);
+        }
+        return positions;
+    }
+
+    private void runParallel(final BlockTask task) throws IOException {
+        final ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (long[] gridPosition : gridPositions())
+                futures.add(exec.submit(() -> {
+                    task.run(gridPosition);
+                    return null;
+                }));
+            for (Future<?> f : futures)
+                f.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    private interface BlockTask {
+
+        void run(long[] gridPosition) throws Exception;
+    }
+
+    /** Outcome of a single suite. */
+    public static final class Result {
+
+        public final String name;
+        public final long elapsedMillis;
+        public final Map<String, Long> requests;
+        public final long bytesIn;
+        public final long bytesOut;
+
+        public Result(final String name, final long elapsedMillis,
+                      final Map<String, Long> requests, final long bytesIn,
+                      final long bytesOut) {
+            this.name = name;
+            this.elapsedMillis = elapsedMillis;
+            this.requests = requests;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+        }
+
+        public long totalRequests() {
+            long total = 0;
+            for (long c : requests.values())
+                total += c;
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-12s %7d ms %6d requests  in %s  out %s  %s",
+                    name, elapsedMillis, totalRequests(), DatasetEntry
+                            .humanReadableBytes(bytesIn), DatasetEntry.humanReadableBytes(
+                            bytesOut), requests);
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final long latency = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        final long bandwidthMBps = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        final int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        final long timePoints = args.length > 3 ? Long.parseLong(args[3]) : 100;
+        final int timePointsPerShard = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        try (MarsS3StandInServer server = new MarsS3StandInServer().start()) {
+            server.setLatency(latency, latency / 4).setBandwidth(bandwidthMBps *
+                    1024 * 1024);
+            final MarsS3Benchmark benchmark = new MarsS3Benchmark(server,
+                    new MarsN5Factory(), threads).dataset(new long[] {512, 512, 1, 1,
+                    timePoints}, new int[] {256, 256, 1, 1, 1});
+            if (timePointsPerShard > 0)
+                benchmark.sharding(2, 2, 1, 1, timePointsPerShard);
+            System.out.println(benchmark.upload());
+            System.out.println(benchmark.chunkReads());
+            System.out.println(benchmark.listings());
+            System.out.println("client metrics: " + MarsS3Metrics.getInstance()
+                    .snapshot());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5.bench;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mpg.biochem.mars.n5.MarsN5Factory;
+
+/**
+ * Runs the {@link MarsS3Benchmark} suites on a small dataset and checks the
+ * requests and bytes they cost, so a change that adds round trips or
+ * transfers fails the build instead of only slowing down a live MinIO.
+ * Upper bounds leave room for the few attribute reads and writes of the
+ * N5 API.
+ */
+public class MarsS3BenchmarkTest {
+
+    /** 2 x 2 blocks in XY for each of 4 time points. */
+    private static final long[] DIMENSIONS = {64, 64, 1, 1, 4};
+    private static final int[] BLOCK_SIZE = {32, 32, 1, 1, 1};
+    private static final int NUM_BLOCKS = 16;
+    private static final long BLOCK_BYTES = 32 * 32 * 2;
+    private static final int METADATA_REQUESTS = 4;
+
+    private MarsS3StandInServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MarsS3StandInServer().start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private MarsS3Benchmark benchmark() {
+        return new MarsS3Benchmark(server, new MarsN5Factory(), 4).dataset(DIMENSIONS,
+                BLOCK_SIZE);
+    }
+
+    @Test
+    public void uploadWritesEachBlockOnce() throws IOException {
+        final MarsS3Benchmark.Result upload = benchmark().upload();
+        assertTrue(upload.toString(), count(upload, "PutObject") >= NUM_BLOCKS);
+        assertTrue(upload.toString(), count(upload, "PutObject") <= NUM_BLOCKS +
+                METADATA_REQUESTS);
+        // at most the attribute reads of the N5 API
+        assertTrue(upload.toString(), count(upload, "GetObject") <= METADATA_REQUESTS);
+        assertTrue(upload.toString(), upload.bytesIn >= NUM_BLOCKS * BLOCK_BYTES);
+        assertTrue(upload.toString(), upload.bytesIn < 2 * NUM_BLOCKS * BLOCK_BYTES);
+    }
+
+    @Test
+    public void chunkReadsGetEachBlockOnce() throws IOException {
+        final MarsS3Benchmark benchmark = benchmark();
+        benchmark.upload();
+        final MarsS3Benchmark.Result reads = benchmark.chunkReads();
+        assertTrue(reads.toString(), count(reads, "GetObject") >= NUM_BLOCKS);
+        assertTrue(reads.toString(), count(reads, "GetObject") <= NUM_BLOCKS +
+                METADATA_REQUESTS);
+        assertEquals(reads.toString(), 0, count(reads, "PutObject"));
+        assertTrue(reads.toString(), reads.bytesOut >= NUM_BLOCKS * BLOCK_BYTES);
+        assertTrue(reads.toString(), reads.bytesOut < 2 * NUM_BLOCKS * BLOCK_BYTES);
+    }
+
+    @Test
+    public void shardedUploadWritesEachShardOnce() throws IOException {
+        // 2 x 2 chunks in XY and 2 time points per shard: 2 shards
+        final MarsS3Benchmark benchmark = benchmark().sharding(2, 2, 1, 1, 2);
+        final MarsS3Benchmark.Result upload = benchmark.upload();
+        assertTrue(upload.toString(), count(upload, "PutObject") <= 2 + METADATA_REQUESTS);
+        assertTrue(upload.toString(), upload.bytesIn < 2 * NUM_BLOCKS * BLOCK_BYTES);
+
+        final MarsS3Benchmark.Result reads = benchmark.chunkReads();
+        assertTrue(reads.toString(), count(reads, "GetObject") <= NUM_BLOCKS + 2 +
+                METADATA_REQUESTS);
+        assertTrue(reads.toString(), reads.bytesOut < 2 * NUM_BLOCKS * BLOCK_BYTES);
+    }
+
+    @Test
+    public void listingsStayFew() throws IOException {
+        final MarsS3Benchmark benchmark = benchmark();
+        benchmark.upload();
+        final MarsS3Benchmark.Result listings = benchmark.listings();
+        assertEquals(listings.toString(), 0, count(listings, "PutObject"));
+        assertTrue(listings.toString(), listings.totalRequests() <= 16);
+    }
+
+    private static long count(final MarsS3Benchmark.Result result,
+            final String operation) {
+        final Long count = result.requests.get(operation);
+        return count == null ? 0 : count;
+    }
+}
@@ -0,0 +1,953 @@
+/*-
+ * #%L
+ * Mars N5 source and reader implementations.
+ * %%
+ * Copyright (C) 2023 - 2026 Karl Duderstadt
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.mpg.biochem.mars.n5.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process, in-memory stand-in for an S3/MinIO server. Implements the
+ * path-style subset of the S3 REST API used by {@link
+ * de.mpg.biochem.mars.n5.MarsN5Factory} readers and writers and {@link
+ * de.mpg.biochem.mars.n5.MarsS3Browser}: bucket listing, ListObjectsV2,
+ * Get/Head/Put/Delete object (with byte ranges, If-Match and If-None-Match),
+ * DeleteObjects, CopyObject and multipart uploads (including UploadPartCopy).
+ * <p>
+ * Each request can be slowed by a fixed latency plus jitter (and a random
+ * fraction by an extra tail latency), throttled to a
+ * shared bandwidth cap, queued or rejected beyond a concurrency capacity and
+ * failed with an injected error, so remote behaviour
+ * can be measured offline. Requests are counted per S3 operation so benchmark
+ * suites can detect regressions in request counts and round trips.
+ * Authentication is not checked; clients may use anonymous credentials.
+ *
+ * @author Karl Duderstadt
+ */
+public class MarsS3StandInServer implements AutoCloseable {
+
+    private static final String S3_NS = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private static final DateTimeFormatter ISO = DateTimeFormatter.ofPattern(
+            "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter RFC_1123 =
+            DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private final Map<String, NavigableMap<String, StoredObject>> buckets =
+            new ConcurrentHashMap<>();
+    private final Map<String, MultipartUpload> uploads = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    // Fault injection settings, read on every request.
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+    private volatile double slowRate = 0;
+    private volatile long slowMillis = 0;
+    private volatile long bytesPerSecond = 0;
+    private volatile double errorRate = 0;
+    private volatile int errorStatus = 503;
+    private volatile String errorCode = "SlowDown";
+    private final AtomicInteger failNext = new AtomicInteger();
+    private volatile Semaphore workers = null;
+    private volatile int queueLength = 0;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // Shared link: the time (nanos) at which the link becomes free again.
+    private long linkFreeAtNanos = 0;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /** Starts the server on an ephemeral loopback port. */
+    public MarsS3StandInServer start() throws IOException {
+        return start(0);
+    }
+
+    /** Starts the server on the given loopback port (0 for ephemeral). */
+    public MarsS3StandInServer start(final int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress
+                .getLoopbackAddress(), port), 0);
+        executor = Executors.newCachedThreadPool(r -> {
+            final Thread t = new Thread(r, "mars-s3-stand-in");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        return this;
+    }
+
+    /** Endpoint url for {@code openAWSS3ReaderWithEndpoint} and friends. */
+    public String getEndpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Server url in the form accepted by {@link
+     * de.mpg.biochem.mars.n5.MarsS3Browser}, with a trailing slash.
+     */
+    public String getServerUrl() {
+        return getEndpoint() + "/";
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        if (server != null) server.stop(0);
+        if (executor != null) executor.shutdownNow();
+    }
+
+    // ---- fixtures ----
+
+    public MarsS3StandInServer createBucket(final String bucket) {
+        buckets.computeIfAbsent(bucket, k -> new ConcurrentSkipListMap<>());
+        return this;
+    }
+
+    public void putObject(final String bucket, final String key,
+                          final byte[] data) {
+        createBucket(bucket);
+        buckets.get(bucket).put(key, new StoredObject(data));
+    }
+
+    public byte[] getObject(final String bucket, final String key) {
+        final NavigableMap<String, StoredObject> b = buckets.get(bucket);
+        final StoredObject o = (b == null) ? null : b.get(key);
+        return (o == null) ? null : o.data;
+    }
+
+    /** Number of objects stored in a bucket. */
+    public int objectCount(final String bucket) {
+        final NavigableMap<String, StoredObject> b = buckets.get(bucket);
+        return (b == null) ? 0 : b.size();
+    }
+
+    // ---- fault injection ----
+
+    /** Delay each request by a fixed latency plus uniform random jitter. */
+    public MarsS3StandInServer setLatency(final long latencyMillis,
+                                          final long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * Delay a random fraction of requests by an extra latency, for the long
+     * tail of shared clusters where a few requests wait in server queues.
+     */
+    public MarsS3StandInServer setSlowRequests(final double probability,
+                                               final long delayMillis) {
+        this.slowRate = probability;
+        this.slowMillis = delayMillis;
+        return this;
+    }
+
+    /**
+     * Cap the combined request and response payload throughput of all
+     * connections. 0 removes the cap.
+     */
+    public MarsS3StandInServer setBandwidth(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Fail a random fraction of requests with the given status and S3 error
+     * code, e.g. 503 SlowDown or 500 InternalError.
+     */
+    public MarsS3StandInServer setErrorRate(final double probability,
+                                            final int status, final String code) {
+        this.errorRate = probability;
+        this.errorStatus = status;
+        this.errorCode = code;
+        return this;
+    }
+
+    /**
+     * Serve at most the given number of requests at once, like a busy shared
+     * server: up to as many more wait in a queue, the rest are rejected with
+     * 503 SlowDown. 0 removes the limit.
+     */
+    public MarsS3StandInServer setCapacity(final int maxConcurrent) {
+        this.queueLength = maxConcurrent;
+        this.workers = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+        return this;
+    }
+
+    /** Fail the next n requests with the configured error status and code. */
+    public MarsS3StandInServer failNext(final int n) {
+        failNext.set(n);
+        return this;
+    }
+
+    // ---- statistics ----
+
+    /** Requests served per S3 operation name (e.g. "GetObject"). */
+    public Map<String, Long> getRequestCounts() {
+        final Map<String, Long> counts = new TreeMap<>();
+        requestCounts.forEach((op, c) -> counts.put(op, c.get()));
+        return counts;
+    }
+
+    public long getRequestCount(final String operation) {
+        final AtomicLong c = requestCounts.get(operation);
+        return (c == null) ? 0 : c.get();
+    }
+
+    public long getTotalRequestCount() {
+        long total = 0;
+        for (AtomicLong c : requestCounts.values())
+            total += c.get();
+        return total;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public void resetStatistics() {
+        requestCounts.clear();
+        bytesIn.set(0);
+        bytesOut.set(0);
+    }
+
+    // ---- request handling ----
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            final String rawPath = exchange.getRequestURI().getRawPath();
+            final String path = rawPath.startsWith("/") ? rawPath.substring(1)
+                    : rawPath;
+            final int slash = path.indexOf('/');
+            final String bucket = decode(slash < 0 ? path : path.substring(0,
+                    slash));
+            final String key = (slash < 0) ? "" : decode(path.substring(slash + 1));
+            final Map<String, String> query = parseQuery(exchange.getRequestURI()
+                    .getRawQuery());
+            final String method = exchange.getRequestMethod();
+            final Headers headers = exchange.getRequestHeaders();
+
+            // payload bytes, without the aws-chunked signature framing
+            final byte[] body = decodeAwsChunked(readBody(exchange), headers);
+            final String operation = operation(method, bucket, key, query, headers);
+            requestCounts.computeIfAbsent(operation, k -> new AtomicLong())
+                    .incrementAndGet();
+            bytesIn.addAndGet(body.length);
+
+            final Semaphore slots = workers;
+            if (slots != null && !slots.tryAcquire()) {
+                if (queued.incrementAndGet() > queueLength) {
+                    queued.decrementAndGet();
+                    sendError(exchange, 503, "SlowDown", "Server busy", method);
+                    return;
+                }
+                try {
+                    slots.acquireUninterruptibly();
+                } finally {
+                    queued.decrementAndGet();
+                }
+            }
+            try {
+                injectLatency();
+                throttle(body.length);
+                if (shouldFail()) {
+                    sendError(exchange, errorStatus, errorCode, "Injected failure",
+                            method);
+                    return;
+                }
+            } finally {
+                if (slots != null) slots.release();
+            }
+
+            switch (operation) {
+                case "ListBuckets":
+                    listBuckets(exchange);
+                    break;
+                case "CreateBucket":
+                    createBucket(bucket);
+                    sendEmpty(exchange, 200);
+                    break;
+                case "HeadBucket":
+                    sendEmpty(exchange, buckets.containsKey(bucket) ? 200 : 404);
+                    break;
+                case "DeleteBucket":
+                    buckets.remove(bucket);
+                    sendEmpty(exchange, 204);
+                    break;
+                case "ListObjectsV2":
+                    listObjectsV2(exchange, bucket, query);
+                    break;
+                case "DeleteObjects":
+                    deleteObjects(exchange, bucket, body);
+                    break;
+                case "GetObject":
+                case "HeadObject":
+                    getObject(exchange, bucket, key, headers, method.equals("HEAD"));
+                    break;
+                case "PutObject":
+                    synchronized (buckets) {
+                        if (preconditionFailed(exchange, bucket, key, headers, method))
+                            break;
+                        putObject(bucket, key, body);
+                    }
+                    sendEmptyWithETag(exchange, bucket, key);
+                    break;
+                case "CopyObject":
+                    copyObject(exchange, bucket, key, headers);
+                    break;
+                case "DeleteObject":
+                    synchronized (buckets) {
+                        if (preconditionFailed(exchange, bucket, key, headers, method))
+                            break;
+                        final NavigableMap<String, StoredObject> b = buckets.get(bucket);
+                        if (b != null) b.remove(key);
+                    }
+                    sendEmpty(exchange, 204);
+                    break;
+                case "CreateMultipartUpload":
+                    createMultipartUpload(exchange, bucket, key);
+                    break;
+                case "UploadPart":
+                    uploadPart(exchange, query, body);
+                    break;
+                case "UploadPartCopy":
+                    uploadPartCopy(exchange, query, headers);
+                    break;
+                case "CompleteMultipartUpload":
+                    completeMultipartUpload(exchange, bucket, key, query);
+                    break;
+                case "AbortMultipartUpload":
+                    uploads.remove(query.get("uploadId"));
+                    sendEmpty(exchange, 204);
+                    break;
+                default:
+                    sendError(exchange, 501, "NotImplemented", operation, method);
+            }
+        } catch (final RuntimeException e) {
+            sendError(exchange, 500, "InternalError", String.valueOf(e
+                    .getMessage()), exchange.getRequestMethod());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String operation(final String method, final String bucket,
+                                    final String key, final Map<String, String> query, final Headers headers) {
+        if (bucket.isEmpty()) return "ListBuckets";
+        if (key.isEmpty()) {
+            switch (method) {
+                case "GET":
+                    return "ListObjectsV2";
+                case "PUT":
+                    return "CreateBucket";
+                case "HEAD":
+                    return "HeadBucket";
+                case "DELETE":
+                    return "DeleteBucket";
+                case "POST":
+                    return query.containsKey("delete") ? "DeleteObjects" : "Unknown";
+                default:
+                    return "Unknown";
+            }
+        }
+        final boolean copy = headers.containsKey("x-amz-copy-source");
+        switch (method) {
+            case "GET":
+                return "GetObject";
+            case "HEAD":
+                return "HeadObject";
+            case "PUT":
+                if (query.containsKey("uploadId")) return copy ? "UploadPartCopy"
+                        : "UploadPart";
+                return copy ? "CopyObject" : "PutObject";
+            case "POST":
+                if (query.containsKey("uploads")) return "CreateMultipartUpload";
+                if (query.containsKey("uploadId")) return "CompleteMultipartUpload";
+                return "Unknown";
+            case "DELETE":
+                return query.containsKey("uploadId") ? "AbortMultipartUpload"
+                        : "DeleteObject";
+            default:
+                return "Unknown";
+        }
+    }
+
+    private void listBuckets(final HttpExchange exchange) throws IOException {
+        final StringBuilder xml = xmlHeader("ListAllMyBucketsResult");
+        xml.append("<Owner><ID>mars</ID><DisplayName>mars</DisplayName></Owner><Buckets>");
+        for (String name : new TreeSet<>(buckets.keySet()))
+            xml.append("<Bucket><Name>").append(escape(name)).append(
+                    "</Name><CreationDate>").append(ISO.format(Instant.EPOCH)).append(
+                    "</CreationDate></Bucket>");
+        xml.append("</Buckets></ListAllMyBucketsResult>");
+        sendXml(exchange, 200, xml);
+    }
+
+    private void listObjectsV2(final HttpExchange exchange, final String bucket,
+                               final Map<String, String> query) throws IOException {
+        final NavigableMap<String, StoredObject> b = buckets.get(bucket);
+        if (b == null) {
+            sendError(exchange, 404, "NoSuchBucket", bucket, "GET");
+            return;
+        }
+        final String prefix = query.getOrDefault("prefix", "");
+        final String delimiter = query.get("delimiter");
+        final boolean urlEncode = "url".equals(query.get("encoding-type"));
+        final int maxKeys = Integer.parseInt(query.getOrDefault("max-keys",
+                "1000"));
+        String startAfter = query.getOrDefault("start-after", "");
+        final String token = query.get("continuation-token");
+        if (token != null) startAfter = new String(Base64.getUrlDecoder().decode(
+                token), StandardCharsets.UTF_8);
+
+        final List<Map.Entry<String, StoredObject>> contents = new ArrayList<>();
+        final TreeSet<String> commonPrefixes = new TreeSet<>();
+        String lastReturned = null;
+        boolean truncated = false;
+        for (Map.Entry<String, StoredObject> e : b.tailMap(prefix, true)
+                .entrySet()) {
+            final String k = e.getKey();
+            if (!k.startsWith(prefix)) break;
+            if (k.compareTo(startAfter) <= 0) continue;
+
+            String commonPrefix = null;
+            if (delimiter != null && !delimiter.isEmpty()) {
+                final int idx = k.indexOf(delimiter, prefix.length());
+                if (idx >= 0) commonPrefix = k.substring(0, idx + delimiter.length());
+            }
+            if (commonPrefix != null && commonPrefixes.contains(commonPrefix))
+                continue;
+            if (contents.size() + commonPrefixes.size() >= maxKeys) {
+                truncated = true;
+                break;
+            }
+            if (commonPrefix != null) {
+                commonPrefixes.add(commonPrefix);
+                // Resume after every key sharing this prefix.
+                lastReturned = commonPrefix + Character.MAX_VALUE;
+            } else {
+                contents.add(e);
+                lastReturned = k;
+            }
+        }
+
+        final StringBuilder xml = xmlHeader("ListBucketResult");
+        xml.append("<Name>").append(escape(bucket)).append("</Name>");
+        xml.append("<Prefix>").append(escape(encodeKey(prefix, urlEncode)))
+                .append("</Prefix>");
+        if (delimiter != null) xml.append("<Delimiter>").append(escape(encodeKey(
+                delimiter, urlEncode))).append("</Delimiter>");
+        if (urlEncode) xml.append("<EncodingType>url</EncodingType>");
+        xml.append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        xml.append("<KeyCount>").append(contents.size() + commonPrefixes.size())
+                .append("</KeyCount>");
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (token != null) xml.append("<ContinuationToken>").append(escape(token))
+                .append("</ContinuationToken>");
+        if (truncated && lastReturned != null) xml.append("<NextContinuationToken>")
+                .append(Base64.getUrlEncoder().encodeToString(lastReturned.getBytes(
+                        StandardCharsets.UTF_8))).append("</NextContinuationToken>");
+        for (Map.Entry<String, StoredObject> e : contents) {
+            final StoredObject o = e.getValue();
+            xml.append("<Contents><Key>").append(escape(encodeKey(e.getKey(),
+                    urlEncode))).append("</Key><LastModified>").append(ISO.format(
+                    o.lastModified)).append("</LastModified><ETag>&quot;").append(
+                    o.etag).append("&quot;</ETag><Size>").append(o.data.length).append(
+                    "</Size><StorageClass>STANDARD</StorageClass></Contents>");
+        }
+        for (String cp : commonPrefixes)
+            xml.append("<CommonPrefixes><Prefix>").append(escape(encodeKey(cp,
+                    urlEncode))).append("</Prefix></CommonPrefixes>");
+        xml.append("</ListBucketResult>");
+        sendXml(exchange, 200, xml);
+    }
+
+    private void getObject(final HttpExchange exchange, final String bucket,
+                           final String key, final Headers headers, final boolean head)
+            throws IOException {
+        final NavigableMap<String, StoredObject> b = buckets.get(bucket);
+        final StoredObject o = (b == null) ? null : b.get(key);
+        if (o == null) {
+            sendError(exchange, 404, b == null ? "NoSuchBucket" : "NoSuchKey", key,
+                    head ? "HEAD" : "GET");
+            return;
+        }
+        if (preconditionFailed(exchange, bucket, key, headers, head ? "HEAD" : "GET"))
+            return;
+        final Headers response = exchange.getResponseHeaders();
+        response.set("ETag", "\"" + o.etag + "\"");
+        response.set("Last-Modified", RFC_1123.format(o.lastModified));
+        response.set("Accept-Ranges", "bytes");
+        response.set("Content-Type", "application/octet-stream");
+
+        final String ifNoneMatch = headers.getFirst("If-None-Match");
+        if (ifNoneMatch != null && ifNoneMatch.replace("\"", "").equals(o.etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        int from = 0;
+        int to = o.data.length - 1;
+        int status = 200;
+        final String range = headers.getFirst("Range");
+        if (range != null && range.startsWith("bytes=") && o.data.length > 0) {
+            final String spec = range.substring("bytes=".length());
+            final int dash = spec.indexOf('-');
+            final String start = spec.substring(0, dash).trim();
+            final String end = spec.substring(dash + 1).trim();
+            if (start.isEmpty()) {
+                from = Math.max(0, o.data.length - Integer.parseInt(end));
+            } else {
+                from = Integer.parseInt(start);
+                if (!end.isEmpty()) to = Math.min(to, Integer.parseInt(end));
+            }
+            if (from > to) {
+                sendError(exchange, 416, "InvalidRange", range, head ? "HEAD"
+                        : "GET");
+                return;
+            }
+            status = 206;
+            response.set("Content-Range", "bytes " + from + "-" + to + "/" +
+                    o.data.length);
+        }
+        final int length = to - from + 1;
+        if (head) {
+            response.set("Content-Length", Integer.toString(length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        throttle(length);
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        if (length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(o.data, from, length);
+            }
+            bytesOut.addAndGet(length);
+        }
+    }
+
+    private void copyObject(final HttpExchange exchange, final String bucket,
+                            final String key, final Headers headers) throws IOException {
+        final StoredObject source = copySource(headers);
+        if (source == null) {
+            sendError(exchange, 404, "NoSuchKey", headers.getFirst(
+                    "x-amz-copy-source"), "PUT");
+            return;
+        }
+        createBucket(bucket);
+        final StoredObject copy = new StoredObject(source.data);
+        buckets.get(bucket).put(key, copy);
+        final StringBuilder xml = xmlHeader("CopyObjectResult");
+        xml.append("<LastModified>").append(ISO.format(copy.lastModified)).append(
+                "</LastModified><ETag>&quot;").append(copy.etag).append(
+                "&quot;</ETag></CopyObjectResult>");
+        sendXml(exchange, 200, xml);
+    }
+
+    private StoredObject copySource(final Headers headers) {
+        String source = decode(headers.getFirst("x-amz-copy-source"));
+        final int version = source.indexOf("?versionId=");
+        if (version >= 0) source = source.substring(0, version);
+        while (source.startsWith("/"))
+            source = source.substring(1);
+        final int slash = source.indexOf('/');
+        if (slash < 0) return null;
+        final NavigableMap<String, StoredObject> b = buckets.get(source.substring(
+                0, slash));
+        return (b == null) ? null : b.get(source.substring(slash + 1));
+    }
+
+    private void deleteObjects(final HttpExchange exchange, final String bucket,
+                               final byte[] body) throws IOException {
+        final NavigableMap<String, StoredObject> b = buckets.get(bucket);
+        final StringBuilder xml = xmlHeader("DeleteResult");
+        try {
+            final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(false);
+            final Document doc = dbf.newDocumentBuilder().parse(
+                    new ByteArrayInputStream(body));
+            final boolean quiet = doc.getElementsByTagName("Quiet").getLength() > 0 &&
+                    "true".equals(doc.getElementsByTagName("Quiet").item(0)
+                            .getTextContent().trim());
+            final NodeList keys = doc.getElementsByTagName("Key");
+            for (int i = 0; i < keys.getLength(); i++) {
+                final String key = keys.item(i).getTextContent();
+                if (b != null) b.remove(key);
+                if (!quiet) xml.append("<Deleted><Key>").append(escape(key)).append(
+                        "</Key></Deleted>");
+            }
+        } catch (final Exception e) {
+            sendError(exchange, 400, "MalformedXML", e.getMessage(), "POST");
+            return;
+        }
+        xml.append("</DeleteResult>");
+        sendXml(exchange, 200, xml);
+    }
+
+    private void createMultipartUpload(final HttpExchange exchange,
+                                       final String bucket, final String key) throws IOException {
+        final String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new MultipartUpload(bucket, key));
+        final StringBuilder xml = xmlHeader("InitiateMultipartUploadResult");
+        xml.append("<Bucket>").append(escape(bucket)).append("</Bucket><Key>")
+                .append(escape(key)).append("</Key><UploadId>").append(uploadId)
+                .append("</UploadId></InitiateMultipartUploadResult>");
+        sendXml(exchange, 200, xml);
+    }
+
+    private void uploadPart(final HttpExchange exchange,
+                            final Map<String, String> query, final byte[] data) throws IOException {
+        final MultipartUpload upload = uploads.get(query.get("uploadId"));
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload", query.get("uploadId"), "PUT");
+            return;
+        }
+        final StoredObject part = new StoredObject(data);
+        upload.parts.put(Integer.parseInt(query.get("partNumber")), part);
+        exchange.getResponseHeaders().set("ETag", "\"" + part.etag + "\"");
+        sendEmpty(exchange, 200);
+    }
+
+    private void uploadPartCopy(final HttpExchange exchange,
+                                final Map<String, String> query, final Headers headers) throws IOException {
+        final MultipartUpload upload = uploads.get(query.get("uploadId"));
+        final StoredObject source = copySource(headers);
+        if (upload == null || source == null) {
+            sendError(exchange, 404, upload == null ? "NoSuchUpload" : "NoSuchKey",
+                    query.get("uploadId"), "PUT");
+            return;
+        }
+        byte[] data = source.data;
+        final String range = headers.getFirst("x-amz-copy-source-range");
+        if (range != null && range.startsWith("bytes=")) {
+            final String[] bounds = range.substring("bytes=".length()).split("-");
+            final int from = Integer.parseInt(bounds[0].trim());
+            final int to = Integer.parseInt(bounds[1].trim());
+            data = Arrays.copyOfRange(data, from, to + 1);
+        }
+        final StoredObject part = new StoredObject(data);
+        upload.parts.put(Integer.parseInt(query.get("partNumber")), part);
+        final StringBuilder xml = xmlHeader("CopyPartResult");
+        xml.append("<LastModified>").append(ISO.format(part.lastModified)).append(
+                "</LastModified><ETag>&quot;").append(part.etag).append(
+                "&quot;</ETag></CopyPartResult>");
+        sendXml(exchange, 200, xml);
+    }
+
+    private void completeMultipartUpload(final HttpExchange exchange,
+                                         final String bucket, final String key, final Map<String, String> query)
+            throws IOException {
+        final MultipartUpload upload = uploads.remove(query.get("uploadId"));
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload", query.get("uploadId"), "POST");
+            return;
+        }
+        // like S3 and MinIO: the ETag is the MD5 of the part MD5s and the part count
+        final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        final ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+        for (StoredObject part : upload.parts.values()) {
+            joined.write(part.data);
+            for (int i = 0; i < part.etag.length(); i += 2)
+                partDigests.write(Integer.parseInt(part.etag.substring(i, i + 2), 16));
+        }
+        createBucket(bucket);
+        buckets.get(bucket).put(key, new StoredObject(joined.toByteArray(), md5Hex(
+                partDigests.toByteArray()) + "-" + upload.parts.size()));
+        final StoredObject o = buckets.get(bucket).get(key);
+        final StringBuilder xml = xmlHeader("CompleteMultipartUploadResult");
+        xml.append("<Location>").append(escape(getEndpoint() + "/" + bucket + "/" +
+                key)).append("</Location><Bucket>").append(escape(bucket)).append(
+                "</Bucket><Key>").append(escape(key)).append("</Key><ETag>&quot;")
+                .append(o.etag).append("&quot;</ETag></CompleteMultipartUploadResult>");
+        sendXml(exchange, 200, xml);
+    }
+
+    // ---- fault injection internals ----
+
+    private void injectLatency() {
+        long delay = latencyMillis;
+        if (jitterMillis > 0) delay += ThreadLocalRandom.current().nextLong(
+                jitterMillis + 1);
+        if (slowRate > 0 && ThreadLocalRandom.current().nextDouble() < slowRate)
+            delay += slowMillis;
+        sleepMillis(delay);
+    }
+
+    private boolean shouldFail() {
+        if (failNext.getAndUpdate(n -> n > 0 ? n - 1 : 0) > 0) return true;
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    /** Reserve transfer time for the given number of bytes on the shared link. */
+    private void throttle(final long numBytes) {
+        final long bps = bytesPerSecond;
+        if (bps <= 0 || numBytes <= 0) return;
+        final long transferNanos = numBytes * 1_000_000_000L / bps;
+        final long doneAt;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            linkFreeAtNanos = Math.max(linkFreeAtNanos, now) + transferNanos;
+            doneAt = linkFreeAtNanos;
+        }
+        sleepMillis((doneAt - System.nanoTime()) / 1_000_000L);
+    }
+
+    private static void sleepMillis(final long millis) {
+        if (millis <= 0) return;
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---- protocol helpers ----
+
+    private static byte[] readBody(final HttpExchange exchange)
+            throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Strips aws-chunked framing ("size;chunk-signature=...\r\ndata\r\n...0\r\n
+     * trailers") used by the SDK for streaming signatures and trailing
+     * checksums.
+     */
+    private static byte[] decodeAwsChunked(final byte[] body,
+                                           final Headers headers) {
+        final String sha = headers.getFirst("x-amz-content-sha256");
+        final String encoding = headers.getFirst("Content-Encoding");
+        final boolean chunked = (sha != null && sha.startsWith("STREAMING")) ||
+                (encoding != null && encoding.contains("aws-chunked"));
+        if (!chunked) return body;
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        int pos = 0;
+        while (pos < body.length) {
+            int eol = pos;
+            while (eol + 1 < body.length && !(body[eol] == '\r' &&
+                    body[eol + 1] == '\n'))
+                eol++;
+            String sizeField = new String(body, pos, eol - pos,
+                    StandardCharsets.US_ASCII);
+            final int semicolon = sizeField.indexOf(';');
+            if (semicolon >= 0) sizeField = sizeField.substring(0, semicolon);
+            final int size = Integer.parseInt(sizeField.trim(), 16);
+            if (size == 0) break;
+            out.write(body, eol + 2, size);
+            pos = eol + 2 + size + 2;
+        }
+        return out.toByteArray();
+    }
+
+    private void sendEmptyWithETag(final HttpExchange exchange,
+                                   final String bucket, final String key) throws IOException {
+        exchange.getResponseHeaders().set("ETag", "\"" + buckets.get(bucket).get(
+                key).etag + "\"");
+        sendEmpty(exchange, 200);
+    }
+
+    private static void sendEmpty(final HttpExchange exchange, final int status)
+            throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private void sendXml(final HttpExchange exchange, final int status,
+                         final CharSequence xml) throws IOException {
+        final byte[] bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        bytesOut.addAndGet(bytes.length);
+    }
+
+    /**
+     * Answers 412 if If-Match names another ETag than the stored object's or
+     * If-None-Match is "*" and the object exists. If-None-Match with an ETag
+     * is a GET revalidation, answered with 304 by {@link #getObject}.
+     */
+    private boolean preconditionFailed(final HttpExchange exchange,
+                                       final String bucket, final String key, final Headers headers,
+                                       final String method) throws IOException {
+        final NavigableMap<String, StoredObject> b = buckets.get(bucket);
+        final StoredObject o = (b == null) ? null : b.get(key);
+        final String ifMatch = headers.getFirst("If-Match");
+        final String ifNoneMatch = headers.getFirst("If-None-Match");
+        if ((ifMatch != null && (o == null || !ifMatch.replace("\"", "").equals(o.etag))) ||
+                ("*".equals(ifNoneMatch) && o != null)) {
+            sendError(exchange, 412, "PreconditionFailed", key, method);
+            return true;
+        }
+        return false;
+    }
+
+    private void sendError(final HttpExchange exchange, final int status,
+                           final String code, final String message, final String method)
+            throws IOException {
+        exchange.getResponseHeaders().set("x-amz-request-id", UUID.randomUUID()
+                .toString());
+        if ("HEAD".equals(method)) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        final StringBuilder xml = new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>").append(code)
+                .append("</Code><Message>").append(escape(message)).append(
+                        "</Message></Error>");
+        sendXml(exchange, status, xml);
+    }
+
+    private static StringBuilder xmlHeader(final String root) {
+        return new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><")
+                .append(root).append(" xmlns=\"").append(S3_NS).append("\">");
+    }
+
+    private static Map<String, String> parseQuery(final String rawQuery) {
+        final Map<String, String> query = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) return query;
+        for (String pair : rawQuery.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq < 0) query.put(decode(pair), "");
+            else query.put(decode(pair.substring(0, eq)), decode(pair.substring(eq +
+                    1)));
+        }
+        return query;
+    }
+
+    private static String decode(final String s) {
+        return (s == null) ? null : URLDecoder.decode(s.replace("+", "%2B"),
+                StandardCharsets.UTF_8);
+    }
+
+    private static String encodeKey(final String key, final boolean urlEncode) {
+        return urlEncode ? URLEncoder.encode(key, StandardCharsets.UTF_8).replace(
+                "+", "%20").replace("%2F", "/") : key;
+    }
+
+    private static String escape(final String s) {
+        if (s == null) return "";
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                .replace("\"", "&quot;");
+    }
+
+    private static String md5Hex(final byte[] data) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            final StringBuilder sb = new StringBuilder(32);
+            for (byte b : digest)
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class StoredObject {
+
+        final byte[] data;
+        final String etag;
+        final Instant lastModified;
+
+        StoredObject(final byte[] data) {
+            this(data, md5Hex(data));
+        }
+
+        StoredObject(final byte[] data, final String etag) {
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = Instant.now();
+        }
+    }
+
+    private static final class MultipartUpload {
+
+        final String bucket;
+        final String key;
+        final Map<Integer, StoredObject> parts = new ConcurrentSkipListMap<>();
+
+        MultipartUpload(final String bucket, final String key) {
+            this.bucket = bucket;
+            this.key = key;
+        }
+    }
+}